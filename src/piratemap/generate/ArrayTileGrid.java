@@ -0,0 +1,37 @@
+package piratemap.generate;
+
+import java.util.Arrays;
+
+import piratemap.generate.PirateMap.Tile;
+
+/**
+ * Tiles in a Tile[x][y] array on the heap. Fastest, for all the usual sizes.
+ */
+class ArrayTileGrid implements TileGrid
+{
+    final Tile[][] tiles;
+
+    ArrayTileGrid(Tile[][] tiles)
+    {
+        this.tiles = tiles;
+    }
+
+    @Override
+    public Tile get(int x, int y)
+    {
+        return tiles[x][y];
+    }
+
+    @Override
+    public void set(int x, int y, Tile t)
+    {
+        tiles[x][y] = t;
+    }
+
+    @Override
+    public void clear(int W, int H)
+    {
+        for (int x = 0; x < W; x++)
+            Arrays.fill(tiles[x], 0, H, Tile.WATER);
+    }
+}
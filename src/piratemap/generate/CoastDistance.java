@@ -0,0 +1,100 @@
+package piratemap.generate;
+
+import static piratemap.generate.PirateMap.Tile.*;
+
+/**
+ * Distance to the coast for every grid location, by a multi source BFS.
+ *
+ * Distances are NSEW steps, so they are comparable with Coord.gridDist and with
+ * walking the route. Fields are row major, index = y * W + x. Locations that
+ * cannot reach the other kind of tile at all get Short.MAX_VALUE.
+ *
+ * With a workspace the fields come from it, and may be longer than W * H.
+ */
+public class CoastDistance
+{
+    public static final short UNREACHABLE = Short.MAX_VALUE;
+
+    /**
+     * For land, the number of steps to the nearest water. Water is 0.
+     * So land next to water is 1.
+     * @param map
+     * @return
+     */
+    public static short[] toWater(PirateMap map)
+    {
+        return bfs(map, true);
+    }
+
+    /**
+     * For water, the number of steps to the nearest land. Land is 0.
+     * @param map
+     * @return
+     */
+    public static short[] toLand(PirateMap map)
+    {
+        return bfs(map, false);
+    }
+
+    /**
+     * All source tiles go in the queue at distance 0, every other tile gets
+     * its distance the first time it is reached. Each tile is queued once.
+     */
+    private static short[] bfs(PirateMap map, boolean fromWater)
+    {
+        int W = map.W, H = map.H;
+        Workspace ws = map.workspace;
+        short[] dist = ws == null ? new short[W*H]
+                : fromWater ? ws.coastDist(W*H) : ws.depth(W*H);
+        int[] queue = ws == null ? new int[W*H] : ws.queue(W*H);
+        int head = 0, tail = 0;
+
+        for (int y = 0; y < H; y++)
+        {
+            map.context.checkpoint();
+            for (int x = 0; x < W; x++)
+            {
+                int i = y*W + x;
+                if ((map.getTile(x, y) == WATER) == fromWater)
+                {
+                    dist[i] = 0;
+                    queue[tail++] = i;
+                }
+                else
+                    dist[i] = UNREACHABLE;
+            }
+        }
+
+        while (head < tail)
+        {
+            if ((head & 4095) == 0)
+                map.context.checkpoint();
+            int i = queue[head++];
+            int x = i % W, y = i / W;
+            short nd = (short) Math.min(dist[i] + 1, UNREACHABLE - 1);
+
+            if (x > 0 && dist[i-1] == UNREACHABLE)
+            {
+                dist[i-1] = nd;
+                queue[tail++] = i-1;
+            }
+            if (x < W-1 && dist[i+1] == UNREACHABLE)
+            {
+                dist[i+1] = nd;
+                queue[tail++] = i+1;
+            }
+            if (y > 0 && dist[i-W] == UNREACHABLE)
+            {
+                dist[i-W] = nd;
+                queue[tail++] = i-W;
+            }
+            if (y < H-1 && dist[i+W] == UNREACHABLE)
+            {
+                dist[i+W] = nd;
+                queue[tail++] = i+W;
+            }
+        }
+
+        return dist;
+    }
+}
@@ -0,0 +1,79 @@
+package piratemap.generate;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Rectangles of grid locations that changed, clipped to the map.
+ *
+ * Rectangles are merged when their union wastes no more area than they
+ * cover apart, so a brush stroke or a route becomes a few compact
+ * rectangles, while edits far apart stay apart.
+ */
+class DirtyRegions
+{
+    private final int W, H;
+    private final List<Rectangle> rects = new ArrayList<>();
+
+    DirtyRegions(int w, int h)
+    {
+        W = w;
+        H = h;
+    }
+
+    void add(int x, int y, int w, int h)
+    {
+        Rectangle r = new Rectangle(x, y, w, h).intersection(new Rectangle(0, 0, W, H));
+        if (r.isEmpty())
+            return;
+
+        // Merge with whatever it pays to, and again with what the union now reaches
+        boolean merged = true;
+        while (merged)
+        {
+            merged = false;
+            for (int i = 0; i < rects.size(); i++)
+            {
+                Rectangle o = rects.get(i);
+                if (o.contains(r))
+                    return;
+                Rectangle u = o.union(r);
+                if ((long) u.width*u.height <= (long) o.width*o.height + (long) r.width*r.height)
+                {
+                    rects.remove(i);
+                    r = u;
+                    merged = true;
+                    break;
+                }
+            }
+        }
+        rects.add(r);
+    }
+
+    boolean isEmpty()
+    {
+        return rects.isEmpty();
+    }
+
+    /**
+     * @return Whether x, y is in one of the rectangles.
+     */
+    boolean contains(int x, int y)
+    {
+        for (Rectangle r : rects)
+            if (r.contains(x, y))
+                return true;
+        return false;
+    }
+
+    /**
+     * @return The rectangles, and start again empty.
+     */
+    List<Rectangle> take()
+    {
+        List<Rectangle> list = new ArrayList<>(rects);
+        rects.clear();
+        return list;
+    }
+}
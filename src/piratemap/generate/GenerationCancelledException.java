@@ -0,0 +1,16 @@
+package piratemap.generate;
+
+/**
+ * Thrown from GenerationContext.checkpoint() when generation was cancelled or
+ * ran past its deadline. The map being made is left half done and must be
+ * thrown away.
+ */
+public class GenerationCancelledException extends RuntimeException
+{
+    private static final long serialVersionUID = 1L;
+
+    public GenerationCancelledException(String msg)
+    {
+        super(msg);
+    }
+}
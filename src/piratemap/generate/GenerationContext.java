@@ -0,0 +1,97 @@
+package piratemap.generate;
+
+/**
+ * Deadline, cancellation and progress for making one map.
+ *
+ * The long loops of generation and rendering call checkpoint() now and then,
+ * which throws GenerationCancelledException once cancel() was called (from any
+ * thread) or the deadline has passed. So a server can cap the time spent on
+ * one request and get its worker back.
+ */
+public class GenerationContext
+{
+    /**
+     * Told how far generation is. Called on the generating thread, so it must be quick.
+     */
+    public interface ProgressListener
+    {
+        /**
+         * @param stage Name of the running stage, eg. "route" or "render".
+         * @param done 0 to 1, how much of the stage is done.
+         */
+        void progress(String stage, double done);
+    }
+
+    private final long deadline;
+    private final boolean hasDeadline;
+    private volatile boolean cancelled;
+    private volatile ProgressListener listener;
+    private volatile String stage = "";
+
+    /**
+     * No deadline, only cancel() stops it.
+     */
+    public GenerationContext()
+    {
+        deadline = 0;
+        hasDeadline = false;
+    }
+
+    /**
+     * @param timeoutMillis From now. 0 or less for no deadline.
+     */
+    public GenerationContext(long timeoutMillis)
+    {
+        hasDeadline = timeoutMillis > 0;
+        deadline = System.nanoTime() + timeoutMillis * 1000000L;
+    }
+
+    public void cancel()
+    {
+        cancelled = true;
+    }
+
+    /**
+     * @return True if cancelled or past the deadline.
+     */
+    public boolean isCancelled()
+    {
+        return cancelled || (hasDeadline && System.nanoTime() - deadline > 0);
+    }
+
+    /**
+     * Stop here if cancelled or past the deadline.
+     * @throws GenerationCancelledException
+     */
+    public void checkpoint()
+    {
+        if (cancelled)
+            throw new GenerationCancelledException("Cancelled during " + stage);
+        if (hasDeadline && System.nanoTime() - deadline > 0)
+            throw new GenerationCancelledException("Deadline passed during " + stage);
+    }
+
+    public void setProgressListener(ProgressListener listener)
+    {
+        this.listener = listener;
+    }
+
+    /**
+     * A new stage starts.
+     */
+    void stage(String name)
+    {
+        stage = name;
+        progress(0);
+    }
+
+    /**
+     * @param done 0 to 1 of the current stage.
+     */
+    void progress(double done)
+    {
+        ProgressListener l = listener;
+        if (l != null)
+            l.progress(stage, done);
+    }
+}
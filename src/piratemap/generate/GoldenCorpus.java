@@ -0,0 +1,345 @@
+package piratemap.generate;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import piratemap.generate.PirateMap.Coord;
+import piratemap.generate.PirateMap.Options;
+import piratemap.generate.PirateMap.Tile;
+import piratemap.generate.PirateMap.Treasure;
+import piratemap.generate.Pipeline.Stage;
+
+/**
+ * Guards the promise that a seed always gives the same grid, route and
+ * directions.
+ *
+ * The corpus file has one case per line, a PirateMap command line, then "|"
+ * and a checksum for every grid stage:
+ * <pre>
+ * --seed 17 --size 800 --treasures 3 | terrain=9f..:312,0,0 roughen=... directions=...:7
+ * </pre>
+ * Each checksum is a 64 bit FNV-1a hash, plus a few counts that make a
+ * difference readable: land, hills, trees for the grid stages, treasures,
+ * route points and turns for the route, lines for the directions.
+ *
+ * --record fills in the checksums of every case, verifying (the default)
+ * runs all cases in parallel and reports the first stage that differs for each
+ * case that fails. Rendering is not covered.
+ */
+public class GoldenCorpus
+{
+    private static final Stage[] STAGES = {
+        Stage.TERRAIN, Stage.ROUGHEN, Stage.INLAND_WATER, Stage.VEGETATION,
+        Stage.ROUTE, Stage.DIRECTIONS
+    };
+
+    private static final ThreadLocal<Workspace> WORKSPACE = new ThreadLocal<Workspace>() {
+        @Override
+        protected Workspace initialValue()
+        {
+            return new Workspace();
+        }
+    };
+
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    /**
+     * Generate the map for one case.
+     * @param args PirateMap command line.
+     * @return stage name to checksum, in stage order.
+     */
+    static Map<String, String> checksums(String args)
+    {
+        Options o = new Options();
+        o.tileSize = 32;
+        PirateMap.getOptions(args.trim().split("\\s+"), o);
+        o.quiet = true;
+
+        final Map<String, String> sums = new LinkedHashMap<>();
+        PirateMap map = Pipeline.generate(o, Stage.ROUTE, new Pipeline.StageListener() {
+            @Override
+            public void stageDone(Stage stage, PirateMap map, long nanos)
+            {
+                sums.put(name(stage), stage == Stage.ROUTE ? routeSum(map) : gridSum(map));
+            }
+        }, WORKSPACE.get());
+        String dir = Pipeline.directions(map, o);
+        sums.put(name(Stage.DIRECTIONS), hex(fnv(FNV_OFFSET, dir.getBytes(StandardCharsets.UTF_8)))
+                + ":" + dir.split("\n", -1).length);
+        return sums;
+    }
+
+    private static String name(Stage s)
+    {
+        return s.name().toLowerCase();
+    }
+
+    private static String gridSum(PirateMap map)
+    {
+        long h = FNV_OFFSET;
+        h = fnv(h, map.W);
+        h = fnv(h, map.H);
+        int land = 0, hills = 0, trees = 0;
+        for (int y = 0; y < map.H; y++)
+            for (int x = 0; x < map.W; x++)
+            {
+                Tile t = map.getTile(x, y);
+                h = (h ^ t.ordinal()) * FNV_PRIME;
+                if (t != Tile.WATER)
+                    land++;
+                if (t == Tile.HILL)
+                    hills++;
+                else if (t == Tile.TREES)
+                    trees++;
+            }
+        return hex(h) + ":" + land + "," + hills + "," + trees;
+    }
+
+    private static String routeSum(PirateMap map)
+    {
+        long h = FNV_OFFSET;
+        int points = 0;
+        List<Treasure> all = map.allTreasures();
+        for (Treasure tr : all)
+        {
+            h = fnv(h, tr.mark.x);
+            h = fnv(h, tr.mark.y);
+            h = fnv(h, tr.route.size());
+            for (Coord c : tr.route)
+            {
+                h = fnv(h, c.x);
+                h = fnv(h, c.y);
+            }
+            for (Coord c : tr.routeDirs)
+            {
+                h = fnv(h, c.x);
+                h = fnv(h, c.y);
+            }
+            points += tr.route.size();
+        }
+        return hex(h) + ":" + all.size() + "," + points + "," + new MapMetrics(map).turns;
+    }
+
+    private static long fnv(long h, int v)
+    {
+        for (int i = 0; i < 4; i++)
+        {
+            h = (h ^ (v & 0xff)) * FNV_PRIME;
+            v >>>= 8;
+        }
+        return h;
+    }
+
+    private static long fnv(long h, byte[] b)
+    {
+        for (byte v : b)
+            h = (h ^ (v & 0xff)) * FNV_PRIME;
+        return h;
+    }
+
+    private static String hex(long h)
+    {
+        return String.format("%016x", h);
+    }
+
+    /**
+     * One line of the corpus file.
+     */
+    private static class Case
+    {
+        String line;
+        String args;
+        Map<String, String> expected = new LinkedHashMap<>();
+
+        Case(String line)
+        {
+            this.line = line;
+            String t = line.trim();
+            if (t.isEmpty() || t.startsWith("#"))
+                return;
+            int bar = t.indexOf('|');
+            args = (bar < 0 ? t : t.substring(0, bar)).trim();
+            if (bar >= 0)
+            {
+                for (String kv : t.substring(bar+1).trim().split("\\s+"))
+                {
+                    int eq = kv.indexOf('=');
+                    if (eq > 0)
+                        expected.put(kv.substring(0, eq), kv.substring(eq+1));
+                }
+            }
+        }
+    }
+
+    private static List<Case> read(Path file) throws IOException
+    {
+        List<Case> cases = new ArrayList<>();
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8))
+            cases.add(new Case(line));
+        return cases;
+    }
+
+    /**
+     * Checksums for every case, worked out in parallel, in case order.
+     * Comment lines get null.
+     */
+    private static List<Map<String, String>> runAll(List<Case> cases, int threads)
+            throws InterruptedException, ExecutionException
+    {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try
+        {
+            List<Future<Map<String, String>>> futures = new ArrayList<>();
+            for (final Case c : cases)
+            {
+                if (c.args == null)
+                {
+                    futures.add(null);
+                    continue;
+                }
+                futures.add(pool.submit(new Callable<Map<String, String>>() {
+                    @Override
+                    public Map<String, String> call()
+                    {
+                        return checksums(c.args);
+                    }
+                }));
+            }
+            List<Map<String, String>> out = new ArrayList<>();
+            for (Future<Map<String, String>> f : futures)
+                out.add(f == null ? null : f.get());
+            return out;
+        } finally
+        {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Rewrite the corpus with the checksums of this build.
+     */
+    static void record(Path file, int threads) throws Exception
+    {
+        List<Case> cases = read(file);
+        List<Map<String, String>> sums = runAll(cases, threads);
+        int n = 0;
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file, StandardCharsets.UTF_8)))
+        {
+            for (int i = 0; i < cases.size(); i++)
+            {
+                Case c = cases.get(i);
+                if (c.args == null)
+                {
+                    out.println(c.line);
+                    continue;
+                }
+                StringBuilder sb = new StringBuilder(c.args).append(" |");
+                for (Map.Entry<String, String> e : sums.get(i).entrySet())
+                    sb.append(' ').append(e.getKey()).append('=').append(e.getValue());
+                out.println(sb);
+                n++;
+            }
+        }
+        System.out.println("Recorded " + n + " cases");
+    }
+
+    /**
+     * @return Number of cases that failed.
+     */
+    static int verify(Path file, int threads) throws Exception
+    {
+        List<Case> cases = read(file);
+        List<Map<String, String>> sums = runAll(cases, threads);
+        int n = 0, failed = 0;
+        for (int i = 0; i < cases.size(); i++)
+        {
+            Case c = cases.get(i);
+            if (c.args == null)
+                continue;
+            n++;
+            Map<String, String> actual = sums.get(i);
+            for (Stage s : STAGES)
+            {
+                String want = c.expected.get(name(s));
+                String got = actual.get(name(s));
+                if (want == null)
+                {
+                    System.out.println("line " + (i+1) + ": " + c.args
+                            + "\n    no recorded checksum for " + name(s) + ", run --record");
+                    failed++;
+                    break;
+                }
+                if (!want.equals(got))
+                {
+                    System.out.println("line " + (i+1) + ": " + c.args
+                            + "\n    first difference at " + name(s)
+                            + (s == Stage.TERRAIN ? "" : " (earlier stages match)")
+                            + "\n    expected " + want + "\n    actual   " + got
+                            + "\n    " + legend(s));
+                    failed++;
+                    break;
+                }
+            }
+        }
+        System.out.println((n - failed) + " of " + n + " cases match");
+        return failed;
+    }
+
+    private static String legend(Stage s)
+    {
+        if (s == Stage.ROUTE)
+            return "(hash:treasures,route points,turns)";
+        if (s == Stage.DIRECTIONS)
+            return "(hash:lines)";
+        return "(hash:land,hills,trees)";
+    }
+
+    static void usage()
+    {
+        System.out.println("GoldenCorpus [--record] [--threads <n>] [<corpus file>]\n"
+                + "Default corpus is golden/corpus.txt. Without --record the corpus is verified,\n"
+                + "exit status is 1 if any case differs.");
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        boolean record = false;
+        int threads = Runtime.getRuntime().availableProcessors();
+        String file = "golden/corpus.txt";
+        for (int i = 0; i < args.length; i++)
+        {
+            if ("--record".equals(args[i]))
+                record = true;
+            else if ("--threads".equals(args[i]) && i < args.length - 1)
+                threads = Math.max(1, Integer.parseInt(args[++i]));
+            else if (!args[i].startsWith("--"))
+                file = args[i];
+            else
+            {
+                usage();
+                System.exit(2);
+            }
+        }
+
+        long start = System.nanoTime();
+        if (record)
+            record(Paths.get(file), threads);
+        else if (verify(Paths.get(file), threads) > 0)
+            System.exit(1);
+        System.out.println(String.format("%.2fs", (System.nanoTime() - start) / 1e9));
+    }
+}
@@ -0,0 +1,232 @@
+package piratemap.generate;
+
+import static piratemap.generate.PirateMap.Tile.*;
+
+import java.util.Arrays;
+
+/**
+ * Connected component labelling of all islands (land connected NSEW).
+ *
+ * Two passes over the grid with union-find: the first pass gives every land
+ * location a provisional label and records which labels touch, the second
+ * resolves labels and collects per island size, bounding box and coastline length.
+ *
+ * Labels are row major, index = y * W + x. Water is 0, islands are 1..count(),
+ * numbered in the order their first location is met in row major order.
+ * With a workspace the labels come from it, and may be longer than W * H.
+ */
+public class Islands
+{
+    public final int W, H;
+    public final int[] labels;
+
+    private int count;
+    // Indexed by label, [0] is unused
+    private int[] size, minX, minY, maxX, maxY, coast;
+
+    public Islands(PirateMap map)
+    {
+        W = map.W;
+        H = map.H;
+        if (map.workspace == null)
+            labels = new int[W*H];
+        else
+        {
+            labels = map.workspace.labels(W*H);
+            Arrays.fill(labels, 0, W*H, 0);
+        }
+
+        int[] parent = new int[16];
+        int next = 1;
+
+        // Pass 1: provisional labels from the left and upper neighbours
+        for (int y = 0; y < H; y++)
+        {
+            map.context.checkpoint();
+            for (int x = 0; x < W; x++)
+            {
+                if (map.getTile(x, y) == WATER)
+                    continue;
+
+                int i = y*W + x;
+                int left = x > 0 ? labels[i-1] : 0;
+                int up = y > 0 ? labels[i-W] : 0;
+
+                if (left == 0 && up == 0)
+                {
+                    if (next == parent.length)
+                        parent = Arrays.copyOf(parent, parent.length*2);
+                    parent[next] = next;
+                    labels[i] = next++;
+                }
+                else if (left != 0 && up != 0)
+                {
+                    labels[i] = union(parent, left, up);
+                }
+                else
+                    labels[i] = left != 0 ? left : up;
+            }
+        }
+
+        // Compact the roots to 1..count in order of first appearance
+        int[] finalLabel = new int[next];
+        for (int l = 1; l < next; l++)
+        {
+            int root = find(parent, l);
+            if (finalLabel[root] == 0)
+                finalLabel[root] = ++count;
+            finalLabel[l] = finalLabel[root];
+        }
+
+        size = new int[count+1];
+        minX = new int[count+1];
+        minY = new int[count+1];
+        maxX = new int[count+1];
+        maxY = new int[count+1];
+        coast = new int[count+1];
+        Arrays.fill(minX, Integer.MAX_VALUE);
+        Arrays.fill(minY, Integer.MAX_VALUE);
+        Arrays.fill(maxX, -1);
+        Arrays.fill(maxY, -1);
+
+        // Pass 2: final labels and stats
+        for (int y = 0; y < H; y++)
+        {
+            map.context.checkpoint();
+            for (int x = 0; x < W; x++)
+            {
+                int i = y*W + x;
+                if (labels[i] == 0)
+                    continue;
+
+                int l = finalLabel[labels[i]];
+                labels[i] = l;
+
+                size[l]++;
+                minX[l] = Math.min(minX[l], x);
+                minY[l] = Math.min(minY[l], y);
+                maxX[l] = Math.max(maxX[l], x);
+                maxY[l] = Math.max(maxY[l], y);
+
+                // Sides facing water or the map edge. Neighbours before i
+                // are already final, after i they are still provisional, but
+                // only being water or not matters here.
+                if (x == 0 || labels[i-1] == 0)
+                    coast[l]++;
+                if (x == W-1 || labels[i+1] == 0)
+                    coast[l]++;
+                if (y == 0 || labels[i-W] == 0)
+                    coast[l]++;
+                if (y == H-1 || labels[i+W] == 0)
+                    coast[l]++;
+            }
+        }
+    }
+
+    private static int find(int[] parent, int l)
+    {
+        while (parent[l] != l)
+        {
+            parent[l] = parent[parent[l]];
+            l = parent[l];
+        }
+        return l;
+    }
+
+    private static int union(int[] parent, int a, int b)
+    {
+        int ra = find(parent, a), rb = find(parent, b);
+        if (ra < rb)
+        {
+            parent[rb] = ra;
+            return ra;
+        }
+        parent[ra] = rb;
+        return rb;
+    }
+
+    /**
+     * @return Number of islands.
+     */
+    public int count()
+    {
+        return count;
+    }
+
+    /**
+     * @return Island at x, y, 0 for water.
+     */
+    public int labelAt(int x, int y)
+    {
+        return labels[y*W + x];
+    }
+
+    public int size(int island)
+    {
+        return size[island];
+    }
+
+    public int minX(int island)
+    {
+        return minX[island];
+    }
+
+    public int minY(int island)
+    {
+        return minY[island];
+    }
+
+    public int maxX(int island)
+    {
+        return maxX[island];
+    }
+
+    public int maxY(int island)
+    {
+        return maxY[island];
+    }
+
+    /**
+     * @return Number of location sides that face water (or the map edge).
+     */
+    public int coastLength(int island)
+    {
+        return coast[island];
+    }
+
+    /**
+     * @return The island with most locations, lowest label on a tie. 0 if there is no land.
+     */
+    public int largest()
+    {
+        int best = 0;
+        for (int l = 1; l <= count; l++)
+        {
+            if (best == 0 || size[l] > size[best])
+                best = l;
+        }
+        return best;
+    }
+
+    /**
+     * @param island
+     * @return Index of all locations of the island, in row major order.
+     */
+    public LandIndex index(int island)
+    {
+        int[] cells = new int[island == 0 ? 0 : size[island]];
+        int n = 0;
+        if (island != 0)
+        {
+            // Only the bounding box can hold the island
+            for (int y = minY[island]; y <= maxY[island]; y++)
+                for (int x = minX[island]; x <= maxX[island]; x++)
+                {
+                    int i = y*W + x;
+                    if (labels[i] == island)
+                        cells[n++] = i;
+                }
+        }
+        return new LandIndex(W, cells, n);
+    }
+}
@@ -0,0 +1,76 @@
+package piratemap.generate;
+
+import java.util.Random;
+
+/**
+ * Compact list of the grid locations of one landmass, for uniform sampling in
+ * constant time.
+ *
+ * Locations are packed as y * W + x.
+ */
+public class LandIndex
+{
+    /**
+     * Decides which locations to keep in filter().
+     */
+    public interface CellFilter
+    {
+        boolean accept(int x, int y);
+    }
+
+    private final int W;
+    private final int[] cells;
+    private final int size;
+
+    LandIndex(int W, int[] cells, int size)
+    {
+        this.W = W;
+        this.cells = cells;
+        this.size = size;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public int x(int n)
+    {
+        return cells[n] % W;
+    }
+
+    public int y(int n)
+    {
+        return cells[n] / W;
+    }
+
+    /**
+     * Uniformly random location from the index.
+     * @param rand
+     * @return null if the index is empty.
+     */
+    public PirateMap.Coord sample(Random rand)
+    {
+        if (size == 0)
+            return null;
+        int i = cells[rand.nextInt(size)];
+        return new PirateMap.Coord(i % W, i / W);
+    }
+
+    /**
+     * @param f
+     * @return New index with only the locations f accepts, in the same order.
+     */
+    public LandIndex filter(CellFilter f)
+    {
+        int[] out = new int[size];
+        int n = 0;
+        for (int k = 0; k < size; k++)
+        {
+            int i = cells[k];
+            if (f.accept(i % W, i / W))
+                out[n++] = i;
+        }
+        return new LandIndex(W, out, n);
+    }
+}
@@ -0,0 +1,412 @@
+package piratemap.generate;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+import javax.management.openmbean.CompositeData;
+
+import com.sun.management.GarbageCollectionNotificationInfo;
+
+import piratemap.generate.PirateMap.Options;
+import piratemap.utils.Histogram;
+import piratemap.utils.SeedTree;
+
+/**
+ * Drive the whole pipeline (generate, render, encode) with a fixed mix of
+ * requests under sustained load, and report throughput and latency percentiles.
+ *
+ * Closed loop (the default): --concurrency threads each send the next request
+ * as soon as the last one is done. Open loop (--rate): requests are due at a
+ * fixed rate whether or not earlier ones are done, and latency is measured from
+ * when a request was due, so a stall shows up in every request that waited
+ * behind it.
+ *
+ * The request mix is picked from --seeds, --sizes, --tileSizes and --formats
+ * with a Random seeded by --mixSeed, so runs can be repeated. GC pauses are
+ * collected from the GC MXBeans, to tell how many requests (and how many of
+ * the slowest) overlapped one.
+ */
+public class LoadTest
+{
+    private long seedFrom = 1, seedTo = 1000;
+    private String[] sizes = { "800" };
+    private int[] tileSizes = { 32 };
+    private String[] formats = { "png" };
+    private int treasures = 1;
+    private long mixSeed = 1;
+
+    private int concurrency = Runtime.getRuntime().availableProcessors();
+    private double rate;
+    private double duration = 30, warmup = 5;
+
+    private final Pipeline pipeline = new Pipeline(null);
+    private final AtomicBoolean stop = new AtomicBoolean();
+    private final AtomicLong errors = new AtomicLong(), cacheHits = new AtomicLong();
+    private volatile long measureFrom;
+
+    /**
+     * Latencies and start, end of every measured request of one thread.
+     * Merged at the end.
+     */
+    private static class Recorder
+    {
+        final Histogram latency = new Histogram();
+        long[] spans = new long[2048];
+        int n;
+
+        synchronized void record(long start, long end)
+        {
+            latency.add((end - start) / 1000);
+            if (n == spans.length)
+                spans = Arrays.copyOf(spans, n*2);
+            spans[n++] = start;
+            spans[n++] = end;
+        }
+    }
+
+    private final List<Recorder> recorders = Collections.synchronizedList(new ArrayList<Recorder>());
+    private final ThreadLocal<Recorder> recorder = new ThreadLocal<Recorder>() {
+        @Override
+        protected Recorder initialValue()
+        {
+            Recorder r = new Recorder();
+            recorders.add(r);
+            return r;
+        }
+    };
+
+    /**
+     * Buffers reused by the requests of one client thread.
+     */
+    private final ThreadLocal<Workspace> workspace = new ThreadLocal<Workspace>() {
+        @Override
+        protected Workspace initialValue()
+        {
+            return new Workspace();
+        }
+    };
+
+    /**
+     * GC pauses, as System.nanoTime start and end.
+     */
+    private final List<long[]> pauses = Collections.synchronizedList(new ArrayList<long[]>());
+
+    /**
+     * Next request of the mix.
+     */
+    Options request(Random mix)
+    {
+        Options o = new Options();
+        o.seed = seedFrom + (long) (mix.nextDouble() * (seedTo - seedFrom + 1));
+        String size = sizes[mix.nextInt(sizes.length)];
+        String[] wh = size.split("x");
+        o.imageX = Integer.parseInt(wh[0]);
+        o.imageY = wh.length > 1 ? Integer.parseInt(wh[1]) : o.imageX;
+        o.tileSize = tileSizes[mix.nextInt(tileSizes.length)];
+        o.format = formats[mix.nextInt(formats.length)];
+        o.treasures = treasures;
+        o.quiet = true;
+        return o;
+    }
+
+    /**
+     * Run one request, recording its latency from due if it is past warmup.
+     */
+    void execute(Options o, long due)
+    {
+        try
+        {
+            Pipeline.Result res = pipeline.run(o, new GenerationContext(), workspace.get());
+            if (res.cachedUpTo != null)
+                cacheHits.incrementAndGet();
+        } catch (Exception e)
+        {
+            errors.incrementAndGet();
+        }
+        long end = System.nanoTime();
+        if (due >= measureFrom)
+            recorder.get().record(due, end);
+    }
+
+    void runClosed(long end) throws InterruptedException
+    {
+        Thread[] workers = new Thread[concurrency];
+        for (int t = 0; t < concurrency; t++)
+        {
+            final Random mix = new SeedTree(mixSeed).child(t).random();
+            workers[t] = new Thread(new Runnable() {
+                @Override
+                public void run()
+                {
+                    while (!stop.get())
+                        execute(request(mix), System.nanoTime());
+                }
+            }, "LoadTest-" + t);
+            workers[t].start();
+        }
+        sleepUntil(end);
+        stop.set(true);
+        for (Thread t : workers)
+            t.join();
+    }
+
+    void runOpen(long start, long end) throws InterruptedException
+    {
+        ExecutorService pool = Executors.newFixedThreadPool(concurrency);
+        Random mix = new SeedTree(mixSeed).random();
+        double interval = 1e9 / rate;
+        for (long i = 0; ; i++)
+        {
+            final long due = start + (long) (i * interval);
+            if (due >= end)
+                break;
+            sleepUntil(due);
+            final Options o = request(mix);
+            pool.execute(new Runnable() {
+                @Override
+                public void run()
+                {
+                    execute(o, due);
+                }
+            });
+        }
+        pool.shutdown();
+        pool.awaitTermination(1, TimeUnit.HOURS);
+    }
+
+    private static void sleepUntil(long nanos) throws InterruptedException
+    {
+        long left;
+        while ((left = nanos - System.nanoTime()) > 0)
+            TimeUnit.NANOSECONDS.sleep(Math.min(left, 100000000L));
+    }
+
+    /**
+     * Listen for GC pauses. Notification times are JVM uptime in milliseconds,
+     * they are moved to System.nanoTime.
+     */
+    private void watchGc()
+    {
+        final long offset = System.nanoTime()
+                - ManagementFactory.getRuntimeMXBean().getUptime() * 1000000L;
+        NotificationListener l = new NotificationListener() {
+            @Override
+            public void handleNotification(Notification n, Object handback)
+            {
+                if (!GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION.equals(n.getType()))
+                    return;
+                GarbageCollectionNotificationInfo info =
+                        GarbageCollectionNotificationInfo.from((CompositeData) n.getUserData());
+                // Concurrent cycles run beside the application, they are not pauses
+                String name = info.getGcName();
+                if (name.contains("Concurrent") || name.contains("Cycles"))
+                    return;
+                long s = offset + info.getGcInfo().getStartTime() * 1000000L;
+                long e = offset + info.getGcInfo().getEndTime() * 1000000L;
+                pauses.add(new long[] { s, Math.max(e, s + 1) });
+            }
+        };
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans())
+        {
+            if (gc instanceof NotificationEmitter)
+                ((NotificationEmitter) gc).addNotificationListener(l, null, null);
+        }
+    }
+
+    void run() throws InterruptedException
+    {
+        watchGc();
+        long start = System.nanoTime();
+        measureFrom = start + (long) (warmup * 1e9);
+        long end = measureFrom + (long) (duration * 1e9);
+        if (rate > 0)
+            runOpen(start, end);
+        else
+            runClosed(end);
+        report(end);
+    }
+
+    private void report(long end)
+    {
+        Histogram all = new Histogram();
+        List<long[]> spans = new ArrayList<>();
+        for (Recorder r : recorders)
+        {
+            all.merge(r.latency);
+            for (int i = 0; i < r.n; i += 2)
+                spans.add(new long[] { r.spans[i], r.spans[i+1] });
+        }
+
+        // Pauses in the measured window
+        List<long[]> gc = new ArrayList<>();
+        long pauseNanos = 0, maxPause = 0;
+        synchronized (pauses)
+        {
+            for (long[] p : pauses)
+            {
+                if (p[1] < measureFrom || p[0] > end)
+                    continue;
+                gc.add(p);
+                pauseNanos += p[1] - p[0];
+                maxPause = Math.max(maxPause, p[1] - p[0]);
+            }
+        }
+        Collections.sort(gc, START_ORDER);
+
+        long p99 = all.percentile(99) * 1000;
+        int overlapping = 0, slow = 0, slowOverlapping = 0;
+        for (long[] s : spans)
+        {
+            boolean hit = overlapsAny(gc, s[0], s[1]);
+            if (hit)
+                overlapping++;
+            if (s[1] - s[0] > p99)
+            {
+                slow++;
+                if (hit)
+                    slowOverlapping++;
+            }
+        }
+
+        long n = all.count();
+        System.out.println(String.format(Locale.ROOT,
+                "%s, %d threads, %.0fs measured after %.0fs warmup",
+                rate > 0 ? String.format(Locale.ROOT, "open loop %.1f/s", rate) : "closed loop",
+                concurrency, duration, warmup));
+        System.out.println(String.format(Locale.ROOT,
+                "requests %d, errors %d, cache hits %d, throughput %.1f/s",
+                n, errors.get(), cacheHits.get(), n / duration));
+        System.out.println(String.format(Locale.ROOT,
+                "latency ms  p50 %.2f  p90 %.2f  p99 %.2f  p99.9 %.2f  max %.2f",
+                all.percentile(50) / 1e3, all.percentile(90) / 1e3, all.percentile(99) / 1e3,
+                all.percentile(99.9) / 1e3, all.max() / 1e3));
+        System.out.println(String.format(Locale.ROOT,
+                "gc pauses %d, total %.1fms (%.2f%% of the time), max %.1fms",
+                gc.size(), pauseNanos / 1e6, 100 * pauseNanos / (duration * 1e9), maxPause / 1e6));
+        System.out.println(String.format(Locale.ROOT,
+                "requests overlapping a gc pause %d (%.2f%%), of those slower than p99 %d of %d",
+                overlapping, n == 0 ? 0 : 100.0 * overlapping / n, slowOverlapping, slow));
+    }
+
+    private static final Comparator<long[]> START_ORDER = new Comparator<long[]>() {
+        @Override
+        public int compare(long[] a, long[] b)
+        {
+            return Long.compare(a[0], b[0]);
+        }
+    };
+
+    /**
+     * @param sorted Intervals sorted by start, not overlapping each other.
+     */
+    private static boolean overlapsAny(List<long[]> sorted, long start, long end)
+    {
+        // Last pause that starts before end
+        int lo = 0, hi = sorted.size() - 1, found = -1;
+        while (lo <= hi)
+        {
+            int mid = (lo + hi) >>> 1;
+            if (sorted.get(mid)[0] < end)
+            {
+                found = mid;
+                lo = mid + 1;
+            }
+            else
+                hi = mid - 1;
+        }
+        return found >= 0 && sorted.get(found)[1] > start;
+    }
+
+    static void usage()
+    {
+        System.out.println("LoadTest [--concurrency <n>] [--rate <requests/s>] [--duration <s>] [--warmup <s>]\n"
+                + "         [--seeds <from>-<to>] [--sizes <size>,..] [--tileSizes <n>,..]\n"
+                + "         [--formats png,svg,preview] [--treasures <n>] [--mixSeed <seed>]\n"
+                + "Default is a closed loop on all cores for 30s after 5s warmup,\n"
+                + "seeds 1-1000, size 800, tile size 32, png.");
+    }
+
+    private static void printArgError(String msg)
+    {
+        System.out.println(msg);
+        usage();
+        System.exit(0);
+    }
+
+    public static void main(String[] args) throws InterruptedException
+    {
+        LoadTest lt = new LoadTest();
+        for (int i = 0; i < args.length; i++)
+        {
+            String a = args[i];
+            if (i >= args.length - 1)
+                printArgError(a + " needs an arguement.");
+            String v = args[++i];
+            try
+            {
+                if ("--concurrency".equals(a))
+                    lt.concurrency = Math.max(1, Integer.parseInt(v));
+                else if ("--rate".equals(a))
+                    lt.rate = Double.parseDouble(v);
+                else if ("--duration".equals(a))
+                    lt.duration = Double.parseDouble(v);
+                else if ("--warmup".equals(a))
+                    lt.warmup = Double.parseDouble(v);
+                else if ("--seeds".equals(a))
+                {
+                    String[] r = v.split("-");
+                    lt.seedFrom = Long.parseLong(r[0]);
+                    lt.seedTo = r.length > 1 ? Long.parseLong(r[1]) : lt.seedFrom;
+                }
+                else if ("--sizes".equals(a))
+                    lt.sizes = v.split(",");
+                else if ("--tileSizes".equals(a))
+                {
+                    String[] t = v.split(",");
+                    lt.tileSizes = new int[t.length];
+                    for (int k = 0; k < t.length; k++)
+                        lt.tileSizes[k] = Integer.parseInt(t[k]);
+                }
+                else if ("--formats".equals(a))
+                {
+                    lt.formats = v.split(",");
+                    for (String f : lt.formats)
+                        if (!"png".equals(f) && !"svg".equals(f) && !"preview".equals(f))
+                            printArgError("Expecting png, svg or preview for --formats");
+                }
+                else if ("--treasures".equals(a))
+                    lt.treasures = Math.max(1, Integer.parseInt(v));
+                else if ("--mixSeed".equals(a))
+                    lt.mixSeed = Long.parseLong(v);
+                else
+                    printArgError("Invalid arguement " + a);
+            } catch (NumberFormatException e)
+            {
+                printArgError("Expecting a number for " + a + " " + e.getMessage());
+            }
+        }
+        if (lt.seedFrom < 1 || lt.seedTo < lt.seedFrom)
+            printArgError("--seeds must be a range of positive seeds");
+        // Sizes are checked up front rather than failing every request
+        for (String s : lt.sizes)
+            if (!s.matches("\\d+(x\\d+)?"))
+                printArgError("Bad size " + s + " in --sizes");
+
+        lt.run();
+    }
+}
@@ -0,0 +1,249 @@
+package piratemap.generate;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import piratemap.generate.PirateMap.Coord;
+import piratemap.generate.PirateMap.Options;
+import piratemap.generate.PirateMap.Tile;
+import piratemap.utils.Util;
+
+/**
+ * Hand edits to a map, painting tiles and moving marks, with only the part
+ * of the picture they change drawn again.
+ *
+ * The map records which locations each edit changes (see
+ * PirateMap.trackEdits). commit() plans again the routes the edits cross,
+ * then draws just the changed rectangles, each as a Patch to put over the
+ * picture from render(). Drawing goes through PirateMap.renderRegion, so a
+ * patch is exactly what drawing the whole edited map would give there, and
+ * an edit costs about its own size whatever the map size.
+ *
+ * Not safe to share between threads.
+ */
+public class MapEditor
+{
+    /**
+     * Part of the picture drawn again.
+     */
+    public static class Patch
+    {
+        /** Top left in pixels of the whole picture */
+        public final int x, y;
+        /** TYPE_INT_ARGB */
+        public final BufferedImage image;
+
+        Patch(int x, int y, BufferedImage image)
+        {
+            this.x = x;
+            this.y = y;
+            this.image = image;
+        }
+
+        public byte[] png() throws IOException
+        {
+            return Util.encodePng(image);
+        }
+    }
+
+    private final PirateMap map;
+    private final int tileSize;
+    private final long seed;
+
+    /**
+     * @param map Edited in place.
+     * @param tileSize Pixels per location, at least 4.
+     * @param seed For the decorations, see PirateMap.renderRegion.
+     */
+    public MapEditor(PirateMap map, int tileSize, long seed)
+    {
+        this.map = map;
+        this.tileSize = tileSize;
+        this.seed = seed;
+        map.trackEdits();
+    }
+
+    public PirateMap map()
+    {
+        return map;
+    }
+
+    /**
+     * @return The whole picture, for maps small enough for one image.
+     */
+    public BufferedImage render()
+    {
+        return draw(new Rectangle(0, 0, map.W, map.H));
+    }
+
+    public void setTile(int x, int y, Tile tile)
+    {
+        map.setTile(x, y, tile);
+    }
+
+    /**
+     * Set every location within radius of x, y (a disc) to tile.
+     */
+    public void paint(int x, int y, int radius, Tile tile)
+    {
+        for (int j = Math.max(y - radius, 0); j <= Math.min(y + radius, map.H - 1); j++)
+            for (int i = Math.max(x - radius, 0); i <= Math.min(x + radius, map.W - 1); i++)
+                if ((i-x)*(i-x) + (j-y)*(j-y) <= radius*radius)
+                    map.setTile(i, j, tile);
+    }
+
+    /**
+     * Move treasure i's mark, its route is planned again.
+     * @return false if no route was found from there.
+     * @throws IllegalArgumentException If x, y is off the map or water.
+     */
+    public boolean moveMark(int i, int x, int y)
+    {
+        return map.moveMark(i, new Coord(x, y));
+    }
+
+    /**
+     * Plan again the routes the edits so far cross, and draw what changed.
+     * A mark painted over with water moves to land, or loses its route if
+     * there is no land left, see PirateMap.commitEdits.
+     * @return Patches to put over the picture in order, see apply.
+     */
+    public List<Patch> commit()
+    {
+        map.commitEdits();
+        List<Patch> patches = new ArrayList<>();
+        for (Rectangle r : map.takeRedraw())
+        {
+            // One more location each side, at small tile sizes the X's stroke
+            // is wider than half a location
+            r.grow(1, 1);
+            r = r.intersection(new Rectangle(0, 0, map.W, map.H));
+            patches.add(new Patch(r.x*tileSize, r.y*tileSize, draw(r)));
+        }
+        return patches;
+    }
+
+    /**
+     * Locations r as an image, with everything reaching in from around it.
+     */
+    private BufferedImage draw(Rectangle r)
+    {
+        // Drawn with the margin in the image and the middle kept. Java2D
+        // samples a scaled sprite cut by the clip differently from the same
+        // sprite drawn whole, so sprites reaching over the edge of r must
+        // not be cut there. Nothing reaches further than the margin.
+        int m = 2, ts = tileSize;
+        BufferedImage all = new BufferedImage((r.width + 2*m)*ts, (r.height + 2*m)*ts,
+                BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g2 = all.createGraphics();
+        g2.translate(-(r.x - m)*ts, -(r.y - m)*ts);
+        map.renderRegion(g2, r.x - m, r.y - m, r.x + r.width + m, r.y + r.height + m, ts, seed);
+        g2.dispose();
+
+        BufferedImage im = new BufferedImage(r.width*ts, r.height*ts, BufferedImage.TYPE_INT_ARGB);
+        int[] from = ((DataBufferInt) all.getRaster().getDataBuffer()).getData();
+        int[] to = ((DataBufferInt) im.getRaster().getDataBuffer()).getData();
+        for (int y = 0; y < im.getHeight(); y++)
+            System.arraycopy(from, (y + m*ts)*all.getWidth() + m*ts, to, y*im.getWidth(), im.getWidth());
+        return im;
+    }
+
+    /**
+     * Put the patches over the picture, replacing what was there.
+     */
+    public static void apply(BufferedImage picture, List<Patch> patches)
+    {
+        Graphics2D g2 = picture.createGraphics();
+        g2.setComposite(AlphaComposite.Src);
+        for (Patch p : patches)
+            g2.drawImage(p.image, p.x, p.y, null);
+        g2.dispose();
+    }
+
+    /**
+     * Random brush strokes and mark moves on a generated map, checked
+     * against drawing the whole edited map again.
+     */
+    public static void main(String[] args) throws IOException
+    {
+        Options options = new Options();
+        options.tileSize = 16;
+        options.quiet = true;
+        int edits = 20;
+        List<String> rest = new ArrayList<>();
+        for (int i = 0; i < args.length; i++)
+        {
+            if ("--edits".equals(args[i]) && i < args.length - 1)
+                edits = Integer.parseInt(args[++i]);
+            else
+                rest.add(args[i]);
+        }
+        PirateMap.getOptions(rest.toArray(new String[rest.size()]), options);
+
+        PirateMap map = Pipeline.generate(options, Pipeline.Stage.ROUTE);
+        MapEditor editor = new MapEditor(map, options.tileSize, TilePyramid.renderSeed(options.seed));
+        BufferedImage picture = editor.render();
+
+        Random rand = new Random(options.seed);
+        Tile[] tiles = Tile.values();
+        long editNanos = 0, pixels = 0;
+        int patchCount = 0;
+        for (int e = 0; e < edits; e++)
+        {
+            long t0 = System.nanoTime();
+            if (e % 5 == 4 && !map.allTreasures().isEmpty())
+            {
+                // Move a mark to some land
+                for (int tries = 0; tries < 100; tries++)
+                {
+                    int x = rand.nextInt(map.W), y = rand.nextInt(map.H);
+                    if (map.getTile(x, y) != Tile.WATER)
+                    {
+                        editor.moveMark(0, x, y);
+                        break;
+                    }
+                }
+            }
+            else
+            {
+                int x = rand.nextInt(map.W), y = rand.nextInt(map.H);
+                Tile t = tiles[rand.nextInt(tiles.length)];
+                for (int s = 0; s < 8; s++)
+                    editor.paint(x + s, y + s/2, 1 + rand.nextInt(3), t);
+            }
+            List<Patch> patches = editor.commit();
+            for (Patch p : patches)
+            {
+                p.png();
+                pixels += (long) p.image.getWidth()*p.image.getHeight();
+            }
+            editNanos += System.nanoTime() - t0;
+            patchCount += patches.size();
+            apply(picture, patches);
+        }
+
+        long t0 = System.nanoTime();
+        BufferedImage full = editor.render();
+        long fullNanos = System.nanoTime() - t0;
+        int diff = 0;
+        for (int y = 0; y < full.getHeight(); y++)
+            for (int x = 0; x < full.getWidth(); x++)
+                if (full.getRGB(x, y) != picture.getRGB(x, y))
+                    diff++;
+        System.out.println(String.format(Locale.ROOT,
+                "%dx%d map, %d edits, %d patches, %.1f%% of the pixels each edit,"
+                + " %.1fms per edit with png, %.1fms to draw it all, %s",
+                map.W, map.H, edits, patchCount,
+                100.0 * pixels / edits / ((long) full.getWidth()*full.getHeight()),
+                editNanos / 1e6 / edits, fullNanos / 1e6,
+                diff == 0 ? "same as drawing it all" : diff + " pixels differ"));
+    }
+}
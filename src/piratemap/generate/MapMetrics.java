@@ -0,0 +1,92 @@
+package piratemap.generate;
+
+import static piratemap.generate.PirateMap.Tile.*;
+
+import java.util.List;
+
+import piratemap.generate.PirateMap.Coord;
+import piratemap.generate.PirateMap.Tile;
+import piratemap.generate.PirateMap.Treasure;
+
+/**
+ * Numbers that describe a generated map, for tools that look at lots of maps
+ * instead of rendering them. Route numbers add up over all treasures.
+ */
+public class MapMetrics
+{
+    public int W, H;
+    public int land, sand, hills, trees;
+
+    /** Treasures found, fewer than asked for if no mark spot was left */
+    public int treasures;
+    /** Treasures that have a mark but no route */
+    public int failedRoutes;
+
+    /** Route points */
+    public int routeLength;
+    /** Changes of direction along the routes */
+    public int turns;
+
+    /** Number of marks on each tile type, indexed by Tile ordinal */
+    public final int[] markTiles = new int[Tile.values().length];
+
+    public MapMetrics(PirateMap map)
+    {
+        W = map.W;
+        H = map.H;
+        for (int x = 0; x < W; x++)
+            for (int y = 0; y < H; y++)
+            {
+                Tile t = map.getTile(x, y);
+                if (t == WATER)
+                    continue;
+                land++;
+                if (t == SAND)
+                    sand++;
+                else if (t == HILL)
+                    hills++;
+                else if (t == TREES)
+                    trees++;
+            }
+
+        List<Treasure> all = map.allTreasures();
+        for (Treasure tr : all)
+        {
+            if (tr.mark == null)
+                continue;
+            treasures++;
+            markTiles[map.getTile(tr.mark).ordinal()]++;
+
+            if (tr.route == null || tr.route.isEmpty())
+            {
+                failedRoutes++;
+                continue;
+            }
+            routeLength += tr.route.size();
+            Coord last = null;
+            for (Coord c : tr.routeDirs)
+            {
+                if (last != null && !c.equals(last))
+                    turns++;
+                last = c;
+            }
+        }
+    }
+
+    /**
+     * @return Part of the map that is land, 0 to 1.
+     */
+    public double landFraction()
+    {
+        return (double) land / (W*H);
+    }
+
+    /**
+     * @param t
+     * @return True if there is at least one mark and every mark is on t.
+     */
+    public boolean allMarksOn(Tile t)
+    {
+        return treasures > 0 && markTiles[t.ordinal()] == treasures;
+    }
+}
@@ -0,0 +1,581 @@
+package piratemap.generate;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import piratemap.generate.PirateMap.Options;
+import piratemap.utils.SingleFlight;
+import piratemap.utils.Tileset;
+
+/**
+ * Serves maps over HTTP:
+ * <pre>
+ * GET /map?seed=42&amp;size=800x600&amp;tileSize=32&amp;format=png&amp;treasures=1
+ * </pre>
+ * Only seed is required, size is random (from the seed) if not given.
+ *
+ * The same parameters always give the same bytes, so every response has a
+ * strong ETag made from the parameters and the generator and renderer versions.
+ * A request whose If-None-Match has it gets a 304 without any work. Identical
+ * requests that arrive while one is being made wait for that one instead of
+ * making the map again.
+ *
+ * Every map has a deadline, a map that takes longer is abandoned with a 503
+ * so a runaway seed cannot hold on to a worker.
+ *
+ * Maps too big for one image are served as 256 pixel tiles, see TilePyramid:
+ * <pre>
+ * GET /tiles/z/x/y.png?seed=42&amp;size=128000x128000&amp;tileSize=32
+ * </pre>
+ * with the same parameters as /map, up to maxPyramidCells grid locations.
+ * Generating the map and drawing the tile share the /map deadline; tiles
+ * drawn before it passed are kept, so asking again goes on from there. The
+ * last few pyramids are kept, with one tile cache of 1024 tiles (256 MB)
+ * between them, and on disk under tileDir if given.
+ */
+public class MapServer
+{
+    private final Pipeline pipeline;
+    private final int maxSize;
+    private final long deadlineMillis;
+    private final SingleFlight<String, Pipeline.Result> flights = new SingleFlight<>();
+    private final long maxPyramidCells;
+    private final File tileDir;
+    // Maps of the last few pyramids, within a quarter of the heap, and the
+    // tiles of all of them in one cache
+    private final StageCache pyramids = new StageCache(4, Runtime.getRuntime().maxMemory() / 4);
+    private final StageCache pyramidTiles = new StageCache(Integer.MAX_VALUE, 1024 * TilePyramid.TILE_BYTES);
+    private final SingleFlight<String, TilePyramid> pyramidFlights = new SingleFlight<>();
+
+    // Only the encoded bytes of a result are used, so the map and image can
+    // live in the worker's buffers.
+    private final ThreadLocal<Workspace> workspace = new ThreadLocal<Workspace>() {
+        @Override
+        protected Workspace initialValue()
+        {
+            return new Workspace();
+        }
+    };
+
+    // For /stats. generated counts requests that were not coalesced, they may
+    // still have been served from the pipeline's cache.
+    private final AtomicLong requests = new AtomicLong(), notModified = new AtomicLong(),
+            generated = new AtomicLong(), timedOut = new AtomicLong(), tiles = new AtomicLong();
+
+    /**
+     * Bad request parameters.
+     */
+    static class BadRequestException extends Exception
+    {
+        private static final long serialVersionUID = 1L;
+
+        BadRequestException(String msg)
+        {
+            super(msg);
+        }
+    }
+
+    /**
+     * @param pipeline
+     * @param maxSize Largest image width or height.
+     * @param deadlineMillis Time allowed to make one map, 0 for no limit.
+     */
+    public MapServer(Pipeline pipeline, int maxSize, long deadlineMillis)
+    {
+        this(pipeline, maxSize, deadlineMillis, 0, null);
+    }
+
+    /**
+     * @param pipeline
+     * @param maxSize Largest image width or height.
+     * @param deadlineMillis Time allowed to make one map, 0 for no limit.
+     * @param maxPyramidCells Most grid locations (width times height in
+     * tiles) of a map for /tiles, 0 for no /tiles.
+     * @param tileDir Directory for tiles, null to keep them in memory only.
+     */
+    public MapServer(Pipeline pipeline, int maxSize, long deadlineMillis,
+            long maxPyramidCells, File tileDir)
+    {
+        this.pipeline = pipeline;
+        this.maxSize = maxSize;
+        this.deadlineMillis = deadlineMillis;
+        this.maxPyramidCells = maxPyramidCells;
+        this.tileDir = tileDir;
+    }
+
+    /**
+     * @param query Raw query string, may be null.
+     * @return Options for the request.
+     * @throws BadRequestException
+     */
+    Options parse(String query) throws BadRequestException
+    {
+        return parse(query, maxSize, PirateMap.MAX_CELLS);
+    }
+
+    /**
+     * @param maxSize Largest image width or height.
+     * @param maxCells Most grid locations, width times height in tiles.
+     */
+    private Options parse(String query, int maxSize, long maxCells) throws BadRequestException
+    {
+        Map<String, String> params = new HashMap<>();
+        if (query != null)
+        {
+            for (String kv : query.split("&"))
+            {
+                if (kv.isEmpty())
+                    continue;
+                int eq = kv.indexOf('=');
+                try
+                {
+                    String k = URLDecoder.decode(eq < 0 ? kv : kv.substring(0, eq), "UTF-8");
+                    String v = eq < 0 ? "" : URLDecoder.decode(kv.substring(eq+1), "UTF-8");
+                    params.put(k, v);
+                } catch (IOException | IllegalArgumentException e)
+                {
+                    throw new BadRequestException("Bad query " + kv);
+                }
+            }
+        }
+
+        Options o = new Options();
+        o.tileSize = 32;
+        o.quiet = true;
+        try
+        {
+            if (!params.containsKey("seed"))
+                throw new BadRequestException("seed is required");
+            o.seed = Long.parseLong(params.get("seed"));
+            if (o.seed <= 0)
+                throw new BadRequestException("seed must be positive");
+
+            if (params.containsKey("size"))
+            {
+                if (!params.get("size").matches("\\d+(x\\d+)?"))
+                    throw new BadRequestException("size must be <width>x<height> or <size>");
+                String[] wh = params.get("size").split("x");
+                o.imageX = Integer.parseInt(wh[0]);
+                o.imageY = wh.length > 1 ? Integer.parseInt(wh[1]) : o.imageX;
+            }
+            if (params.containsKey("tileSize"))
+                o.tileSize = Integer.parseInt(params.get("tileSize"));
+            if (params.containsKey("treasures"))
+                o.treasures = Integer.parseInt(params.get("treasures"));
+        } catch (NumberFormatException e)
+        {
+            throw new BadRequestException("Expecting a number " + e.getMessage());
+        }
+        if (params.containsKey("format"))
+            o.format = params.get("format");
+        o.legacyRandom = "true".equals(params.get("legacyRandom"));
+
+        if (!"png".equals(o.format) && !"svg".equals(o.format) && !"preview".equals(o.format)
+                && !"ascii".equals(o.format))
+            throw new BadRequestException("format must be png, svg, preview or ascii");
+        if (params.containsKey("renderer"))
+            o.renderer = params.get("renderer");
+        if (!"java2d".equals(o.renderer) && !"raster".equals(o.renderer))
+            throw new BadRequestException("renderer must be java2d or raster");
+        if (params.containsKey("theme"))
+        {
+            o.theme = params.get("theme");
+            try
+            {
+                Tileset.theme(o.theme);
+            } catch (IOException e)
+            {
+                throw new BadRequestException("No theme " + o.theme);
+            }
+        }
+        if (params.containsKey("previewSize"))
+        {
+            try
+            {
+                o.previewSize = Integer.parseInt(params.get("previewSize"));
+            } catch (NumberFormatException e)
+            {
+                throw new BadRequestException("Expecting a number " + e.getMessage());
+            }
+            if (o.previewSize < 1 || o.previewSize > maxSize)
+                throw new BadRequestException("previewSize must be 1 to " + maxSize);
+        }
+        if (o.tileSize < 4 || o.tileSize > 256)
+            throw new BadRequestException("tileSize must be 4 to 256");
+        if (o.treasures < 1 || o.treasures > 16)
+            throw new BadRequestException("treasures must be 1 to 16");
+        if (o.imageX != 0 || o.imageY != 0)
+        {
+            if (o.imageX / o.tileSize < 4 || o.imageY / o.tileSize < 4)
+                throw new BadRequestException("size must be at least 4 tiles");
+            if (o.imageX > maxSize || o.imageY > maxSize)
+                throw new BadRequestException("size must be at most " + maxSize);
+            if ((long) (o.imageX / o.tileSize) * (o.imageY / o.tileSize) > maxCells)
+                throw new BadRequestException("size must be at most " + maxCells
+                        + " locations, width times height in tiles");
+        }
+        return o;
+    }
+
+    /**
+     * Everything that decides the response bytes, before any work changes options.
+     */
+    static String requestKey(Options o)
+    {
+        return "v" + Pipeline.VERSION + ",r" + Pipeline.RENDERER_VERSION
+                + "," + o.seed + "," + o.imageX + "x" + o.imageY + "," + o.tileSize
+                + "," + o.treasures + "," + o.format + (o.legacyRandom ? ",legacy" : "")
+                + ("preview".equals(o.format) ? "," + o.previewSize : "")
+                + ("raster".equals(o.renderer) ? ",raster" : "")
+                + Pipeline.themeKey(o);
+    }
+
+    static String etag(String requestKey)
+    {
+        return "\"" + Pipeline.hash(requestKey) + "\"";
+    }
+
+    /**
+     * Weak comparison, as If-None-Match asks for.
+     */
+    static boolean matches(String ifNoneMatch, String etag)
+    {
+        if (ifNoneMatch == null)
+            return false;
+        for (String t : ifNoneMatch.split(","))
+        {
+            t = t.trim();
+            if (t.startsWith("W/"))
+                t = t.substring(2);
+            if (t.equals("*") || t.equals(etag))
+                return true;
+        }
+        return false;
+    }
+
+    private final HttpHandler mapHandler = new HttpHandler() {
+        @Override
+        public void handle(HttpExchange ex) throws IOException
+        {
+            try
+            {
+                requests.incrementAndGet();
+                String method = ex.getRequestMethod();
+                if (!"GET".equals(method) && !"HEAD".equals(method))
+                {
+                    ex.getResponseHeaders().set("Allow", "GET, HEAD");
+                    send(ex, 405, "text/plain", "Only GET and HEAD\n".getBytes(StandardCharsets.UTF_8));
+                    return;
+                }
+
+                final Options o;
+                try
+                {
+                    o = parse(ex.getRequestURI().getRawQuery());
+                } catch (BadRequestException e)
+                {
+                    send(ex, 400, "text/plain", (e.getMessage() + "\n").getBytes(StandardCharsets.UTF_8));
+                    return;
+                }
+
+                String key = requestKey(o);
+                String etag = etag(key);
+                ex.getResponseHeaders().set("ETag", etag);
+                ex.getResponseHeaders().set("Cache-Control", "public, max-age=86400");
+
+                if (matches(ex.getRequestHeaders().getFirst("If-None-Match"), etag))
+                {
+                    notModified.incrementAndGet();
+                    ex.sendResponseHeaders(304, -1);
+                    return;
+                }
+
+                Pipeline.Result res;
+                try
+                {
+                    res = flights.run(key, new Callable<Pipeline.Result>() {
+                        @Override
+                        public Pipeline.Result call() throws Exception
+                        {
+                            generated.incrementAndGet();
+                            return pipeline.run(o, new GenerationContext(deadlineMillis), workspace.get());
+                        }
+                    });
+                } catch (GenerationCancelledException e)
+                {
+                    timedOut.incrementAndGet();
+                    ex.getResponseHeaders().remove("ETag");
+                    ex.getResponseHeaders().remove("Cache-Control");
+                    send(ex, 503, "text/plain", ("Map took too long, " + e.getMessage() + "\n")
+                            .getBytes(StandardCharsets.UTF_8));
+                    return;
+                } catch (Exception e)
+                {
+                    ex.getResponseHeaders().remove("ETag");
+                    ex.getResponseHeaders().remove("Cache-Control");
+                    send(ex, 500, "text/plain", ("Could not make map, " + e.getMessage() + "\n")
+                            .getBytes(StandardCharsets.UTF_8));
+                    return;
+                }
+
+                send(ex, 200, "svg".equals(o.format) ? "image/svg+xml"
+                        : "ascii".equals(o.format) ? "text/plain; charset=utf-8" : "image/png", res.encoded);
+            } finally
+            {
+                ex.close();
+            }
+        }
+    };
+
+    /**
+     * GET /tiles/z/x/y.png?map parameters
+     */
+    private final HttpHandler tileHandler = new HttpHandler() {
+        @Override
+        public void handle(HttpExchange ex) throws IOException
+        {
+            try
+            {
+                requests.incrementAndGet();
+                String method = ex.getRequestMethod();
+                if (!"GET".equals(method) && !"HEAD".equals(method))
+                {
+                    ex.getResponseHeaders().set("Allow", "GET, HEAD");
+                    send(ex, 405, "text/plain", "Only GET and HEAD\n".getBytes(StandardCharsets.UTF_8));
+                    return;
+                }
+
+                final Options o;
+                int z, x, y;
+                try
+                {
+                    String[] zxy = ex.getRequestURI().getPath().substring("/tiles/".length())
+                            .replaceFirst("\\.png$", "").split("/");
+                    if (zxy.length != 3)
+                        throw new BadRequestException("Expecting /tiles/z/x/y.png");
+                    try
+                    {
+                        z = Integer.parseInt(zxy[0]);
+                        x = Integer.parseInt(zxy[1]);
+                        y = Integer.parseInt(zxy[2]);
+                    } catch (NumberFormatException e)
+                    {
+                        throw new BadRequestException("Expecting numbers in /tiles/z/x/y.png");
+                    }
+                    o = parse(ex.getRequestURI().getRawQuery(), Integer.MAX_VALUE, maxPyramidCells);
+                    if (!"png".equals(o.format))
+                        throw new BadRequestException("Tiles are png");
+                    if (!"java2d".equals(o.renderer))
+                        throw new BadRequestException("Tiles are drawn with java2d");
+                } catch (BadRequestException | StringIndexOutOfBoundsException e)
+                {
+                    send(ex, 400, "text/plain", (e.getMessage() + "\n").getBytes(StandardCharsets.UTF_8));
+                    return;
+                }
+
+                final String key = requestKey(o);
+                String etag = etag(key + "," + z + "/" + x + "/" + y);
+                ex.getResponseHeaders().set("ETag", etag);
+                ex.getResponseHeaders().set("Cache-Control", "public, max-age=86400");
+                if (matches(ex.getRequestHeaders().getFirst("If-None-Match"), etag))
+                {
+                    notModified.incrementAndGet();
+                    ex.sendResponseHeaders(304, -1);
+                    return;
+                }
+
+                byte[] png;
+                try
+                {
+                    // One deadline for making the map and drawing the tile
+                    GenerationContext ctx = new GenerationContext(deadlineMillis);
+                    TilePyramid pyramid = pyramid(key, o, ctx);
+                    ctx.stage("tiles");
+                    png = pyramid.png(z, x, y, ctx);
+                } catch (GenerationCancelledException e)
+                {
+                    timedOut.incrementAndGet();
+                    ex.getResponseHeaders().remove("ETag");
+                    ex.getResponseHeaders().remove("Cache-Control");
+                    send(ex, 503, "text/plain", ("Map took too long, " + e.getMessage() + "\n")
+                            .getBytes(StandardCharsets.UTF_8));
+                    return;
+                } catch (Exception e)
+                {
+                    ex.getResponseHeaders().remove("ETag");
+                    ex.getResponseHeaders().remove("Cache-Control");
+                    send(ex, 500, "text/plain", ("Could not make tile, " + e.getMessage() + "\n")
+                            .getBytes(StandardCharsets.UTF_8));
+                    return;
+                }
+                if (png == null)
+                {
+                    send(ex, 404, "text/plain", "No such tile\n".getBytes(StandardCharsets.UTF_8));
+                    return;
+                }
+                tiles.incrementAndGet();
+                send(ex, 200, "image/png", png);
+            } finally
+            {
+                ex.close();
+            }
+        }
+    };
+
+    /**
+     * The pyramid for a map, generating the map if it is not one of the
+     * last few asked for.
+     * @throws GenerationCancelledException If generating went past ctx's deadline.
+     */
+    private TilePyramid pyramid(final String key, final Options o, final GenerationContext ctx)
+            throws Exception
+    {
+        TilePyramid p = (TilePyramid) pyramids.get(key);
+        if (p != null)
+            return p;
+        return pyramidFlights.run(key, new Callable<TilePyramid>() {
+            @Override
+            public TilePyramid call() throws Exception
+            {
+                TilePyramid p = (TilePyramid) pyramids.get(key);
+                if (p != null)
+                    return p;
+                generated.incrementAndGet();
+                PirateMap map = Pipeline.generate(o, Pipeline.Stage.ROUTE, ctx);
+                // The pyramid outlives the request, tile() is given each one's deadline
+                map.context = new GenerationContext();
+                p = new TilePyramid(map, o.tileSize, TilePyramid.renderSeed(o.seed),
+                        Tileset.theme(o.theme),
+                        tileDir == null ? null : new File(tileDir, Pipeline.hash(key)),
+                        pyramidTiles, Pipeline.hash(key) + ":");
+                // Mostly the grid, a Tile reference a location
+                pyramids.put(key, p, 8L * map.W * map.H);
+                return p;
+            }
+        });
+    }
+
+    private final HttpHandler statsHandler = new HttpHandler() {
+        @Override
+        public void handle(HttpExchange ex) throws IOException
+        {
+            try
+            {
+                String text = "requests " + requests.get() + "\nnot modified " + notModified.get()
+                        + "\ngenerated " + generated.get() + "\ntimed out " + timedOut.get()
+                        + "\nin flight " + flights.inFlight() + "\ntiles " + tiles.get() + "\n";
+                send(ex, 200, "text/plain", text.getBytes(StandardCharsets.UTF_8));
+            } finally
+            {
+                ex.close();
+            }
+        }
+    };
+
+    private static void send(HttpExchange ex, int status, String type, byte[] body) throws IOException
+    {
+        ex.getResponseHeaders().set("Content-Type", type);
+        boolean head = "HEAD".equals(ex.getRequestMethod());
+        ex.sendResponseHeaders(status, head ? -1 : body.length);
+        if (!head)
+        {
+            try (OutputStream out = ex.getResponseBody())
+            {
+                out.write(body);
+            }
+        }
+    }
+
+    /**
+     * @param port
+     * @param threads
+     * @return The running server.
+     * @throws IOException
+     */
+    public HttpServer start(int port, int threads) throws IOException
+    {
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/map", mapHandler);
+        server.createContext("/stats", statsHandler);
+        if (maxPyramidCells > 0)
+            server.createContext("/tiles/", tileHandler);
+        server.setExecutor(Executors.newFixedThreadPool(threads));
+        server.start();
+        return server;
+    }
+
+    static void usage()
+    {
+        System.out.println("MapServer [--port <port>] [--threads <n>] [--cacheDir <dir>] [--maxSize <pixels>]\n"
+                + "          [--deadline <ms>] [--maxPyramidCells <locations>]\n"
+                + "Default port is 8080, threads one per core, max size 4096, deadline 10000ms,\n"
+                + "max pyramid cells 16777216.\n"
+                + "GET /map?seed=<seed>[&size=<x>x<y>][&tileSize=<n>][&format=png|svg|preview|ascii]\n"
+                + "         [&treasures=<n>][&previewSize=<n>][&renderer=java2d|raster]\n"
+                + "         [&theme=<name>]\n"
+                + "GET /tiles/<z>/<x>/<y>.png?seed=<seed>[&size=<x>x<y>][&tileSize=<n>][&treasures=<n>]\n"
+                + "         [&theme=<name>]\n"
+                + "GET /stats");
+    }
+
+    private static void printArgError(String msg)
+    {
+        System.out.println(msg);
+        usage();
+        System.exit(0);
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        int port = 8080, maxSize = 4096;
+        long deadline = 10000, maxPyramidCells = 1 << 24;
+        int threads = Runtime.getRuntime().availableProcessors();
+        String cacheDir = null;
+        for (int i = 0; i < args.length; i++)
+        {
+            String a = args[i];
+            if (i >= args.length - 1)
+                printArgError(a + " needs an arguement.");
+            String v = args[++i];
+            try
+            {
+                if ("--port".equals(a))
+                    port = Integer.parseInt(v);
+                else if ("--threads".equals(a))
+                    threads = Math.max(1, Integer.parseInt(v));
+                else if ("--maxSize".equals(a))
+                    maxSize = Integer.parseInt(v);
+                else if ("--maxPyramidCells".equals(a))
+                    maxPyramidCells = Long.parseLong(v);
+                else if ("--deadline".equals(a))
+                    deadline = Long.parseLong(v);
+                else if ("--cacheDir".equals(a))
+                    cacheDir = v;
+                else
+                    printArgError("Invalid arguement " + a);
+            } catch (NumberFormatException e)
+            {
+                printArgError("Expecting a number for " + a + " " + e.getMessage());
+            }
+        }
+
+        MapServer server = new MapServer(
+                new Pipeline(cacheDir == null ? null : new File(cacheDir)), maxSize, deadline,
+                maxPyramidCells, cacheDir == null ? null : new File(cacheDir, "tiles"));
+        server.start(port, threads);
+        System.out.println("Serving maps on port " + port);
+    }
+}
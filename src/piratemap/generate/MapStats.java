@@ -0,0 +1,218 @@
+package piratemap.generate;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+import piratemap.generate.PirateMap.Options;
+import piratemap.generate.Pipeline.Stage;
+import piratemap.utils.Histogram;
+import piratemap.utils.RunningStats;
+
+/**
+ * --stats: generate lots of maps on all cores and print distributions of what
+ * came out and how long it took, without keeping any of the maps.
+ *
+ * Every thread fills its own Accumulator, they are merged once at the end, so
+ * threads never share anything but the seed counter. Only the grid stages
+ * run, like SeedSearch.
+ */
+class MapStats
+{
+    private static final Stage LAST = Stage.ROUTE;
+
+    /**
+     * Mean, deviation and percentiles of one number. Percentiles come from a
+     * histogram of value * scale, so scale sets the resolution.
+     */
+    private static class Metric
+    {
+        final String name;
+        final double scale;
+        final RunningStats stats = new RunningStats();
+        final Histogram hist = new Histogram();
+
+        Metric(String name, double scale)
+        {
+            this.name = name;
+            this.scale = scale;
+        }
+
+        void add(double v)
+        {
+            stats.add(v);
+            hist.add(Math.round(v * scale));
+        }
+
+        void merge(Metric other)
+        {
+            stats.merge(other.stats);
+            hist.merge(other.hist);
+        }
+
+        String format()
+        {
+            return String.format(Locale.ROOT,
+                    "%-16s %10.2f %9.2f %9.2f %9.2f %9.2f %9.2f %10.2f",
+                    name, stats.mean(), stats.stddev(), stats.min(),
+                    hist.percentile(50) / scale, hist.percentile(90) / scale,
+                    hist.percentile(99) / scale, stats.max());
+        }
+    }
+
+    /**
+     * Everything one thread collects.
+     */
+    private static class Accumulator implements Pipeline.StageListener
+    {
+        final Metric land = new Metric("land %", 10);
+        final Metric hills = new Metric("hills", 1);
+        final Metric trees = new Metric("trees", 1);
+        final Metric routeLength = new Metric("route length", 1);
+        final Metric turns = new Metric("turns", 1);
+        final Metric retries = new Metric("route retries", 1);
+        // Milliseconds, histograms in microseconds
+        final Metric[] stageTime = new Metric[LAST.ordinal() + 1];
+        final Metric totalTime = new Metric("total ms", 1000);
+
+        long maps, treasuresWanted, missingMarks, failedRoutes, failedMaps;
+        private long nanos;
+
+        Accumulator()
+        {
+            for (int i = 0; i < stageTime.length; i++)
+                stageTime[i] = new Metric(Stage.values()[i].name().toLowerCase() + " ms", 1000);
+        }
+
+        @Override
+        public void stageDone(Stage stage, PirateMap map, long nanos)
+        {
+            stageTime[stage.ordinal()].add(nanos / 1e6);
+            this.nanos += nanos;
+        }
+
+        void add(PirateMap map, int wanted)
+        {
+            totalTime.add(nanos / 1e6);
+            nanos = 0;
+
+            MapMetrics m = new MapMetrics(map);
+            maps++;
+            treasuresWanted += wanted;
+            missingMarks += wanted - m.treasures;
+            failedRoutes += m.failedRoutes;
+            if (m.treasures < wanted || m.failedRoutes > 0)
+                failedMaps++;
+
+            land.add(100 * m.landFraction());
+            hills.add(m.hills);
+            trees.add(m.trees);
+            if (m.treasures > m.failedRoutes)
+            {
+                routeLength.add(m.routeLength);
+                turns.add(m.turns);
+            }
+            retries.add(map.routeRetries);
+        }
+
+        void merge(Accumulator o)
+        {
+            land.merge(o.land);
+            hills.merge(o.hills);
+            trees.merge(o.trees);
+            routeLength.merge(o.routeLength);
+            turns.merge(o.turns);
+            retries.merge(o.retries);
+            for (int i = 0; i < stageTime.length; i++)
+                stageTime[i].merge(o.stageTime[i]);
+            totalTime.merge(o.totalTime);
+            maps += o.maps;
+            treasuresWanted += o.treasuresWanted;
+            missingMarks += o.missingMarks;
+            failedRoutes += o.failedRoutes;
+            failedMaps += o.failedMaps;
+        }
+    }
+
+    /**
+     * Make count maps, seeds counting up from options.seed (1 if not given),
+     * and print the stats.
+     * @param options Size and treasures for all maps.
+     * @param count
+     */
+    static void run(final Options options, final int count)
+    {
+        final long first = options.seed > 0 ? options.seed : 1;
+        final AtomicLong next = new AtomicLong(first);
+        int threads = Math.min(count, Runtime.getRuntime().availableProcessors());
+        final Accumulator[] accs = new Accumulator[threads];
+        Thread[] workers = new Thread[threads];
+
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++)
+        {
+            final Accumulator acc = accs[t] = new Accumulator();
+            workers[t] = new Thread(new Runnable() {
+                @Override
+                public void run()
+                {
+                    Workspace ws = new Workspace();
+                    long seed;
+                    while ((seed = next.getAndIncrement()) < first + count)
+                    {
+                        Options o = new Options();
+                        o.imageX = options.imageX;
+                        o.imageY = options.imageY;
+                        o.tileSize = options.tileSize;
+                        o.treasures = options.treasures;
+                        o.legacyRandom = options.legacyRandom;
+                        o.quiet = true;
+                        o.seed = seed;
+
+                        acc.add(Pipeline.generate(o, LAST, acc, ws), o.treasures);
+                    }
+                }
+            }, "MapStats-" + t);
+            workers[t].start();
+        }
+
+        Accumulator all = new Accumulator();
+        for (int t = 0; t < threads; t++)
+        {
+            try
+            {
+                workers[t].join();
+            } catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            all.merge(accs[t]);
+        }
+        double secs = (System.nanoTime() - start) / 1e9;
+
+        System.out.println(String.format(Locale.ROOT,
+                "%d maps, seeds %d to %d, %d threads, %.2fs, %.0f maps/s",
+                all.maps, first, first + count - 1, threads, secs, all.maps / secs));
+        System.out.println(String.format(Locale.ROOT,
+                "%-16s %10s %9s %9s %9s %9s %9s %10s",
+                "", "mean", "stddev", "min", "p50", "p90", "p99", "max"));
+        for (Metric m : new Metric[] { all.land, all.hills, all.trees,
+                all.routeLength, all.turns, all.retries })
+            System.out.println(m.format());
+        for (Metric m : all.stageTime)
+            System.out.println(m.format());
+        System.out.println(all.totalTime.format());
+
+        System.out.println(String.format(Locale.ROOT,
+                "Mark spot not found %d of %d treasures (%.2f%%), route fail %d (%.2f%%),"
+                + " maps with a failure %d (%.2f%%)",
+                all.missingMarks, all.treasuresWanted, percent(all.missingMarks, all.treasuresWanted),
+                all.failedRoutes, percent(all.failedRoutes, all.treasuresWanted),
+                all.failedMaps, percent(all.failedMaps, all.maps)));
+    }
+
+    private static double percent(long n, long of)
+    {
+        return of == 0 ? 0 : 100.0 * n / of;
+    }
+}
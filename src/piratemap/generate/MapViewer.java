@@ -0,0 +1,443 @@
+package piratemap.generate;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.event.MouseWheelEvent;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import javax.swing.JComponent;
+import javax.swing.JFrame;
+import javax.swing.SwingUtilities;
+
+import piratemap.generate.PirateMap.Options;
+import piratemap.utils.Tileset;
+import piratemap.utils.Util;
+
+/**
+ * Pannable, zoomable view of a map that keeps only the grid, never the whole
+ * picture.
+ *
+ * The view is cut into 256 x 256 pixel tiles at the current zoom. Painting
+ * draws the tiles that are ready and asks for the visible ones, and a ring
+ * around them, to be drawn on background threads, which repaint when done.
+ * Close in, from 4 pixels per location, tiles are the full picture (see
+ * TilePyramid.render), further out flat colours (see Preview.region). Either
+ * way a tile reads only the locations under it, so the first pixels come as
+ * quickly for a huge map as for a small one.
+ *
+ * Drag to pan, mouse wheel to zoom. Without a screen, snapshot() draws the
+ * view into an image, which is what main's --headless does.
+ */
+public class MapViewer extends JComponent
+{
+    private static final long serialVersionUID = 1L;
+
+    public static final int TILE = TilePyramid.TILE;
+    /** Zoom z is 2^z pixels per location */
+    public static final int MIN_ZOOM = -6, MAX_ZOOM = 6;
+    /** Zoom from which tiles are the full picture */
+    private static final int DETAIL_ZOOM = 2;
+    /** Tiles drawn around the visible ones, so panning a little shows no gaps */
+    private static final int MARGIN = 1;
+
+    private static final Color BACKGROUND = new Color(0x1d3550);
+    private static final Color PENDING = new Color(0x3f74a8);
+
+    private final PirateMap map;
+    private final long seed;
+    private final StageCache tiles;
+    private final ExecutorService workers;
+
+    // Tiles queued or being drawn, and the ones the view still wants, guarded by itself
+    private final Set<String> pending = new HashSet<>();
+    private Set<String> wanted = Collections.emptySet();
+    private volatile long firstTile;
+    // First tile that failed to draw, for snapshot() to throw
+    private volatile RuntimeException failed;
+
+    // View, on the event thread: zoom and the top left in pixels at that zoom
+    private int zoom;
+    private long viewX, viewY;
+    private Point drag;
+
+    /**
+     * @param map Must not change while viewed.
+     * @param seed For the decorations, see PirateMap.renderRegion.
+     * @param cachedTiles Tiles kept in memory, 256 KB each.
+     */
+    public MapViewer(PirateMap map, long seed, int cachedTiles)
+    {
+        this.map = map;
+        this.seed = seed;
+        tiles = new StageCache(cachedTiles);
+        int threads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        workers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, "map-viewer");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        setPreferredSize(new Dimension(1024, 768));
+        setOpaque(true);
+        MouseAdapter mouse = new MouseAdapter() {
+            @Override
+            public void mousePressed(MouseEvent e)
+            {
+                drag = e.getPoint();
+            }
+
+            @Override
+            public void mouseDragged(MouseEvent e)
+            {
+                if (drag == null)
+                    return;
+                viewX -= e.getX() - drag.x;
+                viewY -= e.getY() - drag.y;
+                drag = e.getPoint();
+                repaint();
+            }
+
+            @Override
+            public void mouseReleased(MouseEvent e)
+            {
+                drag = null;
+            }
+
+            @Override
+            public void mouseWheelMoved(MouseWheelEvent e)
+            {
+                setZoom(zoom - e.getWheelRotation(), e.getX(), e.getY());
+            }
+        };
+        addMouseListener(mouse);
+        addMouseMotionListener(mouse);
+        addMouseWheelListener(mouse);
+    }
+
+    /**
+     * Zoom that fits the whole map in width x height pixels.
+     */
+    public int fitZoom(int width, int height)
+    {
+        int z = MAX_ZOOM;
+        while (z > MIN_ZOOM && (Math.scalb((double) map.W, z) > width
+                || Math.scalb((double) map.H, z) > height))
+            z--;
+        return z;
+    }
+
+    public int getZoom()
+    {
+        return zoom;
+    }
+
+    /**
+     * Change zoom keeping the map location under component pixel px, py in place.
+     */
+    public void setZoom(int z, int px, int py)
+    {
+        z = Math.max(MIN_ZOOM, Math.min(MAX_ZOOM, z));
+        if (z == zoom)
+            return;
+        double f = Math.scalb(1.0, z - zoom);
+        viewX = (long) Math.floor((viewX + px) * f) - px;
+        viewY = (long) Math.floor((viewY + py) * f) - py;
+        zoom = z;
+        repaint();
+    }
+
+    /**
+     * Put map location x, y at the middle of the view.
+     */
+    public void centerOn(double x, double y)
+    {
+        double scale = Math.scalb(1.0, zoom);
+        viewX = (long) Math.floor(x * scale) - getWidth() / 2;
+        viewY = (long) Math.floor(y * scale) - getHeight() / 2;
+        repaint();
+    }
+
+    @Override
+    protected void paintComponent(Graphics g)
+    {
+        paintView((Graphics2D) g, getWidth(), getHeight());
+    }
+
+    /**
+     * Draw the tiles that are ready, ask for the rest.
+     * @return Number of visible tiles not ready yet.
+     */
+    private int paintView(Graphics2D g2, int width, int height)
+    {
+        g2.setColor(BACKGROUND);
+        g2.fillRect(0, 0, width, height);
+
+        long mapW = (long) Math.ceil(Math.scalb((double) map.W, zoom));
+        long mapH = (long) Math.ceil(Math.scalb((double) map.H, zoom));
+        long tx0 = Math.floorDiv(viewX, TILE), ty0 = Math.floorDiv(viewY, TILE);
+        long tx1 = Math.floorDiv(viewX + width - 1, TILE), ty1 = Math.floorDiv(viewY + height - 1, TILE);
+        long lastX = (mapW - 1) / TILE, lastY = (mapH - 1) / TILE;
+
+        // Visible tiles first, nearest the middle first, then the margin
+        List<long[]> want = new ArrayList<>();
+        int missing = 0;
+        for (long ty = Math.max(ty0, 0); ty <= Math.min(ty1, lastY); ty++)
+            for (long tx = Math.max(tx0, 0); tx <= Math.min(tx1, lastX); tx++)
+            {
+                int x = (int) (tx*TILE - viewX), y = (int) (ty*TILE - viewY);
+                BufferedImage im = (BufferedImage) tiles.get(key(zoom, tx, ty));
+                if (im != null)
+                    g2.drawImage(im, x, y, null);
+                else
+                {
+                    g2.setColor(PENDING);
+                    g2.fillRect(x, y, (int) Math.min(TILE, mapW - tx*TILE),
+                            (int) Math.min(TILE, mapH - ty*TILE));
+                    want.add(new long[] {tx, ty});
+                    missing++;
+                }
+            }
+        final double cx = (tx0 + tx1) / 2.0, cy = (ty0 + ty1) / 2.0;
+        Collections.sort(want, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] a, long[] b)
+            {
+                return Double.compare(Math.hypot(a[0] - cx, a[1] - cy), Math.hypot(b[0] - cx, b[1] - cy));
+            }
+        });
+        for (long ty = Math.max(ty0 - MARGIN, 0); ty <= Math.min(ty1 + MARGIN, lastY); ty++)
+            for (long tx = Math.max(tx0 - MARGIN, 0); tx <= Math.min(tx1 + MARGIN, lastX); tx++)
+                if ((tx < tx0 || tx > tx1 || ty < ty0 || ty > ty1)
+                        && tiles.get(key(zoom, tx, ty)) == null)
+                    want.add(new long[] {tx, ty});
+        request(want);
+        return missing;
+    }
+
+    private static String key(int zoom, long tx, long ty)
+    {
+        return zoom + "/" + tx + "/" + ty;
+    }
+
+    /**
+     * Queue the tiles not queued yet. Queued tiles the view has moved away
+     * from are dropped when their turn comes.
+     */
+    private void request(List<long[]> want)
+    {
+        Set<String> keys = new HashSet<>();
+        List<long[]> queue = new ArrayList<>();
+        synchronized (pending)
+        {
+            for (long[] t : want)
+            {
+                String key = key(zoom, t[0], t[1]);
+                keys.add(key);
+                if (pending.add(key))
+                    queue.add(t);
+            }
+            wanted = keys;
+        }
+        for (long[] t : queue)
+        {
+            final int z = zoom;
+            final long tx = t[0], ty = t[1];
+            workers.execute(new Runnable() {
+                @Override
+                public void run()
+                {
+                    drawTile(z, tx, ty);
+                }
+            });
+        }
+    }
+
+    private void drawTile(int z, long tx, long ty)
+    {
+        String key = key(z, tx, ty);
+        try
+        {
+            synchronized (pending)
+            {
+                if (!wanted.contains(key))
+                    return;
+            }
+            BufferedImage im;
+            if (z >= DETAIL_ZOOM)
+                im = TilePyramid.render(map, 1 << z, seed, Tileset.defaultTheme(), (int) tx, (int) ty);
+            else
+            {
+                im = new BufferedImage(TILE, TILE, BufferedImage.TYPE_INT_ARGB);
+                Preview.region(map, im, tx*TILE, ty*TILE, Math.scalb(1.0, z));
+            }
+            tiles.put(key, im);
+            if (firstTile == 0)
+                firstTile = System.nanoTime();
+        } catch (RuntimeException e)
+        {
+            if (failed == null)
+                failed = e;
+            throw e;
+        } finally
+        {
+            synchronized (pending)
+            {
+                pending.remove(key);
+                pending.notifyAll();
+            }
+        }
+        repaint();
+    }
+
+    /**
+     * Draw the view as it is once every visible tile is ready, without a
+     * screen. The component's size is the image size.
+     * @return The view, TYPE_INT_RGB.
+     * @throws IllegalStateException If a tile failed to draw.
+     */
+    public BufferedImage snapshot() throws InterruptedException
+    {
+        BufferedImage im = new BufferedImage(getWidth(), getHeight(), BufferedImage.TYPE_INT_RGB);
+        while (true)
+        {
+            Graphics2D g2 = im.createGraphics();
+            int missing = paintView(g2, im.getWidth(), im.getHeight());
+            g2.dispose();
+            if (missing == 0)
+                return im;
+            synchronized (pending)
+            {
+                while (!pending.isEmpty())
+                    pending.wait();
+            }
+            if (failed != null)
+                throw new IllegalStateException("Could not draw a tile", failed);
+        }
+    }
+
+    /**
+     * Open a window on the map.
+     */
+    public static void show(final PirateMap map, final long seed)
+    {
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run()
+            {
+                MapViewer viewer = new MapViewer(map, seed, 512);
+                JFrame jf = new JFrame("Pirate map " + map.W + "x" + map.H);
+                jf.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+                jf.getContentPane().add(viewer);
+                jf.pack();
+                Dimension d = viewer.getPreferredSize();
+                viewer.setZoom(viewer.fitZoom(d.width, d.height), 0, 0);
+                viewer.centerOn(map.W / 2.0, map.H / 2.0);
+                jf.setVisible(true);
+            }
+        });
+    }
+
+    private static void usage()
+    {
+        System.out.println("MapViewer [--headless <width>x<height> --out <file.png>]"
+                + " [--zoom <z>] [--center <x>,<y>] <PirateMap options>\n"
+                + "Zoom z is 2^z pixels per location, " + MIN_ZOOM + " to " + MAX_ZOOM
+                + ", default fits the map.\n"
+                + "--size is in grid locations times --tileSize, as for PirateMap.");
+    }
+
+    private static void printArgError(String msg)
+    {
+        System.out.println(msg);
+        usage();
+        System.exit(0);
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException
+    {
+        Options options = new Options();
+        options.tileSize = 32;
+        options.quiet = true;
+        int[] headless = null;
+        Integer zoom = null;
+        double[] center = null;
+        String out = null;
+
+        // Anything not ours goes to PirateMap
+        List<String> rest = new ArrayList<>();
+        try
+        {
+            for (int i = 0; i < args.length; i++)
+            {
+                if ("--headless".equals(args[i]) && i < args.length - 1)
+                {
+                    String[] wh = args[++i].split("x");
+                    headless = new int[] {Integer.parseInt(wh[0]), Integer.parseInt(wh[1])};
+                }
+                else if ("--zoom".equals(args[i]) && i < args.length - 1)
+                    zoom = Integer.parseInt(args[++i]);
+                else if ("--center".equals(args[i]) && i < args.length - 1)
+                {
+                    String[] xy = args[++i].split(",");
+                    center = new double[] {Double.parseDouble(xy[0]), Double.parseDouble(xy[1])};
+                }
+                else if ("--out".equals(args[i]) && i < args.length - 1)
+                    out = args[++i];
+                else
+                    rest.add(args[i]);
+            }
+        } catch (RuntimeException e)
+        {
+            printArgError("Bad argument " + e.getMessage());
+        }
+        if (headless != null && out == null)
+            printArgError("--headless needs --out");
+        PirateMap.getOptions(rest.toArray(new String[rest.size()]), options);
+
+        long t0 = System.nanoTime();
+        PirateMap map = Pipeline.generate(options, Pipeline.Stage.ROUTE);
+        long seed = TilePyramid.renderSeed(options.seed);
+        if (headless == null)
+        {
+            show(map, seed);
+            return;
+        }
+
+        long t1 = System.nanoTime();
+        MapViewer viewer = new MapViewer(map, seed, 512);
+        viewer.setSize(headless[0], headless[1]);
+        viewer.setZoom(zoom != null ? zoom : viewer.fitZoom(headless[0], headless[1]), 0, 0);
+        if (center == null)
+            center = new double[] {map.W / 2.0, map.H / 2.0};
+        viewer.centerOn(center[0], center[1]);
+        BufferedImage im = viewer.snapshot();
+        long t2 = System.nanoTime();
+        Files.write(new File(out).toPath(), Util.encodePng(im));
+        System.out.println(String.format(Locale.ROOT,
+                "%dx%d map, zoom %d, generated in %.1fs, first tile in %.0fms, view in %.0fms",
+                map.W, map.H, viewer.getZoom(), (t1 - t0) / 1e9,
+                (viewer.firstTile - t1) / 1e6, (t2 - t1) / 1e6));
+    }
+}
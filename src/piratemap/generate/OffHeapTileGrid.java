@@ -0,0 +1,51 @@
+package piratemap.generate;
+
+import piratemap.generate.PirateMap.Tile;
+import piratemap.utils.OffHeapBuffer;
+
+/**
+ * Tiles as one byte each (the Tile ordinal) in an off heap buffer, row major
+ * with long indexes, so the grid does not add to the garbage collector's
+ * work. Maps are still limited to PirateMap.MAX_CELLS locations by the int
+ * indexed arrays of the other stages.
+ */
+class OffHeapTileGrid implements TileGrid
+{
+    private static final Tile[] TILES = Tile.values();
+
+    private final OffHeapBuffer buf;
+    private final int stride;
+
+    /**
+     * @param buf At least stride * rows bytes.
+     * @param stride Row length.
+     */
+    OffHeapTileGrid(OffHeapBuffer buf, int stride)
+    {
+        this.buf = buf;
+        this.stride = stride;
+    }
+
+    @Override
+    public Tile get(int x, int y)
+    {
+        return TILES[buf.getByte((long) y*stride + x)];
+    }
+
+    @Override
+    public void set(int x, int y, Tile t)
+    {
+        buf.putByte((long) y*stride + x, (byte) t.ordinal());
+    }
+
+    @Override
+    public void clear(int W, int H)
+    {
+        // WATER is ordinal 0
+        if (W == stride)
+            buf.fill(0, (long) W*H, (byte) 0);
+        else
+            for (int y = 0; y < H; y++)
+                buf.fill((long) y*stride, (long) y*stride + W, (byte) 0);
+    }
+}
@@ -0,0 +1,320 @@
+package piratemap.generate;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import piratemap.generate.PirateMap.Coord;
+import piratemap.generate.PirateMap.Tile;
+import piratemap.generate.PirateMap.Treasure;
+
+/**
+ * Binary .pmap file, a generated map that can be rendered again without regenerating.
+ *
+ * Layout, all big endian:
+ * <pre>
+ * "PMAP"                 magic
+ * short version, short flags   flags: 1 = made with the legacy shared Random
+ * long seed
+ * int W, int H, int tileSize
+ * byte[(W*H+3)/4]        grid, 2 bits per tile (Tile ordinal), row major,
+ *                        lowest bits first
+ * int treasureCount
+ * per treasure:
+ *   int markX, int markY
+ *   int routeLength        number of route points
+ *   int startX, int startY only if routeLength > 0
+ *   byte[(routeLength+2)/4] a 2 bit code (left, up, right, down) per step
+ * int length, byte[]     directions text, UTF-8
+ * int crc                CRC32 of everything before it
+ * </pre>
+ * routeDirs is not stored, every entry is the opposite of the matching route step.
+ *
+ * Version 1 files have a single treasure instead of the treasure list:
+ * mark x, y (-1, -1 if none), then a route as above with length -1 if there is no route.
+ */
+public class PMapFile
+{
+    private static final int MAGIC = 0x504d4150; // "PMAP"
+    static final short VERSION = 2;
+
+    private static final Tile[] TILES = Tile.values();
+
+    /**
+     * Directions, left, up, right, down. Same order as PirateMap's.
+     */
+    private static final int[] d = new int[] {
+            -1, 0, 0, -1, 1, 0, 0, 1
+    };
+
+    static final short FLAG_LEGACY_RANDOM = 1;
+
+    public long seed;
+    public int tileSize;
+    public short flags;
+    public String directions;
+    public PirateMap map;
+
+    /**
+     * Write a generated map.
+     * @param f
+     * @param map
+     * @param seed Seed the map was generated from.
+     * @param tileSize Tile size it was generated for.
+     * @param flags See flags(Options).
+     * @param directions Word directions, as printed.
+     * @throws IOException
+     */
+    public static void write(File f, PirateMap map, long seed, int tileSize,
+            short flags, String directions) throws IOException
+    {
+        CRC32 crc = new CRC32();
+        try (DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+                new BufferedOutputStream(new FileOutputStream(f)), crc)))
+        {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeShort(flags);
+            out.writeLong(seed);
+            out.writeInt(map.W);
+            out.writeInt(map.H);
+            out.writeInt(tileSize);
+
+            // Grid
+            int packed = 0, n = 0;
+            for (int y = 0; y < map.H; y++)
+                for (int x = 0; x < map.W; x++)
+                {
+                    packed |= map.getTile(x, y).ordinal() << (2*n);
+                    if (++n == 4)
+                    {
+                        out.writeByte(packed);
+                        packed = n = 0;
+                    }
+                }
+            if (n > 0)
+                out.writeByte(packed);
+
+            // Treasures
+            List<Treasure> treasures = map.allTreasures();
+            out.writeInt(treasures.size());
+            for (Treasure tr : treasures)
+            {
+                out.writeInt(tr.mark.x);
+                out.writeInt(tr.mark.y);
+                writeRoute(out, tr.route == null ? new ArrayList<Coord>() : tr.route);
+            }
+
+            byte[] text = (directions == null ? "" : directions).getBytes(StandardCharsets.UTF_8);
+            out.writeInt(text.length);
+            out.write(text);
+
+            out.flush();
+            out.writeInt((int) crc.getValue());
+        }
+    }
+
+    private static void writeRoute(DataOutputStream out, List<Coord> route) throws IOException
+    {
+        out.writeInt(route.size());
+        if (route.size() == 0)
+            return;
+
+        out.writeInt(route.get(0).x);
+        out.writeInt(route.get(0).y);
+        int packed = 0, n = 0;
+        for (int i = 1; i < route.size(); i++)
+        {
+            packed |= dirCode(route.get(i).x - route.get(i-1).x,
+                    route.get(i).y - route.get(i-1).y) << (2*n);
+            if (++n == 4)
+            {
+                out.writeByte(packed);
+                packed = n = 0;
+            }
+        }
+        if (n > 0)
+            out.writeByte(packed);
+    }
+
+    /**
+     * @param options
+     * @return Flags describing how a map was generated.
+     */
+    static short flags(PirateMap.Options options)
+    {
+        return options.legacyRandom ? FLAG_LEGACY_RANDOM : 0;
+    }
+
+    /**
+     * Memory map a .pmap file and rebuild the map from it.
+     * @param f
+     * @return
+     * @throws IOException If the file is not a valid .pmap, or it is corrupt.
+     */
+    public static PMapFile read(File f) throws IOException
+    {
+        try (RandomAccessFile raf = new RandomAccessFile(f, "r");
+             FileChannel ch = raf.getChannel())
+        {
+            MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size());
+            return read(buf);
+        }
+    }
+
+    static PMapFile read(ByteBuffer buf) throws IOException
+    {
+        if (buf.remaining() < 4 + 4 + 8 + 12 + 4 || buf.getInt() != MAGIC)
+            throw new IOException("Not a pmap file");
+
+        short version = buf.getShort();
+        if (version != 1 && version != VERSION)
+            throw new IOException("Unsupported pmap version " + version);
+
+        // Check the CRC before trusting any of the sizes.
+        ByteBuffer body = buf.duplicate();
+        body.position(0);
+        body.limit(buf.limit() - 4);
+        CRC32 crc = new CRC32();
+        crc.update(body);
+        if ((int) crc.getValue() != buf.getInt(buf.limit() - 4))
+            throw new IOException("pmap checksum mismatch");
+
+        PMapFile p = new PMapFile();
+        p.flags = buf.getShort();
+        p.seed = buf.getLong();
+        int W = buf.getInt();
+        int H = buf.getInt();
+        p.tileSize = buf.getInt();
+
+        if (W <= 0 || H <= 0 || (long) W * H > PirateMap.MAX_CELLS)
+            throw new IOException("Bad pmap size " + W + "x" + H);
+
+        PirateMap map = new PirateMap(new Tile[W][H], W, H, new Random(p.seed));
+
+        int packed = 0, n = 4;
+        for (int y = 0; y < H; y++)
+            for (int x = 0; x < W; x++)
+            {
+                if (n == 4)
+                {
+                    packed = buf.get() & 0xff;
+                    n = 0;
+                }
+                map.setTile(x, y, TILES[(packed >> (2*n)) & 3]);
+                n++;
+            }
+
+        if (version == 1)
+        {
+            int mx = buf.getInt(), my = buf.getInt();
+            if (mx >= 0)
+                map.mark = coord(map, mx, my);
+            int len = buf.getInt();
+            if (len >= 0)
+            {
+                Treasure tr = readRoute(buf, len, map);
+                map.route = tr.route;
+                map.routeDirs = tr.routeDirs;
+            }
+        }
+        else
+        {
+            int count = buf.getInt();
+            // Each treasure takes at least 12 bytes
+            if (count < 0 || count > buf.remaining() / 12)
+                throw new IOException("Bad pmap treasure count " + count);
+            map.treasures = new ArrayList<>(count);
+            for (int t = 0; t < count; t++)
+            {
+                Coord mark = coord(map, buf.getInt(), buf.getInt());
+                Treasure tr = readRoute(buf, buf.getInt(), map);
+                tr.mark = mark;
+                map.treasures.add(tr);
+            }
+            if (count > 0)
+            {
+                map.mark = map.treasures.get(0).mark;
+                map.route = map.treasures.get(0).route;
+                map.routeDirs = map.treasures.get(0).routeDirs;
+            }
+        }
+
+        int textLength = buf.getInt();
+        if (textLength < 0 || textLength > buf.remaining())
+            throw new IOException("Bad pmap directions length " + textLength);
+        byte[] text = new byte[textLength];
+        buf.get(text);
+        p.directions = new String(text, StandardCharsets.UTF_8);
+
+        p.map = map;
+        return p;
+    }
+
+    /**
+     * Read a route of len points, rebuilding routeDirs from it.
+     * @throws IOException If len or a point does not fit the map.
+     */
+    private static Treasure readRoute(ByteBuffer buf, int len, PirateMap map) throws IOException
+    {
+        if (len < 0 || len > (long) map.W * map.H
+                || (len > 0 && 8 + (len + 2L) / 4 > buf.remaining()))
+            throw new IOException("Bad pmap route length " + len);
+        Treasure tr = new Treasure();
+        tr.route = new ArrayList<>(len);
+        tr.routeDirs = new ArrayList<>(Math.max(len - 1, 0));
+        if (len <= 0)
+            return tr;
+
+        Coord cur = coord(map, buf.getInt(), buf.getInt());
+        tr.route.add(cur);
+        int packed = 0, n = 4;
+        for (int i = 1; i < len; i++)
+        {
+            if (n == 4)
+            {
+                packed = buf.get() & 0xff;
+                n = 0;
+            }
+            int code = (packed >> (2*n)) & 3;
+            n++;
+
+            cur = coord(map, cur.x + d[code*2], cur.y + d[code*2+1]);
+            tr.route.add(cur);
+            tr.routeDirs.add(new Coord(-d[code*2], -d[code*2+1]));
+        }
+        return tr;
+    }
+
+    /**
+     * @throws IOException If x, y is off the map.
+     */
+    private static Coord coord(PirateMap map, int x, int y) throws IOException
+    {
+        if (x < 0 || y < 0 || x >= map.W || y >= map.H)
+            throw new IOException("pmap location " + x + "," + y + " is off the map");
+        return new Coord(x, y);
+    }
+
+    private static int dirCode(int dx, int dy)
+    {
+        for (int i = 0; i < 4; i++)
+        {
+            if (d[i*2] == dx && d[i*2+1] == dy)
+                return i;
+        }
+        throw new IllegalArgumentException("Route step is not NSEW " + dx + ", " + dy);
+    }
+}
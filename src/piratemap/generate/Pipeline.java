@@ -0,0 +1,718 @@
+package piratemap.generate;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+
+import piratemap.generate.PirateMap.Coord;
+import piratemap.generate.PirateMap.Options;
+import piratemap.generate.PirateMap.Tile;
+import piratemap.generate.PirateMap.Treasure;
+import piratemap.utils.IntRaster;
+import piratemap.utils.PngEncoder;
+import piratemap.utils.SeedTree;
+import piratemap.utils.Tileset;
+import piratemap.utils.Util;
+
+/**
+ * Map generation as a list of named stages.
+ *
+ * Every stage output has a cache key made from the stage name and the key of its
+ * inputs, so two requests share the results of all stages up to the first one
+ * whose inputs differ. Eg. changing only the tile size or the format reruns only
+ * render and encode.
+ *
+ * Grid stage results, pictures and encoded bytes are kept in an in-memory LRU
+ * cache of at most 64 entries and a quarter of the heap. If a cache directory is
+ * given, the last grid stage is also stored there as .pmap, so separate runs
+ * share it too.
+ */
+public class Pipeline
+{
+    /**
+     * Bump when the output of any stage changes for the same inputs,
+     * so that stale disk cache entries are not used.
+     */
+    static final int VERSION = 3;
+
+    /**
+     * Bump when render or encode output changes for the same map, so that
+     * served ETags change with it.
+     */
+    static final int RENDERER_VERSION = 1;
+
+    enum Stage {
+        TERRAIN, ROUGHEN, INLAND_WATER, VEGETATION, ROUTE, DIRECTIONS,
+        RENDER, ENCODE;
+
+        boolean isGrid()
+        {
+            return ordinal() <= DIRECTIONS.ordinal();
+        }
+    }
+
+    /**
+     * Result of one generation request.
+     */
+    public static class Result
+    {
+        public PirateMap map;
+        public String directions;
+        /** null unless the format is png with the java2d renderer, or preview and not from the cache */
+        public BufferedImage image;
+        /** Encoded png, svg or ascii text, null if the svg went to a stream */
+        public byte[] encoded;
+        /** Deepest stage that came from the cache, null if none. */
+        public Stage cachedUpTo;
+    }
+
+    /**
+     * Output of a grid stage. Immutable once cached, restore() hands out copies.
+     */
+    static class Snapshot
+    {
+        int W, H;
+        long seed;
+        // Tile ordinals, row major, a quarter of the size of a Tile[][] copy
+        byte[] tiles;
+        Coord mark;
+        ArrayList<Coord> route, routeDirs;
+        ArrayList<Treasure> treasures;
+        Random rand;
+        String directions;
+
+        /**
+         * @param keepRand Keep the random state, for when the next stage goes on
+         * drawing from the same Random.
+         */
+        Snapshot(PirateMap map, long seed, String directions, boolean keepRand)
+        {
+            W = map.W;
+            H = map.H;
+            this.seed = seed;
+            tiles = new byte[W*H];
+            for (int y = 0; y < H; y++)
+                for (int x = 0; x < W; x++)
+                    tiles[y*W + x] = (byte) map.getTile(x, y).ordinal();
+            mark = map.mark;
+            route = map.route == null ? null : new ArrayList<>(map.route);
+            routeDirs = map.routeDirs == null ? null : new ArrayList<>(map.routeDirs);
+            treasures = copy(map.treasures);
+            rand = keepRand && map.rand != null ? Util.deepCopy(map.rand) : null;
+            this.directions = directions;
+        }
+
+        /**
+         * @return Roughly the heap it holds, the grid and 32 bytes for each
+         * point of the routes and their directions.
+         */
+        long bytes()
+        {
+            long points = 0;
+            if (treasures != null)
+                for (Treasure tr : treasures)
+                    points += tr.route == null ? 0 : tr.route.size();
+            else if (route != null)
+                points = route.size();
+            return tiles.length + 64 * points;
+        }
+
+        /**
+         * @param ws May be null.
+         */
+        PirateMap restore(Workspace ws)
+        {
+            PirateMap map = PirateMap.create(ws, W, H,
+                    rand == null ? new Random(seed) : Util.deepCopy(rand));
+            for (int y = 0; y < H; y++)
+                for (int x = 0; x < W; x++)
+                    map.setTile(x, y, TILES[tiles[y*W + x]]);
+            map.mark = mark;
+            map.route = route == null ? null : new ArrayList<>(route);
+            map.routeDirs = routeDirs == null ? null : new ArrayList<>(routeDirs);
+            map.treasures = copy(treasures);
+            if (map.treasures != null && map.treasures.size() > 0)
+            {
+                // First treasure shares its lists with the map
+                map.route = map.treasures.get(0).route;
+                map.routeDirs = map.treasures.get(0).routeDirs;
+            }
+            return map;
+        }
+
+        private static ArrayList<Treasure> copy(ArrayList<Treasure> treasures)
+        {
+            if (treasures == null)
+                return null;
+            ArrayList<Treasure> t = new ArrayList<>(treasures.size());
+            for (Treasure tr : treasures)
+                t.add(tr.copy());
+            return t;
+        }
+
+    }
+
+    private static final Tile[] TILES = Tile.values();
+
+    private final StageCache cache;
+    private final File cacheDir;
+
+    /**
+     * @param cacheDir Directory for the on disk cache, null for memory only.
+     */
+    public Pipeline(File cacheDir)
+    {
+        this.cache = new StageCache(64, Runtime.getRuntime().maxMemory() / 4);
+        this.cacheDir = cacheDir;
+        if (cacheDir != null)
+            cacheDir.mkdirs();
+    }
+
+    /**
+     * Run all stages needed for the options, reusing cached stage outputs.
+     * If no seed is given, one is picked and stored in options.
+     * @param options
+     * @return
+     * @throws IOException If loading a .pmap or encoding fails.
+     */
+    public Result run(Options options) throws IOException
+    {
+        return run(options, new GenerationContext());
+    }
+
+    /**
+     * Same as run(options), stopping when ctx is cancelled or past its deadline.
+     * Stages that finished before that are still cached.
+     * @param options
+     * @param ctx
+     * @return
+     * @throws IOException If loading a .pmap or encoding fails.
+     * @throws GenerationCancelledException
+     */
+    public Result run(Options options, GenerationContext ctx) throws IOException
+    {
+        return run(options, ctx, null);
+    }
+
+    /**
+     * Same as run(options, ctx), taking buffers from the workspace. The map and
+     * image of the result are then only valid until the next run with the same
+     * workspace, and the rendered image is not cached (the encoded one is).
+     * @param options
+     * @param ctx
+     * @param ws May be null.
+     * @return
+     * @throws IOException
+     */
+    public Result run(Options options, GenerationContext ctx, Workspace ws) throws IOException
+    {
+        return run(options, ctx, ws, null);
+    }
+
+    /**
+     * Same as run(options, ctx, ws), writing an svg straight to svgOut as it
+     * is made, so the document is never held in memory. res.encoded is then
+     * null and nothing is cached past the grid. Other formats ignore svgOut.
+     * @param svgOut May be null, not closed.
+     */
+    public Result run(Options options, GenerationContext ctx, Workspace ws, OutputStream svgOut)
+            throws IOException
+    {
+        Result res = new Result();
+        String[] keys = new String[Stage.values().length];
+
+        PirateMap map;
+        if (options.load != null)
+        {
+            // Saved map replaces all the grid stages
+            PMapFile f = PMapFile.read(new File(options.load));
+            options.seed = f.seed;
+            map = f.map;
+            map.context = ctx;
+            map.workspace = ws;
+            res.directions = f.directions;
+            keys[Stage.DIRECTIONS.ordinal()] = key("load", new File(options.load).getAbsolutePath()
+                    + "," + new File(options.load).lastModified());
+            keys[Stage.ROUTE.ordinal()] = keys[Stage.DIRECTIONS.ordinal()];
+        }
+        else
+        {
+            map = runGrid(options, keys, res, ctx, ws);
+        }
+
+        res.map = map;
+
+        if ("svg".equals(options.format) && svgOut != null)
+        {
+            ctx.stage("encode");
+            Writer w = new BufferedWriter(new OutputStreamWriter(svgOut, StandardCharsets.UTF_8));
+            new SvgWriter(map, options.tileSize, w, renderRandom(options.seed)).write();
+            w.flush();
+            return res;
+        }
+
+        if ("svg".equals(options.format))
+        {
+            keys[Stage.ENCODE.ordinal()] = key("encode-svg," + options.tileSize,
+                    keys[Stage.ROUTE.ordinal()]);
+            res.encoded = (byte[]) cache.get(keys[Stage.ENCODE.ordinal()]);
+            if (res.encoded == null)
+            {
+                ctx.stage("encode");
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                Writer w = new OutputStreamWriter(bytes, StandardCharsets.UTF_8);
+                new SvgWriter(map, options.tileSize, w, renderRandom(options.seed)).write();
+                w.flush();
+                res.encoded = bytes.toByteArray();
+                cache.put(keys[Stage.ENCODE.ordinal()], res.encoded, res.encoded.length);
+            }
+            else
+                res.cachedUpTo = Stage.ENCODE;
+            return res;
+        }
+
+        if ("ascii".equals(options.format))
+        {
+            // Text from the grid, the whole run stays clear of AWT
+            keys[Stage.ENCODE.ordinal()] = key("encode-ascii", keys[Stage.ROUTE.ordinal()]);
+            res.encoded = (byte[]) cache.get(keys[Stage.ENCODE.ordinal()]);
+            if (res.encoded == null)
+            {
+                ctx.stage("encode");
+                res.encoded = map.toAscii(renderRandom(options.seed)).getBytes(StandardCharsets.UTF_8);
+                cache.put(keys[Stage.ENCODE.ordinal()], res.encoded, res.encoded.length);
+            }
+            else
+                res.cachedUpTo = Stage.ENCODE;
+            return res;
+        }
+
+        if ("preview".equals(options.format))
+        {
+            // Straight from the grid, cheap enough that only the bytes are kept
+            keys[Stage.ENCODE.ordinal()] = key("encode-preview," + options.previewSize,
+                    keys[Stage.ROUTE.ordinal()]);
+            res.encoded = (byte[]) cache.get(keys[Stage.ENCODE.ordinal()]);
+            if (res.encoded == null)
+            {
+                ctx.stage("encode");
+                res.image = Preview.render(map, options.previewSize);
+                res.encoded = Util.encodePng(res.image);
+                cache.put(keys[Stage.ENCODE.ordinal()], res.encoded, res.encoded.length);
+            }
+            else
+                res.cachedUpTo = Stage.ENCODE;
+            return res;
+        }
+
+        if ("raster".equals(options.renderer))
+        {
+            // Plain int pixels and our own png encoder, no AWT. Only the bytes
+            // are kept, a cached raster would be 4 bytes a pixel
+            keys[Stage.RENDER.ordinal()] = key("render-raster," + options.tileSize + themeKey(options),
+                    keys[Stage.ROUTE.ordinal()]);
+            keys[Stage.ENCODE.ordinal()] = key("encode-png", keys[Stage.RENDER.ordinal()]);
+            res.encoded = (byte[]) cache.get(keys[Stage.ENCODE.ordinal()]);
+            if (res.encoded != null)
+            {
+                res.cachedUpTo = Stage.ENCODE;
+                return res;
+            }
+            ctx.stage("render");
+            IntRaster raster = RasterRenderer.render(map, options.tileSize, options.tileSize,
+                    renderRandom(options.seed), Tileset.theme(options.theme));
+            ctx.stage("encode");
+            ctx.checkpoint();
+            res.encoded = PngEncoder.encode(raster);
+            cache.put(keys[Stage.ENCODE.ordinal()], res.encoded, res.encoded.length);
+            return res;
+        }
+
+        keys[Stage.RENDER.ordinal()] = key("render," + options.tileSize + themeKey(options),
+                keys[Stage.ROUTE.ordinal()]);
+        keys[Stage.ENCODE.ordinal()] = key("encode-png", keys[Stage.RENDER.ordinal()]);
+
+        res.image = (BufferedImage) cache.get(keys[Stage.RENDER.ordinal()]);
+        if (res.image == null)
+        {
+            ctx.stage("render");
+            res.image = map.render(options.tileSize, options.tileSize,
+                    renderRandom(options.seed), Tileset.theme(options.theme));
+            // A workspace image is overwritten by the next map
+            if (ws == null)
+                cache.put(keys[Stage.RENDER.ordinal()], res.image,
+                        4L * res.image.getWidth() * res.image.getHeight());
+        }
+        else
+            res.cachedUpTo = Stage.RENDER;
+
+        res.encoded = (byte[]) cache.get(keys[Stage.ENCODE.ordinal()]);
+        if (res.encoded == null)
+        {
+            ctx.stage("encode");
+            ctx.checkpoint();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ImageIO.write(res.image, "png", bytes);
+            res.encoded = bytes.toByteArray();
+            cache.put(keys[Stage.ENCODE.ordinal()], res.encoded, res.encoded.length);
+        }
+        else
+            res.cachedUpTo = Stage.ENCODE;
+
+        return res;
+    }
+
+    /**
+     * Run the grid stages from terrain up to and including last, without any
+     * caching. For tools that look at lots of seeds and never render.
+     * If no seed is given, one is picked and stored in options.
+     * @param options
+     * @param last
+     * @return
+     */
+    static PirateMap generate(Options options, Stage last)
+    {
+        return generate(options, last, (StageListener) null);
+    }
+
+    /**
+     * Same as generate(options, last), telling listener how long each stage took.
+     * Creating the empty grid counts as part of TERRAIN.
+     * @param listener May be null.
+     */
+    static PirateMap generate(Options options, Stage last, StageListener listener)
+    {
+        return generate(options, last, listener, null);
+    }
+
+    /**
+     * Same as generate(options, last, listener), taking buffers from the
+     * workspace. The map is only valid until the next map made with it.
+     * @param ws May be null.
+     */
+    static PirateMap generate(Options options, Stage last, StageListener listener,
+            Workspace ws)
+    {
+        return generate(options, last, listener, ws, new GenerationContext());
+    }
+
+    /**
+     * Same as generate(options, last), stopping at ctx's checkpoints.
+     * @throws GenerationCancelledException If ctx is cancelled or its deadline passes.
+     */
+    static PirateMap generate(Options options, Stage last, GenerationContext ctx)
+    {
+        return generate(options, last, null, null, ctx);
+    }
+
+    private static PirateMap generate(Options options, Stage last, StageListener listener,
+            Workspace ws, GenerationContext ctx)
+    {
+        long t0 = System.nanoTime();
+        Start start = start(options);
+        PirateMap map = PirateMap.create(ws, start.W, start.H, start.rand);
+        map.context = ctx;
+        map.verbose = !options.quiet;
+        for (int i = 0; i <= last.ordinal(); i++)
+        {
+            ctx.stage(Stage.values()[i].name().toLowerCase());
+            runStage(Stage.values()[i], map, options, start.seeds);
+            if (listener != null)
+            {
+                long t1 = System.nanoTime();
+                listener.stageDone(Stage.values()[i], map, t1 - t0);
+                t0 = t1;
+            }
+        }
+        return map;
+    }
+
+    /**
+     * Told about every stage generate runs.
+     */
+    interface StageListener
+    {
+        /**
+         * @param stage
+         * @param map The map right after the stage, do not keep it.
+         * @param nanos
+         */
+        void stageDone(Stage stage, PirateMap map, long nanos);
+    }
+
+    /**
+     * Seed and size of a new map.
+     */
+    private static class Start
+    {
+        SeedTree seeds;
+        Random rand;
+        int W, H;
+        boolean randomSize;
+    }
+
+    private static Start start(Options options)
+    {
+        Start st = new Start();
+        if (options.seed <= 0)
+        {
+            options.seed = new Random().nextLong() & Long.MAX_VALUE;
+        }
+        /*
+         * Every stage draws from its own stream derived from the seed, unless
+         * one shared Random for all stages is asked for.
+         */
+        st.seeds = new SeedTree(options.seed);
+        st.rand = options.legacyRandom ? new Random(options.seed)
+                                       : st.seeds.child("size").random();
+
+        /*
+         * If only image size is given, grid width height is deduced.
+         * Otherwise grid width height are random, which also moves rand along,
+         * so that has to be part of the key.
+         */
+        st.randomSize = !(options.imageX > 0 && options.imageY > 0);
+        if (!st.randomSize)
+        {
+            st.W = options.imageX / options.tileSize;
+            st.H = options.imageY / options.tileSize;
+        }
+        else
+        {
+            st.W = 10+st.rand.nextInt(20);
+            st.H = 10+st.rand.nextInt(20);
+        }
+        PirateMap.checkCells(st.W, st.H);
+
+        options.imageX = st.W * options.tileSize;
+        options.imageY = st.H * options.tileSize;
+        return st;
+    }
+
+    /**
+     * Directions for a map generated up to ROUTE with the same options, the
+     * same as the DIRECTIONS stage makes. Moves the map's Random along.
+     * @param map
+     * @param options
+     * @return
+     */
+    static String directions(PirateMap map, Options options)
+    {
+        if (!options.legacyRandom)
+            map.rand = new SeedTree(options.seed).child("directions").random();
+        return map.getWordDirections();
+    }
+
+    /**
+     * Run one grid stage on the map.
+     * @return The directions for the directions stage, otherwise null.
+     */
+    private static String runStage(Stage s, PirateMap map, Options options, SeedTree seeds)
+    {
+        if (!options.legacyRandom)
+            map.rand = seeds.child(s.name().toLowerCase()).random();
+        switch (s)
+        {
+        case TERRAIN:
+            map.makeTerrain();
+            break;
+        case ROUGHEN:
+            // Map is a little too geometric, randomly delete some shore
+            map.drawRoughen();
+            break;
+        case INLAND_WATER:
+            // Islands typically dont have inland water
+            map.deleteInlandWater();
+            break;
+        case VEGETATION:
+            //Place hills and trees randomly
+            map.makeRandomHillTrees(map.rand);
+            break;
+        case ROUTE:
+            // Find the treasure spots, and routes
+            map.makeXAndRoutes(options.treasures);
+            break;
+        case DIRECTIONS:
+            return map.getWordDirections();
+        default:
+            break;
+        }
+        return null;
+    }
+
+    /**
+     * Run (or restore) terrain through directions.
+     */
+    private PirateMap runGrid(Options options, String[] keys, Result res,
+            GenerationContext ctx, Workspace ws)
+    {
+        Start start = start(options);
+
+        String in = "v" + VERSION + (options.legacyRandom ? ",legacy," : ",split,")
+                + options.seed + "," + start.W + "x" + start.H
+                + (start.randomSize ? ",random" : "");
+        for (Stage s : Stage.values())
+        {
+            if (!s.isGrid())
+                break;
+            String name = s.name().toLowerCase();
+            if (s == Stage.ROUTE)
+                name += "," + options.treasures;
+            in = key(name, in);
+            keys[s.ordinal()] = in;
+        }
+
+        // An off heap grid is not copied back onto the heap into snapshots,
+        // so such runs only share the disk cache
+        boolean snapshots = ws == null || !ws.offHeap();
+
+        // Start after the deepest cached stage
+        PirateMap map = null;
+        Stage from = Stage.TERRAIN;
+        for (int i = Stage.DIRECTIONS.ordinal(); i >= 0 && map == null; i--)
+        {
+            Snapshot snap = (Snapshot) cache.get(keys[i]);
+            if (snap == null && i == Stage.DIRECTIONS.ordinal())
+                snap = loadFromDisk(keys[i], snapshots);
+            if (snap != null)
+            {
+                map = snap.restore(ws);
+                res.directions = snap.directions;
+                res.cachedUpTo = Stage.values()[i];
+                if (i < Stage.DIRECTIONS.ordinal())
+                    from = Stage.values()[i+1];
+            }
+        }
+
+        if (map == null)
+            map = PirateMap.create(ws, start.W, start.H, start.rand);
+        map.context = ctx;
+        if (res.cachedUpTo == Stage.DIRECTIONS)
+            return map;
+        map.verbose = !options.quiet;
+
+        for (int i = from.ordinal(); i <= Stage.DIRECTIONS.ordinal(); i++)
+        {
+            Stage s = Stage.values()[i];
+            ctx.stage(s.name().toLowerCase());
+            String directions = runStage(s, map, options, start.seeds);
+            if (s == Stage.DIRECTIONS)
+                res.directions = directions;
+            if (snapshots)
+            {
+                Snapshot snap = new Snapshot(map, options.seed, res.directions,
+                        options.legacyRandom);
+                cache.put(keys[i], snap, snap.bytes());
+            }
+        }
+
+        saveToDisk(keys[Stage.DIRECTIONS.ordinal()], map, options, res.directions);
+
+        return map;
+    }
+
+    /**
+     * @param keep Keep the snapshot in the memory cache.
+     */
+    private Snapshot loadFromDisk(String key, boolean keep)
+    {
+        if (cacheDir == null)
+            return null;
+        File f = new File(cacheDir, hash(key) + ".pmap");
+        if (!f.exists())
+            return null;
+        try
+        {
+            PMapFile p = PMapFile.read(f);
+            Snapshot snap = new Snapshot(p.map, p.seed, p.directions, false);
+            if (keep)
+                cache.put(key, snap, snap.bytes());
+            return snap;
+        } catch (IOException e)
+        {
+            System.err.println("Ignoring bad cache file "+f+", "+e.getMessage());
+            return null;
+        }
+    }
+
+    private void saveToDisk(String key, PirateMap map, Options options, String directions)
+    {
+        if (cacheDir == null)
+            return;
+        File f = new File(cacheDir, hash(key) + ".pmap");
+        File tmp = new File(cacheDir, hash(key) + ".tmp");
+        try
+        {
+            PMapFile.write(tmp, map, options.seed, options.tileSize,
+                    PMapFile.flags(options), directions);
+            if (!tmp.renameTo(f))
+                tmp.delete();
+        } catch (IOException e)
+        {
+            System.err.println("Could not write cache file "+f+", "+e.getMessage());
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Decorations of the picture are derived from the seed, so rendering the
+     * same map at the same size always gives the same bytes.
+     */
+    private static Random renderRandom(long seed)
+    {
+        return new SeedTree(seed).child("render").random();
+    }
+
+    /**
+     * The theme's name and fingerprint, so new art gives new keys.
+     */
+    static String themeKey(Options options)
+    {
+        try
+        {
+            Tileset t = Tileset.theme(options.theme);
+            return "," + t.name + "@" + t.fingerprint;
+        } catch (IOException e)
+        {
+            // Drawing with it fails the same way, so nothing is kept under this
+            return "," + options.theme;
+        }
+    }
+
+    private static String key(String stage, String inputKey)
+    {
+        return stage + "(" + inputKey + ")";
+    }
+
+    /**
+     * Short file name safe form of a key.
+     */
+    static String hash(String key)
+    {
+        try
+        {
+            byte[] h = MessageDigest.getInstance("SHA-256")
+                    .digest(key.getBytes(StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < 16; i++)
+                sb.append(String.format("%02x", h[i]));
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+}
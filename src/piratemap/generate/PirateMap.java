@@ -3,19 +3,31 @@ package piratemap.generate;
 import java.awt.BasicStroke;
 import java.awt.Color;
 import java.awt.Graphics2D;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Random;
+import java.util.Set;
 
-import javax.imageio.ImageIO;
 
-import piratemap.utils.TerrainMap;
+import piratemap.utils.OffHeapArena;
+import piratemap.utils.OffHeapBuffer;
+import piratemap.utils.RawImage;
+import piratemap.utils.SplitMixRandom;
+import piratemap.utils.Tileset;
 import piratemap.utils.Util;
 import static piratemap.generate.PirateMap.Tile.*;
 
@@ -107,13 +119,57 @@ public class PirateMap
         }
         
     }
+    
+    /**
+     * A treasure location and the route to it.
+     */
+    public static class Treasure
+    {
+        public Coord mark;
+        
+        /**
+         * Path to treasure, starts at the coast and ends at the mark.
+         * Empty if no route was found.
+         */
+        public ArrayList<Coord> route;
+        
+        /**
+         * Directions we walk in, see PirateMap.routeDirs.
+         */
+        public ArrayList<Coord> routeDirs;
+        
+        Treasure copy()
+        {
+            Treasure t = new Treasure();
+            t.mark = mark;
+            t.route = route == null ? null : new ArrayList<>(route);
+            t.routeDirs = routeDirs == null ? null : new ArrayList<>(routeDirs);
+            return t;
+        }
+    }
 
     
     int W, H;
-    Tile[][] grid;
+    TileGrid grid;
     
     Random rand;
     
+    /**
+     * Print problems like not finding a route. Off for tools that make lots of maps.
+     */
+    boolean verbose = true;
+    
+    /**
+     * Deadline and cancellation, checked in the long loops.
+     */
+    GenerationContext context = new GenerationContext();
+    
+    /**
+     * Buffers to reuse instead of allocating, null to allocate.
+     * The grid may be larger than W x H when it comes from a workspace.
+     */
+    Workspace workspace;
+    
     /**
      * Treasure location
      */
@@ -130,6 +186,48 @@ public class PirateMap
      */
     public ArrayList<Coord> routeDirs;
     
+    /**
+     * All treasures, when there is more than one. The first one is the same as
+     * mark, route and routeDirs.
+     */
+    public ArrayList<Treasure> treasures;
+    
+    /**
+     * Steps from each location to the nearest water, row major.
+     * See CoastDistance. Set by makeXAndRoute.
+     */
+    short[] coastDist;
+    
+    /**
+     * Whole route walks thrown away because they did not end at the coast,
+     * over all treasures. Set by makeXAndRoute, not kept in caches or files.
+     */
+    int routeRetries;
+    
+    /**
+     * All islands. Set by makeXAndRoute.
+     */
+    Islands islands;
+    
+    /**
+     * Locations setTile changed, and locations whose picture changed, since
+     * the last commitEdits. null until trackEdits.
+     */
+    private DirtyRegions edited, redraw;
+    
+    /**
+     * How far a changed location changes the picture, in locations. Water
+     * darkens up to 6 steps from land, corners and sprites reach 1.
+     */
+    static final int EDIT_REACH = 7;
+    
+    /**
+     * Most locations a map can have. Islands, CoastDistance, route finding
+     * and cached snapshots keep int indexed arrays with one entry per
+     * location, also when the grid itself is off heap.
+     */
+    static final long MAX_CELLS = Integer.MAX_VALUE - 8;
+    
     /**
      * Directions, left, up, right, down
      */
@@ -138,20 +236,46 @@ public class PirateMap
     };
     
     public PirateMap(Tile[][] grid, int w, int h, Random rand)
+    {
+        this(new ArrayTileGrid(grid), w, h, rand);
+    }
+
+    PirateMap(TileGrid grid, int w, int h, Random rand)
     {
         super();
+        checkCells(w, h);
         W = w;
         H = h;
         
         this.grid = grid;
-        for (Tile[] gg : grid)
-        {
-            Arrays.fill(gg, WATER);
-        }
+        grid.clear(W, H);
 
         this.rand = rand;
     }
 
+    /**
+     * Map that takes its grid and other buffers from the workspace.
+     * @param ws May be null.
+     */
+    static PirateMap create(Workspace ws, int w, int h, Random rand)
+    {
+        checkCells(w, h);
+        PirateMap map = ws == null ? new PirateMap(new Tile[w][h], w, h, rand)
+                : new PirateMap(ws.grid(w, h), w, h, rand);
+        map.workspace = ws;
+        return map;
+    }
+
+    /**
+     * @throws IllegalArgumentException If w by h is more than MAX_CELLS.
+     */
+    static void checkCells(int w, int h)
+    {
+        if ((long) w * h > MAX_CELLS)
+            throw new IllegalArgumentException("Map of " + w + "x" + h
+                    + " locations is larger than the " + MAX_CELLS + " locations a map can have");
+    }
+
     /**
      * Get the coords (NSEW only) around this point. Trims coords
      *  outside bounds.
@@ -194,12 +318,19 @@ public class PirateMap
     
     public Tile getTile(int x, int y)
     {
-        return grid[x][y];
+        return grid.get(x, y);
     }
     
     public void setTile(int x, int y, Tile tile)
     {
-        grid[x][y] = tile;
+        if (edited != null)
+        {
+            if (grid.get(x, y) == tile)
+                return;
+            edited.add(x, y, 1, 1);
+            redraw.add(x - EDIT_REACH, y - EDIT_REACH, 2*EDIT_REACH + 1, 2*EDIT_REACH + 1);
+        }
+        grid.set(x, y, tile);
     }
 
     public Tile getTile(Coord c)
@@ -212,55 +343,6 @@ public class PirateMap
         setTile(c.x, c.y, type);
     }
 
-    /**
-     * @return Get a random spot inside bounds
-     */
-    public Coord randomSpot()
-    {
-        return new Coord(rand.nextInt(W), rand.nextInt(H));
-    }
-    
-    /**
-     * GIven a spot (NOT WATER), return all spots connected to that grid location.
-     * @param start
-     * @return
-     */
-    HashSet<Coord> getConnected(Coord start)
-    {
-        
-        ArrayList<Coord> list = new ArrayList<>();
-        HashSet<Coord> conn = new HashSet<>();
-        
-        if (getTile(start) == WATER)
-        {
-            return conn;
-        }
-        
-        
-        list.add(start);
-        conn.add(start);
-        
-        while(list.size() > 0)
-        {
-            Coord c = list.remove(0);
-            
-            ArrayList<Coord> nn = getNeighbours(c);
-            
-            for (Coord n : nn)
-            {
-                if (grid[n.x][n.y] != WATER
-                    && !conn.contains(n))
-                {
-                    conn.add(n);
-                    list.add(n);
-                }
-            }
-        }
-        
-        return conn;
-    }
-    
-
     /**
      * Place some hills and trees.
      * 
@@ -273,7 +355,7 @@ public class PirateMap
     void makeRandomHillTrees(Random rand)
     {
         ArrayList<Coord> seeds = new ArrayList<>();
-        int numTries = (int) (Math.sqrt(W*H)/1);
+        int numTries = (int) (Math.sqrt((double) W*H)/1);
 
         // Find a few random seed places
         for (int i = 0; i < numTries; i++)
@@ -367,55 +449,146 @@ public class PirateMap
     }
     
     
+    /**
+     * The grid as text, one line per row, in print()'s characters, with all
+     * treasures. Needs nothing from AWT, for quick looks and terminals.
+     * @param rand Where the odd ~ goes in the water.
+     */
+    String toAscii(Random rand)
+    {
+        HashSet<Coord> routes = new HashSet<>(), marks = new HashSet<>();
+        for (Treasure tr : allTreasures())
+        {
+            marks.add(tr.mark);
+            if (tr.route != null)
+                routes.addAll(tr.route);
+        }
+        StringBuilder sb = new StringBuilder((W + 1) * H);
+        Coord loc = new Coord(0, 0);
+        for (int y = 0; y < H; y++)
+        {
+            for (int x = 0; x < W; x++)
+            {
+                loc.x = x;
+                loc.y = y;
+                Tile t = getTile(x, y);
+                if (marks.contains(loc))
+                    sb.append('X');
+                else if (routes.contains(loc))
+                    sb.append('-');
+                else if (t == WATER)
+                    sb.append(rand.nextInt(50) < 1 ? '~' : ' ');
+                else
+                    sb.append(t == SAND ? '.' : t == HILL ? '^' : 'T');
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+    
+    /**
+     * Hill and palm sprites, read once.
+     */
+    private static class Sprites
+    {
+        static BufferedImage hill, palm;
+        static
+        {
+            try
+            {
+                hill = RawImage.load("tiles/hill");
+                palm = RawImage.load("tiles/palm_small");
+            } catch (IOException e)
+            {
+                e.printStackTrace();
+                System.exit(1);
+            }
+        }
+    }
+    
     /**
      * Render to image.
-     * Note: uses its own Random, so pics from the same seed may look different.
-     * Its only decorative difference.
+     * Note: decorations (water tiles, where hills and palms sit) come from
+     * rand, not the generation Random. The same rand gives the same picture.
      * @param tileSizeX
      * @param tileSizeY
-     * @return
+     * @param rand
+     * @return With a workspace, a view of the workspace's image, only valid
+     * until the next render with the same workspace.
      */
-    BufferedImage render(int tileSizeX, int tileSizeY)
+    BufferedImage render(int tileSizeX, int tileSizeY, Random rand)
     {
-        // Dont pollute main generative random
-        Random rand = new Random();
-        BufferedImage hill = null, palm = null;
-        try
+        return render(tileSizeX, tileSizeY, rand, Tileset.defaultTheme());
+    }
+    
+    /**
+     * Render to image with the terrain tiles of a theme.
+     */
+    BufferedImage render(int tileSizeX, int tileSizeY, Random rand, Tileset theme)
+    {
+        BufferedImage hill = Sprites.hill, palm = Sprites.palm;
+        
+        int iw = W*tileSizeX, ih = H * tileSizeY;
+        BufferedImage im;
+        Graphics2D g2;
+        if (workspace == null)
         {
-            hill = ImageIO.read(new File("tiles/hill.png"));
-            palm = ImageIO.read(new File("tiles/palm_small.png"));
-        } catch (IOException e)
+            im = new BufferedImage(iw, ih, BufferedImage.TYPE_INT_ARGB);
+            g2 = im.createGraphics();
+        }
+        else
         {
-            e.printStackTrace();
-            System.exit(1);
+            BufferedImage all = workspace.image(iw, ih);
+            // Clear what is left from the last map. Straight into the pixels,
+            // a transparent fill through Graphics2D allocates a raster per tile.
+            int[] px = ((DataBufferInt) all.getRaster().getDataBuffer()).getData();
+            for (int y = 0; y < ih; y++)
+                Arrays.fill(px, y*all.getWidth(), y*all.getWidth() + iw, 0);
+            g2 = all.createGraphics();
+            g2.clipRect(0, 0, iw, ih);
+            im = all.getWidth() == iw && all.getHeight() == ih ? all : all.getSubimage(0, 0, iw, ih);
         }
         
-        
-        BufferedImage im = new BufferedImage(W*tileSizeX, H * tileSizeY, 
-                BufferedImage.TYPE_INT_ARGB);
-        
-        Graphics2D g2 = im.createGraphics();
-        
         int[] codes = new int[4];
         
         for (int x = 0; x < W; x++)
+        {
+            context.checkpoint();
+            context.progress(.5 * x / W);
             for (int y = 0; y < H; y++)
             {
                 getCornersWaterSand1(x, y, codes);
-                TerrainMap.printTile(g2, x*tileSizeX, y*tileSizeY,
+                theme.printTile(g2, x*tileSizeX, y*tileSizeY,
                         tileSizeX, tileSizeY,
-                        codes[0], codes[1], codes[2], codes[3]);
+                        codes[0], codes[1], codes[2], codes[3], rand);
             }
+        }
         
         // Each tile actually represents grid points x.5, y.5
         // so all overlays must be shifted -.5, -.5
         g2.translate(-tileSizeX/2, -tileSizeY/2);
         
+        // Water gets darker away from land
+        short[] depth = CoastDistance.toLand(this);
+        for (int x = 0; x < W; x++)
+            for (int y = 0; y < H; y++)
+            {
+                int dd = Math.min(depth[y*W + x], 7) - 1;
+                if (dd > 0)
+                {
+                    g2.setColor(new Color(0, 16, 48, dd*9));
+                    g2.fillRect(x*tileSizeX, y*tileSizeY, tileSizeX, tileSizeY);
+                }
+            }
+        
         // hills
+        context.progress(.6);
         for (int x = 0; x < W; x++)
+        {
+            context.checkpoint();
             for (int y = 0; y < H; y++)
             {
-                if (grid[x][y] == HILL)
+                if (grid.get(x, y) == HILL)
                 {
                     g2.drawImage(hill,
                             x*tileSizeX + rand.nextInt(tileSizeX/4),
@@ -424,9 +597,9 @@ public class PirateMap
                             null);
                     if (x == W-1 || y == H-1)
                         continue;
-                    if (grid[x+1][y] != WATER
-                        && grid[x][y+1] != WATER
-                        && grid[x+1][y+1] != WATER)
+                    if (grid.get(x+1, y) != WATER
+                        && grid.get(x, y+1) != WATER
+                        && grid.get(x+1, y+1) != WATER)
                             g2.drawImage(hill,
                                     x*tileSizeX +tileSizeX/2 + rand.nextInt(tileSizeX/2),
                                     y*tileSizeY +tileSizeY/2 + rand.nextInt(tileSizeY/2),
@@ -434,13 +607,17 @@ public class PirateMap
                                     null);
                 }
             }
+        }
         
         // trees
         // The trees are 16x32 
+        context.progress(.8);
         for (int x = 0; x < W; x++)
+        {
+            context.checkpoint();
             for (int y = 0; y < H; y++)
             {
-                if (grid[x][y] == TREES)
+                if (grid.get(x, y) == TREES)
                 {
                     g2.drawImage(palm,
                             x*tileSizeX + rand.nextInt(tileSizeX/4),
@@ -449,9 +626,9 @@ public class PirateMap
                             null);
                     if (x == W-1 || y == H-1)
                         continue;
-                    if (grid[x+1][y] != WATER
-                        && grid[x][y+1] != WATER
-                        && grid[x+1][y+1] != WATER)
+                    if (grid.get(x+1, y) != WATER
+                        && grid.get(x, y+1) != WATER
+                        && grid.get(x+1, y+1) != WATER)
                     {
                             g2.drawImage(palm,
                                     x*tileSizeX + rand.nextInt(tileSizeX/2),
@@ -466,6 +643,7 @@ public class PirateMap
                     }
                 }
             }
+        }
         
         // Grid
 //            g2.setColor(Color.red);
@@ -480,15 +658,18 @@ public class PirateMap
 //                }
 //            g2.translate(16, 16);
         
-        // Draw the route
-        g2.setColor(Color.red);
-        g2.setStroke(new BasicStroke(3, BasicStroke.CAP_ROUND,
-                BasicStroke.JOIN_ROUND, 100f, new float[]{10f}, 0));
-        Coord last = null;
+        // Draw the routes
         int w2 = tileSizeX/2, h2 = tileSizeY/2;
-        if (route != null && mark != null)
+        for (Treasure tr : allTreasures())
         {
-            for (Coord cc : route)
+            if (tr.route == null)
+                continue;
+            
+            g2.setColor(Color.red);
+            g2.setStroke(new BasicStroke(3, BasicStroke.CAP_ROUND,
+                    BasicStroke.JOIN_ROUND, 100f, new float[]{10f}, 0));
+            Coord last = null;
+            for (Coord cc : tr.route)
             {
                 if (last != null)
                 {
@@ -518,6 +699,7 @@ public class PirateMap
 //            }
             
             // Draw the X
+            Coord mark = tr.mark;
             g2.setColor(Color.red);
             g2.setStroke(new BasicStroke(7));
             g2.drawLine(mark.x*tileSizeX,mark.y*tileSizeY,
@@ -530,17 +712,176 @@ public class PirateMap
         return im;
     }
     
+    /**
+     * Draw the locations x0..x1-1, y0..y1-1 the way render() does, at
+     * x*tileSize, y*tileSize in g2's coordinates, for drawing a big map a
+     * piece at a time.
+     *
+     * Decorations come from a random stream per location, made from seed and
+     * the location, so a location looks the same whichever piece draws it and
+     * pieces line up. The picture is not the same as render()'s. Hills, palms
+     * and routes reach up to two locations into the next piece, so to get a
+     * piece right draw two more locations on every side and clip.
+     * @param g2
+     * @param x0
+     * @param y0
+     * @param x1
+     * @param y1
+     * @param tileSize
+     * @param seed
+     */
+    void renderRegion(Graphics2D g2, int x0, int y0, int x1, int y1, int tileSize, long seed)
+    {
+        renderRegion(g2, x0, y0, x1, y1, tileSize, seed, Tileset.defaultTheme());
+    }
+    
+    /**
+     * renderRegion with the terrain tiles of a theme.
+     */
+    void renderRegion(Graphics2D g2, int x0, int y0, int x1, int y1, int tileSize, long seed,
+            Tileset theme)
+    {
+        BufferedImage hill = Sprites.hill, palm = Sprites.palm;
+        x0 = Math.max(x0, 0);
+        y0 = Math.max(y0, 0);
+        x1 = Math.min(x1, W);
+        y1 = Math.min(y1, H);
+        int ts = tileSize;
+        SplitMixRandom rand = new SplitMixRandom(0);
+        
+        int[] codes = new int[4];
+        for (int y = y0; y < y1; y++)
+        {
+            context.checkpoint();
+            for (int x = x0; x < x1; x++)
+            {
+                // The first number of the location's stream picks the water variant
+                rand.setSeed(cellSeed(seed, 0, x, y));
+                getCornersWaterSand1(x, y, codes);
+                theme.printTile(g2, x*ts, y*ts, ts, ts,
+                        codes[0], codes[1], codes[2], codes[3], rand.nextLong());
+            }
+        }
+        
+        // Same -.5, -.5 shift as render
+        Graphics2D g = (Graphics2D) g2.create();
+        g.translate(-ts/2, -ts/2);
+        
+        // Water gets darker away from land. Only distances up to 7 show, so
+        // look for land in that diamond instead of over the whole map.
+        for (int y = y0; y < y1; y++)
+            for (int x = x0; x < x1; x++)
+            {
+                int dd = Math.min(landDistance(x, y, 7), 7) - 1;
+                if (dd > 0)
+                {
+                    g.setColor(new Color(0, 16, 48, dd*9));
+                    g.fillRect(x*ts, y*ts, ts, ts);
+                }
+            }
+        
+        for (int y = y0; y < y1; y++)
+            for (int x = x0; x < x1; x++)
+            {
+                if (grid.get(x, y) != HILL)
+                    continue;
+                rand.setSeed(cellSeed(seed, 1, x, y));
+                g.drawImage(hill, x*ts + rand.nextInt(ts/4), y*ts + rand.nextInt(ts/4), ts, ts, null);
+                if (x < W-1 && y < H-1 && grid.get(x+1, y) != WATER
+                        && grid.get(x, y+1) != WATER && grid.get(x+1, y+1) != WATER)
+                    g.drawImage(hill, x*ts + ts/2 + rand.nextInt(ts/2),
+                            y*ts + ts/2 + rand.nextInt(ts/2), ts, ts, null);
+            }
+        
+        for (int y = y0; y < y1; y++)
+            for (int x = x0; x < x1; x++)
+            {
+                if (grid.get(x, y) != TREES)
+                    continue;
+                rand.setSeed(cellSeed(seed, 2, x, y));
+                g.drawImage(palm, x*ts + rand.nextInt(ts/4), y*ts - ts/2 + rand.nextInt(ts/4),
+                        ts/2, ts, null);
+                if (x < W-1 && y < H-1 && grid.get(x+1, y) != WATER
+                        && grid.get(x, y+1) != WATER && grid.get(x+1, y+1) != WATER)
+                {
+                    g.drawImage(palm, x*ts + rand.nextInt(ts/2), y*ts - ts/2 + rand.nextInt(ts/2),
+                            ts/2, ts, null);
+                    g.drawImage(palm, x*ts + rand.nextInt(ts/2), y*ts - ts/2 + rand.nextInt(ts/2),
+                            ts/2, ts, null);
+                }
+            }
+        
+        // Routes, only the steps and marks near the region
+        int h = ts/2;
+        g.setColor(Color.red);
+        for (Treasure tr : allTreasures())
+        {
+            if (tr.route == null)
+                continue;
+            g.setStroke(new BasicStroke(3, BasicStroke.CAP_ROUND,
+                    BasicStroke.JOIN_ROUND, 100f, new float[]{10f}, 0));
+            Coord last = null;
+            for (Coord cc : tr.route)
+            {
+                if (last != null && Math.max(last.x, cc.x) >= x0 && Math.min(last.x, cc.x) < x1
+                        && Math.max(last.y, cc.y) >= y0 && Math.min(last.y, cc.y) < y1)
+                    g.drawLine(last.x*ts + h, last.y*ts + h, cc.x*ts + h, cc.y*ts + h);
+                last = cc;
+            }
+            
+            Coord mark = tr.mark;
+            if (mark.x >= x0 && mark.x < x1 && mark.y >= y0 && mark.y < y1)
+            {
+                g.setStroke(new BasicStroke(7));
+                g.drawLine(mark.x*ts, mark.y*ts, (mark.x+1)*ts, (mark.y+1)*ts);
+                g.drawLine(mark.x*ts, (mark.y+1)*ts, (mark.x+1)*ts, mark.y*ts);
+            }
+        }
+        g.dispose();
+    }
+    
+    /**
+     * Seed for the decorations of one location in one layer.
+     */
+    private static long cellSeed(long seed, int layer, int x, int y)
+    {
+        return SplitMixRandom.mix64(SplitMixRandom.mix64(seed + layer) + ((long) y << 32 | (x & 0xffffffffL)));
+    }
+    
+    /**
+     * @return NSEW steps from x, y to the nearest land, max if there is none
+     * that close. Same as CoastDistance.toLand up to max.
+     */
+    private int landDistance(int x, int y, int max)
+    {
+        if (grid.get(x, y) != WATER)
+            return 0;
+        for (int d = 1; d < max; d++)
+            for (int i = 0; i < d; i++)
+            {
+                // The four sides of the diamond at distance d
+                if (isLand(x + i, y - d + i) || isLand(x + d - i, y + i)
+                        || isLand(x - i, y + d - i) || isLand(x - d + i, y - i))
+                    return d;
+            }
+        return max;
+    }
+    
+    private boolean isLand(int x, int y)
+    {
+        return x >= 0 && y >= 0 && x < W && y < H && grid.get(x, y) != WATER;
+    }
+    
     /**
      * Create a point as the treasure, and create a winding path to it.
      *  
      *  The process is very ad hoc for now.
      *  
-     *   Assume W/, H/2 tile is part of the biggest blob of land. So, find all tiles 
-     *   connected to this tile. This should be the biggest island.
+     *   Label all islands, and take the biggest one.
      *   
-     *   Randomly choose a location. If it is one of the tiles we found in the earlier step,
-     *   mark this as the treasure spot.  If we do not find such a spot after
-     *   a few tries, give up.
+     *   Index the tiles we found in the earlier step, leaving out the ones that do not
+     *   have any coast far enough away for a route. Choose the treasure spot from the
+     *   index. If the index is empty, give up.
      *   
      *    Now, start walking drunkenly away from the treasure, changing direction randomly
      *    a couple of steps, or when you meet a water tile. If you manage to go sufficiently
@@ -550,46 +891,158 @@ public class PirateMap
      *    a corner, restart. Give up after a few retries. 
      */
     void makeXAndRoute()
+    {
+        makeXAndRoutes(1);
+    }
+    
+    /**
+     * Create count treasures, each with its own route, as in makeXAndRoute.
+     * Islands, the land index and coast distances are worked out once for all
+     * of them. Routes never share a location, so they do not cross.
+     * If a treasure cannot be placed, the rest are skipped.
+     * @param count
+     */
+    void makeXAndRoutes(int count)
+    {
+        makeXAndRoutes(count, null);
+    }
+    
+    /**
+     * Same as makeXAndRoutes(count), with the marks inside markArea, on the
+     * largest island that reaches into it. Routes may leave the area, their
+     * minimum length is worked out from its size instead of the map's.
+     * @param count
+     * @param markArea null for anywhere on the largest island.
+     */
+    void makeXAndRoutes(int count, final Rectangle markArea)
     {
         mark = null;
+        treasures = new ArrayList<>();
         
         // make sure the mark is on the main landmass
-        HashSet<Coord> main = getConnected(new Coord(W/2, H/2));
-        // It is possible for W/2, H/2 not to be on the main body, though usually it is.
+        islands = new Islands(this);
+        LandIndex main = islands.index(markArea == null ? islands.largest()
+                : largestIsland(markArea));
         if (main.size() == 0)
             return;
         
-        // Try to find a treasure location.
-        for (int i = 0; i < 1000; i++)
+        coastDist = CoastDistance.toWater(this);
+        // Routes are long compared to the area the mark may be in
+        final int minDistStartEnd = markArea == null ? (int) (Math.sqrt((double) W*H)/3)
+                : (int) (Math.sqrt((double) markArea.width*markArea.height)/3);
+        final int[] coastExtent = coastExtent(main);
+        
+        // Skip spots that have no coast far enough away, no route can work from there.
+        LandIndex spots = main.filter(new LandIndex.CellFilter() {
+            @Override
+            public boolean accept(int x, int y)
+            {
+                return farthestCoast(x, y, coastExtent) >= minDistStartEnd
+                        && (markArea == null || markArea.contains(x, y));
+            }
+        });
+        
+        // Locations used by earlier routes
+        boolean[] taken = workspace == null ? new boolean[W*H] : workspace.mask(W*H);
+        
+        for (int t = 0; t < count; t++)
         {
-            Coord c = randomSpot();
-            Tile tile = getTile(c);
-            if (main.contains(c) 
-                && tile != WATER)
+            context.progress((double) t / count);
+            Treasure tr = new Treasure();
+            tr.mark = t == 0 ? spots.sample(rand) : sampleFree(spots, taken);
+            
+            if (tr.mark == null)
             {
-                mark = c;
+                if (verbose)
+                    System.err.println("Mark spot not found");
                 break;
             }
+            
+            makeRoute(tr, taken, minDistStartEnd);
+            
+            taken[tr.mark.y*W + tr.mark.x] = true;
+            for (Coord c : tr.route)
+                taken[c.y*W + c.x] = true;
+            
+            treasures.add(tr);
         }
         
-        if (mark == null)
+        if (treasures.size() > 0)
         {
-            System.err.println("Mark spot not found");
-            return;
+            Treasure first = treasures.get(0);
+            mark = first.mark;
+            route = first.route;
+            routeDirs = first.routeDirs;
         }
-
+    }
+    
+    /**
+     * @return The largest island with a location in r, lowest label on a tie.
+     * 0 if r is all water.
+     */
+    private int largestIsland(Rectangle r)
+    {
+        int best = 0;
+        for (int y = Math.max(r.y, 0); y < Math.min(r.y + r.height, H); y++)
+            for (int x = Math.max(r.x, 0); x < Math.min(r.x + r.width, W); x++)
+            {
+                int l = islands.labelAt(x, y);
+                if (l != 0 && (best == 0 || islands.size(l) > islands.size(best)
+                        || (islands.size(l) == islands.size(best) && l < best)))
+                    best = l;
+            }
+        return best;
+    }
+    
+    /**
+     * Random spot from the index that no route uses yet.
+     * @return null if none found after a few tries.
+     */
+    private Coord sampleFree(LandIndex spots, boolean[] taken)
+    {
+        for (int i = 0; i < 100; i++)
+        {
+            Coord c = spots.sample(rand);
+            if (c == null)
+                return null;
+            if (!taken[c.y*W + c.x])
+                return c;
+        }
+        return null;
+    }
+    
+    /**
+     * Walk away from the mark until we reach the coast far enough away.
+     * The route is stored in the treasure, reversed so it starts at the coast.
+     * @param tr
+     * @param taken Locations the route must not use.
+     * @param minDistStartEnd
+     */
+    private void makeRoute(Treasure tr, boolean[] taken, int minDistStartEnd)
+    {
+        makeRoute(tr, taken, null, minDistStartEnd);
+    }
+    
+    /**
+     * makeRoute with the taken locations in a set instead, for when there
+     * are few. Coast distances are then worked out as needed.
+     */
+    private void makeRoute(Treasure tr, boolean[] taken, Set<Coord> takenSet, int minDistStartEnd)
+    {
+        Coord mark = tr.mark;
+        
         // Try to find a route. Record directions (NSEW) too for
         // easy direction construction later.
-        route = new ArrayList<Coord>();
-        routeDirs = new ArrayList<Coord>();
+        ArrayList<Coord> route = new ArrayList<Coord>();
+        ArrayList<Coord> routeDirs = new ArrayList<Coord>();
         
         final int MAX_PATH_RETRY = 1000;
         
         boolean badPath = true;
-        int minDistStartEnd = (int) (Math.sqrt(W*H)/3);
         int fullPathRetries = 0;
         while(badPath && fullPathRetries < MAX_PATH_RETRY)
         {
+            context.checkpoint();
             route.clear();
             route.add(mark);
             routeDirs.clear();
@@ -602,7 +1055,9 @@ public class PirateMap
             {
                 Coord next = cur.add(dir);
                 
-                if (grid[next.x][next.y] == WATER
+                if (next.x < 0 || next.y < 0 || next.x >= W || next.y >= H
+                        || grid.get(next.x, next.y) == WATER
+                        || (taken != null ? taken[next.y*W + next.x] : takenSet.contains(next))
                         || route.contains(next)
                         || rand.nextInt(10) < 5
                         )
@@ -629,7 +1084,7 @@ public class PirateMap
             }
 //                System.out.println("MIN "+minDistStartEnd);
             if (cur.gridDist(mark) >= minDistStartEnd
-                    && hasWater(getNeighbours(cur)))
+                    && (coastDist != null ? coastDist[cur.y*W + cur.x] == 1 : isCoast(cur.x, cur.y)))
             {
                 badPath = false;
             }
@@ -637,33 +1092,307 @@ public class PirateMap
             fullPathRetries++;
             
         }
+        routeRetries += badPath ? fullPathRetries : fullPathRetries - 1;
         
         if (fullPathRetries >= MAX_PATH_RETRY)
         {
             route.clear();
             routeDirs.clear();
-            System.out.println("route fail ");
+            if (verbose)
+                System.out.println("route fail ");
         }
         
         Collections.reverse(route);
         Collections.reverse(routeDirs);
-
+        
+        tr.route = route;
+        tr.routeDirs = routeDirs;
     }
     
     /**
-     * Check if said tiles have water.
-     * @param neighbours
-     * @return
+     * @return Whether x, y is land next to water, coastDist 1.
      */
-    private boolean hasWater(ArrayList<Coord> neighbours)
+    private boolean isCoast(int x, int y)
     {
-        for (Coord n : neighbours)
+        if (grid.get(x, y) == WATER)
+            return false;
+        for (int i = 0; i < d.length; i += 2)
         {
-            if (grid[n.x][n.y] == WATER)
+            int x1 = x + d[i], y1 = y + d[i+1];
+            if (x1 >= 0 && y1 >= 0 && x1 < W && y1 < H && grid.get(x1, y1) == WATER)
                 return true;
         }
         return false;
     }
+    
+    /**
+     * Start recording edits: from now on setTile, moveMark and commitEdits
+     * keep track of what changed, see takeRedraw. Coast distances and islands
+     * worked out when the map was made are dropped, edits make them stale.
+     */
+    void trackEdits()
+    {
+        if (edited != null)
+            return;
+        edited = new DirtyRegions(W, H);
+        redraw = new DirtyRegions(W, H);
+        coastDist = null;
+        islands = null;
+        // Edits change treasures in place, so keep them in the list
+        if (treasures == null || treasures.isEmpty())
+            treasures = new ArrayList<>(allTreasures());
+    }
+    
+    /**
+     * Move treasure i's mark and plan its route again.
+     * @return false if there is no route from the new spot, the treasure
+     * then has an empty route.
+     * @throws IllegalArgumentException If the spot is off the map or water.
+     */
+    boolean moveMark(int i, Coord to)
+    {
+        trackEdits();
+        if (to.x < 0 || to.y < 0 || to.x >= W || to.y >= H || grid.get(to.x, to.y) == WATER)
+            throw new IllegalArgumentException("Mark must be on land, not " + to.x + "," + to.y);
+        Treasure tr = treasures.get(i);
+        redrawRoute(tr);
+        int minDistStartEnd = routeReach(tr);
+        tr.mark = to;
+        return replanRoute(i, minDistStartEnd);
+    }
+    
+    /**
+     * Plan the routes again that the tile edits since the last call cross,
+     * or that now start away from the coast.
+     *
+     * A mark painted over with water moves to the land on its route nearest
+     * to it, or if its route has no land left, to the nearest land not on
+     * another treasure. If there is no land left at all, the mark stays and
+     * its route is emptied.
+     * @return The treasures planned again. Those whose route is now empty
+     * have no route, see moveMark.
+     */
+    List<Integer> commitEdits()
+    {
+        trackEdits();
+        List<Integer> replanned = new ArrayList<>();
+        if (!edited.isEmpty())
+        {
+            for (int i = 0; i < treasures.size(); i++)
+            {
+                Treasure tr = treasures.get(i);
+                boolean hit = edited.contains(tr.mark.x, tr.mark.y);
+                if (tr.route != null)
+                    for (Coord c : tr.route)
+                        hit = hit || edited.contains(c.x, c.y);
+                if (!hit && tr.route != null && tr.route.size() > 0)
+                {
+                    Coord start = tr.route.get(0);
+                    hit = !isCoast(start.x, start.y);
+                }
+                if (!hit)
+                    continue;
+                redrawRoute(tr);
+                int minDistStartEnd = routeReach(tr);
+                // A mark painted over with water moves to the nearest land on its route
+                if (grid.get(tr.mark.x, tr.mark.y) == WATER && tr.route != null)
+                    for (int j = tr.route.size() - 1; j >= 0; j--)
+                    {
+                        Coord c = tr.route.get(j);
+                        if (grid.get(c.x, c.y) != WATER)
+                        {
+                            tr.mark = c;
+                            break;
+                        }
+                    }
+                if (grid.get(tr.mark.x, tr.mark.y) == WATER)
+                {
+                    Coord land = nearestLand(tr.mark, i);
+                    if (land != null)
+                        tr.mark = land;
+                }
+                if (grid.get(tr.mark.x, tr.mark.y) != WATER)
+                    replanRoute(i, minDistStartEnd);
+                else
+                    clearRoute(i);
+                replanned.add(i);
+            }
+            edited.take();
+        }
+        return replanned;
+    }
+    
+    /**
+     * @return The land location nearest to c, by rings of growing grid
+     * distance, that is no other treasure's mark or route. null if there is none.
+     */
+    private Coord nearestLand(Coord c, int i)
+    {
+        Set<Coord> taken = new HashSet<>();
+        for (int k = 0; k < treasures.size(); k++)
+            if (k != i)
+            {
+                Treasure other = treasures.get(k);
+                taken.add(other.mark);
+                if (other.route != null)
+                    taken.addAll(other.route);
+            }
+        int max = Math.max(Math.max(c.x, W - 1 - c.x), Math.max(c.y, H - 1 - c.y));
+        for (int r = 1; r <= max; r++)
+        {
+            if ((r & 255) == 0)
+                context.checkpoint();
+            for (int y = c.y - r; y <= c.y + r; y++)
+            {
+                if (y < 0 || y >= H)
+                    continue;
+                // Whole rows at the top and bottom of the ring, else its two ends
+                int step = y == c.y - r || y == c.y + r ? 1 : 2*r;
+                for (int x = c.x - r; x <= c.x + r; x += step)
+                    if (x >= 0 && x < W && grid.get(x, y) != WATER
+                            && !taken.contains(new Coord(x, y)))
+                        return new Coord(x, y);
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Treasure i has no route, its mark is left where it is.
+     */
+    private void clearRoute(int i)
+    {
+        Treasure tr = treasures.get(i);
+        tr.route = new ArrayList<>();
+        tr.routeDirs = new ArrayList<>();
+        redrawRoute(tr);
+        if (i == 0)
+        {
+            mark = tr.mark;
+            route = tr.route;
+            routeDirs = tr.routeDirs;
+        }
+    }
+    
+    /**
+     * @return Rectangles of locations whose picture changed since the last
+     * call, see EDIT_REACH. Empty if edits are not tracked.
+     */
+    List<Rectangle> takeRedraw()
+    {
+        return redraw == null ? new ArrayList<Rectangle>() : redraw.take();
+    }
+    
+    /**
+     * @return How far the treasure's route reaches from its mark, for
+     * planning it again as long. As makeXAndRoute's minimum if it has none.
+     */
+    private int routeReach(Treasure tr)
+    {
+        int reach = (int) (Math.sqrt((double) W*H)/3);
+        if (tr.route != null && tr.route.size() > 0)
+            reach = Math.min(reach, tr.route.get(0).gridDist(tr.mark));
+        return reach;
+    }
+    
+    /**
+     * Route for treasure i from its mark again, not crossing the other
+     * routes. Costs about as much as the route, not the map.
+     */
+    private boolean replanRoute(int i, int minDistStartEnd)
+    {
+        Treasure tr = treasures.get(i);
+        Set<Coord> taken = new HashSet<>();
+        for (Treasure other : treasures)
+            if (other != tr)
+            {
+                taken.add(other.mark);
+                if (other.route != null)
+                    taken.addAll(other.route);
+            }
+        makeRoute(tr, null, taken, minDistStartEnd);
+        redrawRoute(tr);
+        
+        if (i == 0)
+        {
+            mark = tr.mark;
+            route = tr.route;
+            routeDirs = tr.routeDirs;
+        }
+        return tr.route.size() > 0;
+    }
+    
+    /**
+     * Route lines and the X reach one location around the locations they join.
+     */
+    private void redrawRoute(Treasure tr)
+    {
+        redraw.add(tr.mark.x - 1, tr.mark.y - 1, 3, 3);
+        if (tr.route != null)
+            for (Coord c : tr.route)
+                redraw.add(c.x - 1, c.y - 1, 3, 3);
+    }
+    
+    /**
+     * @return All treasures. For maps made with makeXAndRoute, or loaded from an
+     * older file, just the one made from mark, route and routeDirs.
+     */
+    List<Treasure> allTreasures()
+    {
+        if (treasures != null && treasures.size() > 0)
+            return treasures;
+        
+        ArrayList<Treasure> list = new ArrayList<>();
+        if (mark != null)
+        {
+            Treasure t = new Treasure();
+            t.mark = mark;
+            t.route = route;
+            t.routeDirs = routeDirs;
+            list.add(t);
+        }
+        return list;
+    }
+    
+    /**
+     * Extent of the coast (land next to water) of an island along the 4 diagonals,
+     * ie the max of x+y, x-y, -x+y, -x-y.
+     * @param island
+     * @return
+     */
+    private int[] coastExtent(LandIndex island)
+    {
+        int[] ext = new int[] {
+                Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE, Integer.MIN_VALUE
+        };
+        for (int i = 0; i < island.size(); i++)
+        {
+            int x = island.x(i), y = island.y(i);
+            if (coastDist[y*W + x] != 1)
+                continue;
+            ext[0] = Math.max(ext[0], x + y);
+            ext[1] = Math.max(ext[1], x - y);
+            ext[2] = Math.max(ext[2], -x + y);
+            ext[3] = Math.max(ext[3], -x - y);
+        }
+        return ext;
+    }
+    
+    /**
+     * Taxicab distance from x, y to the farthest coast location of the island.
+     * @param x
+     * @param y
+     * @param coastExtent From coastExtent()
+     * @return
+     */
+    private static int farthestCoast(int x, int y, int[] coastExtent)
+    {
+        if (coastExtent[0] == Integer.MIN_VALUE)
+            return -1;
+        return Math.max(
+                Math.max(coastExtent[0] - (x + y), coastExtent[1] - (x - y)),
+                Math.max(coastExtent[2] - (-x + y), coastExtent[3] - (-x - y)));
+    }
 
     // Choose a random NSEW (North South East West) direction.
     private Coord randomDir()
@@ -739,7 +1468,7 @@ public class PirateMap
             else
             {
 //                    out[i] = grid[x1][y1].terrainCode;
-                out[i] = grid[x1][y1] == WATER ?
+                out[i] = grid.get(x1, y1) == WATER ?
                         WATER.terrainCode : SAND.terrainCode;
             }
         }
@@ -788,13 +1517,35 @@ public class PirateMap
         if (routeDirs == null)
                 return "";
         TemplateRules rules = new TemplateRules(rand);
+        
+        List<Treasure> all = allTreasures();
+        if (all.size() == 1)
+            return getWordDirections(all.get(0), rules);
+        
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < all.size(); i++)
+        {
+            sb.append("Treasure ").append(i+1).append(":\n")
+                .append(getWordDirections(all.get(i), rules));
+        }
+        return sb.toString();
+    }
+    
+    /**
+     * Directions for one treasure.
+     * @param tr
+     * @param rules
+     * @return
+     */
+    private String getWordDirections(Treasure tr, TemplateRules rules)
+    {
         StringBuilder sb = new StringBuilder("Start ").append(rules.getStr("start")).append(".\n");
         Coord last = null;
         
-        for (int i = 0; i < routeDirs.size(); i++)
+        for (int i = 0; i < tr.routeDirs.size(); i++)
         {
-            Coord c = routeDirs.get(i);
-            Coord pos = route.get(i);
+            Coord c = tr.routeDirs.get(i);
+            Coord pos = tr.route.get(i);
             if (last != null)
             {
                 int d = getDir(last, c);
@@ -820,7 +1571,7 @@ public class PirateMap
             last = c;
         }
         
-        sb.append("Dig ").append(rules.getStrFor(getTile(mark))).append("!\n");
+        sb.append("Dig ").append(rules.getStrFor(getTile(tr.mark))).append("!\n");
         
         return sb.toString();
     }
@@ -830,6 +1581,24 @@ public class PirateMap
     {
         public int imageX, imageY, tileSize;
         public long seed;
+        public String format = "png";
+        public String save, load;
+        public String out, batch, cacheDir;
+        public int treasures = 1;
+        public boolean legacyRandom;
+        /** Dont print generation problems */
+        public boolean quiet;
+        /** Number of maps to make for --stats, 0 for a normal run */
+        public int stats;
+        /** Largest width or height of a preview, for format preview */
+        public int previewSize = 256;
+        /** java2d, or raster for the AWT free RasterRenderer */
+        public String renderer = "java2d";
+        /** Terrain tiles, tiles/theme.tsx, see Tileset */
+        public String theme = Tileset.DEFAULT_THEME;
+        /** Keep the grid off heap, in memory or in files in offHeapDir */
+        public boolean offHeap;
+        public String offHeapDir;
     }
     
     /**
@@ -882,6 +1651,33 @@ public class PirateMap
                     printArgError("Expecting a number for --tileSize "+e.getMessage());
                 }
             }
+            else if ("--legacyRandom".equals(a))
+            {
+                options.legacyRandom = true;
+            }
+            else if ("--offHeap".equals(a))
+            {
+                options.offHeap = true;
+            }
+            else if ("--treasures".equals(a))
+            {
+                if (i >= args.length - 1)
+                {
+                    printArgError("--treasures needs an arguement.");
+                }
+                
+                i++;
+                String a2 = args[i];
+                
+                try {
+                    options.treasures = Integer.parseInt(a2);
+                } catch (NumberFormatException e)
+                {
+                    printArgError("Expecting a number for --treasures "+e.getMessage());
+                }
+                if (options.treasures < 1)
+                    printArgError("--treasures must be at least 1");
+            }
             else if ("--seed".equals(a))
             {
                 if (i >= args.length - 1)
@@ -899,11 +1695,133 @@ public class PirateMap
                     printArgError("Expecting a number for --seed "+e.getMessage());
                 }
             }
+            else if ("--renderer".equals(a))
+            {
+                if (i >= args.length - 1)
+                {
+                    printArgError("--renderer needs an arguement.");
+                }
+                
+                i++;
+                String a2 = args[i];
+                
+                if (!"java2d".equals(a2) && !"raster".equals(a2))
+                {
+                    printArgError("Expecting java2d or raster for --renderer");
+                }
+                options.renderer = a2;
+            }
+            else if ("--theme".equals(a))
+            {
+                if (i >= args.length - 1)
+                {
+                    printArgError("--theme needs an arguement.");
+                }
+                
+                i++;
+                String a2 = args[i];
+                
+                try {
+                    Tileset.theme(a2);
+                } catch (IOException e)
+                {
+                    printArgError("Cannot load --theme: " + e.getMessage());
+                }
+                options.theme = a2;
+            }
+            else if ("--previewSize".equals(a))
+            {
+                if (i >= args.length - 1)
+                {
+                    printArgError("--previewSize needs an arguement.");
+                }
+                
+                i++;
+                String a2 = args[i];
+                
+                try {
+                    options.previewSize = Integer.parseInt(a2);
+                } catch (NumberFormatException e)
+                {
+                    printArgError("Expecting a number for --previewSize "+e.getMessage());
+                }
+                if (options.previewSize < 1)
+                    printArgError("--previewSize must be at least 1");
+            }
+            else if ("--stats".equals(a))
+            {
+                if (i >= args.length - 1)
+                {
+                    printArgError("--stats needs an arguement.");
+                }
+                
+                i++;
+                String a2 = args[i];
+                
+                try {
+                    options.stats = Integer.parseInt(a2);
+                } catch (NumberFormatException e)
+                {
+                    printArgError("Expecting a number for --stats "+e.getMessage());
+                }
+                if (options.stats < 1)
+                    printArgError("--stats must be at least 1");
+            }
+            else if ("--format".equals(a))
+            {
+                if (i >= args.length - 1)
+                {
+                    printArgError("--format needs an arguement.");
+                }
+                
+                i++;
+                String a2 = args[i];
+                
+                if (!"png".equals(a2) && !"svg".equals(a2) && !"preview".equals(a2)
+                        && !"ascii".equals(a2))
+                {
+                    printArgError("Expecting png, svg, preview or ascii for --format");
+                }
+                options.format = a2;
+            }
+            else if ("--save".equals(a) || "--load".equals(a) || "--out".equals(a)
+                    || "--batch".equals(a) || "--cacheDir".equals(a)
+                    || "--offHeapDir".equals(a))
+            {
+                if (i >= args.length - 1)
+                {
+                    printArgError(a+" needs an arguement.");
+                }
+                
+                i++;
+                if ("--save".equals(a))
+                    options.save = args[i];
+                else if ("--load".equals(a))
+                    options.load = args[i];
+                else if ("--out".equals(a))
+                    options.out = args[i];
+                else if ("--batch".equals(a))
+                    options.batch = args[i];
+                else if ("--offHeapDir".equals(a))
+                {
+                    options.offHeap = true;
+                    options.offHeapDir = args[i];
+                }
+                else
+                    options.cacheDir = args[i];
+            }
             else
             {
                 printArgError("Invalid arguement "+a);
             }
         }
+        
+        if (options.imageX > 0 && options.imageY > 0 && options.tileSize > 0
+                && (long) (options.imageX / options.tileSize)
+                        * (options.imageY / options.tileSize) > MAX_CELLS)
+        {
+            printArgError("--size is more than " + MAX_CELLS + " locations at this --tileSize");
+        }
     }
 
     private static void printArgError(String msg)
@@ -915,16 +1833,20 @@ public class PirateMap
     
     static void usage()
     {
-        System.out.println("PirateMap [--size <sizeX>x<sizeY>] [--tileSize <tileSize>]\n"
+        System.out.println("PirateMap [--size <sizeX>x<sizeY>] [--tileSize <tileSize>]"
+                + " [--seed <seed>] [--format png|svg|preview|ascii]\n"
+                + "          [--save <file.pmap>] [--load <file.pmap>] [--out <file>]\n"
+                + "          [--batch <file>] [--cacheDir <dir>] [--treasures <count>]\n"
+                + "          [--legacyRandom] [--stats <count>]\n"
+                + "          [--offHeap] [--offHeapDir <dir>] [--previewSize <pixels>]\n"
+                + "          [--renderer java2d|raster] [--theme <name>]\n"
                 + "Default tile size is 32."
-                + "Default image size is random.");
+                + "Default image size is random."
+                + "Default format is png.");
     }
     
     public static void main(String[] args)
     {
-        Random rand;
-        int W, H;
-
         /*
          * Grab command line options.
          * 
@@ -934,29 +1856,154 @@ public class PirateMap
         Options options = new Options();
         options.tileSize = 32;
         getOptions(args, options);
+        
+        if (options.stats > 0)
+        {
+            MapStats.run(options, options.stats);
+            return;
+        }
 
-        if (options.seed > 0)
-            rand = new Random(options.seed);
+        Pipeline pipeline = new Pipeline(
+                options.cacheDir == null ? null : new File(options.cacheDir));
+        
+        if (options.batch != null)
+        {
+            runBatch(pipeline, options.batch);
+            return;
+        }
+        
+        Pipeline.Result res;
+        if (options.offHeap)
+        {
+            // Grid in off heap memory, or memory mapped files for maps larger than RAM
+            try (OffHeapArena arena = new OffHeapArena(
+                    options.offHeapDir == null ? null : new File(options.offHeapDir)))
+            {
+                res = runOne(pipeline, options, new Workspace(arena));
+            }
+        }
         else
-            rand = new Random();
+            res = runOne(pipeline, options, null);
+        if (res == null || res.image == null)
+            return;
         
-        if (options.imageX > 0 && options.imageY > 0)
+        Util.showImage(res.image);
+        Util.exitAfter(20);
+    }
+    
+    /**
+     * Generate one map, print directions, save the image.
+     * @param ws Buffers to reuse, may be null.
+     * @return null if it failed.
+     */
+    static Pipeline.Result runOne(Pipeline pipeline, Options options, Workspace ws)
+    {
+        String out = options.out != null ? options.out
+                : "PirateMap." + ("svg".equals(options.format) ? "svg"
+                        : "ascii".equals(options.format) ? "txt" : "png");
+        Pipeline.Result res;
+        if ("svg".equals(options.format))
         {
-            W = options.imageX / options.tileSize;
-            H = options.imageY / options.tileSize;
+            // Streamed to the file as it is traced
+            try (OutputStream svg = new BufferedOutputStream(new FileOutputStream(out)))
+            {
+                res = pipeline.run(options, new GenerationContext(), ws, svg);
+            } catch (IOException e)
+            {
+                System.err.println("Could not make map, "+ 
+                            e.getMessage());
+                return null;
+            }
         }
         else
         {
-            W = 10+rand.nextInt(20);
-            H = 10+rand.nextInt(20);
+            try
+            {
+                res = pipeline.run(options, new GenerationContext(), ws);
+            } catch (IOException e)
+            {
+                System.err.println("Could not make map, "+ 
+                            e.getMessage());
+                return null;
+            }
         }
         
-        options.imageX = W * options.tileSize;
-        options.imageY = H * options.tileSize;
+//        res.map.print();
+        
+        System.out.println(res.directions);
+        
+        if (options.save != null && options.load == null)
+        {
+            try
+            {
+                PMapFile.write(new File(options.save), res.map, options.seed,
+                        options.tileSize, PMapFile.flags(options), res.directions);
+            } catch (IOException e)
+            {
+                System.err.println("Could not save map, "+ 
+                            e.getMessage());
+            }
+        }
         
-        Tile grid[][] = new Tile[W][H];
-        PirateMap map = new PirateMap(grid, W, H, rand);
+        if (res.encoded == null)
+            return res;
+        try
+        {
+            Files.write(Paths.get(out), res.encoded);
+        } catch (IOException e)
+        {
+            System.err.println("Could not save image, "+ 
+                        e.getMessage());
+        }
         
+        return res;
+    }
+    
+    /**
+     * Each line of the batch file is the command line for one map.
+     * All maps share the pipeline, so maps that differ only in tile size or
+     * format are generated once.
+     * @param pipeline
+     * @param batch
+     */
+    static void runBatch(Pipeline pipeline, String batch)
+    {
+        List<String> lines;
+        try
+        {
+            lines = Files.readAllLines(Paths.get(batch), StandardCharsets.UTF_8);
+        } catch (IOException e)
+        {
+            System.err.println("Could not read batch file, "+ 
+                        e.getMessage());
+            return;
+        }
+        
+        // One map at a time, so they can all share the buffers
+        Workspace ws = new Workspace();
+        for (String line : lines)
+        {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#"))
+                continue;
+            
+            Options options = new Options();
+            options.tileSize = 32;
+            getOptions(line.split("\\s+"), options);
+            if (options.batch != null)
+                printArgError("--batch is not allowed inside a batch file");
+            
+            runOne(pipeline, options, ws);
+        }
+    }
+
+    /**
+     * Create map by recursively subdividing the map and putting a circle or a 
+     * rect in the middle. Make sure there is an island in the middle, and 
+     * border the map with water.
+     */
+    void makeTerrain()
+    {
         // random rect
 //        for (int i = 0; i < 10; i++)
 //        {
@@ -972,57 +2019,25 @@ public class PirateMap
 ////                break;
 //        }
 
-        // Create map by recursively subdividing the map and putting a circle or a 
-        // rect in the middle.
-        map.drawSubDivRect(0, 1, W, H, 0);
-        map.fillCirc(W/2-W/6, H/2-H/6, W/3, H/3, SAND); // make sure some island in exact mid.
+        drawSubDivRect(0, 1, W, H, 0);
+        fillCirc(W/2-W/6, H/2-H/6, W/3, H/3, SAND); // make sure some island in exact mid.
         
         // Border with water
-        map.fillRect(0, 0, W, 1, WATER);
-        map.fillRect(0, H-1, W, 1, WATER);
-        map.fillRect(0, 0, 1, H, WATER);
-        map.fillRect(W-1, 0, 1, H, WATER);
-        
-        // Map is a little too geometric, randomly delete some shore
-        map.drawRoughen();
-        
-        // Islands typically dont have inland water
-        map.deleteInlandWater();
-        
-        //Place hills and trees randomly
-        map.makeRandomHillTrees(rand);
-        
-        // Find the treasure spot, and a route
-        map.makeXAndRoute();
-        
-//        map.print();
-        
-        BufferedImage im = map.render(options.tileSize, options.tileSize);
-
-        System.out.println(map.getWordDirections());
-        
-
-        try
-        {
-            ImageIO.write(im, "png", new File("PirateMap.png"));
-        } catch (IOException e)
-        {
-            System.err.println("Could not save image, "+ 
-                        e.getMessage());
-        }
-        
-        Util.showImage(im);
-        Util.exitAfter(20);
+        fillRect(0, 0, W, 1, WATER);
+        fillRect(0, H-1, W, 1, WATER);
+        fillRect(0, 0, 1, H, WATER);
+        fillRect(W-1, 0, 1, H, WATER);
     }
 
     /**
      * Randomly delete some land that has neighboring water so that shorelines 
      * are rough.
      */
-    private void drawRoughen()
+    void drawRoughen()
     {
         for (int x = 0; x < W; x++)
         {
+            context.checkpoint();
             for (int y = 0; y < H; y++)
             {
                 if (getTile(x, y) != WATER)
@@ -1065,7 +2080,8 @@ public class PirateMap
      */
     private void drawSubDivRect(int x, int y, int w, int h, int depth)
     {
-        if (grid.length == 0 || grid[0].length == 0)
+        context.checkpoint();
+        if (W == 0 || H == 0)
             return;
         
         
@@ -1100,41 +2116,111 @@ public class PirateMap
     /**
      * If any water is not connected to the main surrounding sea, it gets deleted.
      */
-    private void deleteInlandWater()
+    void deleteInlandWater()
     {
-        ArrayList<Coord> waters = new ArrayList<>();
-        boolean marked[][] = new boolean[W][H];
-        for (boolean[] mm : marked)
-            Arrays.fill(mm, false);
+        if (workspace != null && workspace.offHeap())
+        {
+            deleteInlandWaterOffHeap();
+            return;
+        }
         
+        // Flood fill the sea from the corner, row major marks and an index queue
+        boolean[] marked = workspace == null ? new boolean[W*H] : workspace.mask(W*H);
+        int[] queue = workspace == null ? new int[W*H] : workspace.queue(W*H);
+        int head = 0, tail = 0;
         
-        waters.add(new Coord(0, 0));
-        marked[0][0] = true;
+        queue[tail++] = 0;
+        marked[0] = true;
         
-        while(waters.size() > 0)
+        while (head < tail)
         {
-            Coord loc = waters.remove(0);
-            
-            
-            ArrayList<Coord> n = getNeighbours(loc);
+            if ((head & 4095) == 0)
+                context.checkpoint();
+            int i = queue[head++];
+            int x = i % W, y = i / W;
             
-            for (Coord newloc : n)
+            if (x > 0 && !marked[i-1] && grid.get(x-1, y) == WATER)
             {
-                if (!marked[newloc.x][newloc.y] && getTile(newloc.x, newloc.y) == WATER)
-                {
-                    waters.add(newloc);
-                    marked[newloc.x][newloc.y] = true;
-
-                }
+                marked[i-1] = true;
+                queue[tail++] = i-1;
+            }
+            if (x < W-1 && !marked[i+1] && grid.get(x+1, y) == WATER)
+            {
+                marked[i+1] = true;
+                queue[tail++] = i+1;
+            }
+            if (y > 0 && !marked[i-W] && grid.get(x, y-1) == WATER)
+            {
+                marked[i-W] = true;
+                queue[tail++] = i-W;
+            }
+            if (y < H-1 && !marked[i+W] && grid.get(x, y+1) == WATER)
+            {
+                marked[i+W] = true;
+                queue[tail++] = i+W;
             }
         }
         
         for (int x = 0; x < W; x++)
             for (int y = 0; y < H; y++)
             {
-                if (getTile(x, y)== WATER && !marked[x][y])
+                if (grid.get(x, y) == WATER && !marked[y*W + x])
+                {
+                    grid.set(x, y, SAND);
+                }
+            }
+    }
+
+    /**
+     * Same as deleteInlandWater, with the marks and queue off heap and long
+     * indexes, so the fill adds nothing to the heap.
+     */
+    private void deleteInlandWaterOffHeap()
+    {
+        long n = (long) W*H;
+        OffHeapBuffer marked = workspace.offHeapMask(n);
+        OffHeapBuffer queue = workspace.offHeapQueue(n);
+        long head = 0, tail = 0;
+        
+        queue.putLong(tail++, 0);
+        marked.putByte(0, (byte) 1);
+        
+        while (head < tail)
+        {
+            if ((head & 4095) == 0)
+                context.checkpoint();
+            long i = queue.getLong(head++);
+            int x = (int) (i % W), y = (int) (i / W);
+            
+            if (x > 0 && marked.getByte(i-1) == 0 && grid.get(x-1, y) == WATER)
+            {
+                marked.putByte(i-1, (byte) 1);
+                queue.putLong(tail++, i-1);
+            }
+            if (x < W-1 && marked.getByte(i+1) == 0 && grid.get(x+1, y) == WATER)
+            {
+                marked.putByte(i+1, (byte) 1);
+                queue.putLong(tail++, i+1);
+            }
+            if (y > 0 && marked.getByte(i-W) == 0 && grid.get(x, y-1) == WATER)
+            {
+                marked.putByte(i-W, (byte) 1);
+                queue.putLong(tail++, i-W);
+            }
+            if (y < H-1 && marked.getByte(i+W) == 0 && grid.get(x, y+1) == WATER)
+            {
+                marked.putByte(i+W, (byte) 1);
+                queue.putLong(tail++, i+W);
+            }
+        }
+        
+        // Row major, the order the grid is stored in
+        for (int y = 0; y < H; y++)
+            for (int x = 0; x < W; x++)
+            {
+                if (grid.get(x, y) == WATER && marked.getByte((long) y*W + x) == 0)
                 {
-                    setTile(x, y, SAND);
+                    grid.set(x, y, SAND);
                 }
             }
     }
@@ -1159,7 +2245,7 @@ public class PirateMap
                 int y2 = y + h/2 + y1;
                 if (x2 > 0 && y2 > 0 &&
                         x2 < W && y2 < H)
-                    grid[x2][y2] = type;
+                    grid.set(x2, y2, type);
             }
         }
     }
@@ -1174,7 +2260,7 @@ public class PirateMap
             for (int y1 = y; y1 < y+h; y1++)
             {
                 if (x1 >= 0 && x1 < W && y1 >= 0 && y1 < H)
-                    grid[x1][y1] = type;
+                    grid.set(x1, y1, type);
             }
         }
     }
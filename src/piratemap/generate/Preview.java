@@ -0,0 +1,236 @@
+package piratemap.generate;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+
+import piratemap.generate.PirateMap.Coord;
+import piratemap.generate.PirateMap.Tile;
+import piratemap.generate.PirateMap.Treasure;
+
+/**
+ * Small picture of a map straight from the grid, for thumbnails and listings.
+ *
+ * Every grid location is a flat colour, one or more pixels, or for a map bigger
+ * than the preview one location is picked per pixel. Routes are one pixel wide
+ * lines and the marks small Xs. Pixels are written straight into the image's
+ * int array, no atlas, sprites or strokes, so it costs about as much as reading
+ * the grid locations it shows.
+ */
+public class Preview
+{
+    /**
+     * RGB per Tile ordinal, the svg colours.
+     */
+    private static final int[] COLORS = new int[Tile.values().length];
+    static
+    {
+        COLORS[Tile.WATER.ordinal()] = 0x3f74a8;
+        COLORS[Tile.SAND.ordinal()] = 0xe8d5a0;
+        COLORS[Tile.TREES.ordinal()] = 0xb7c27a;
+        COLORS[Tile.HILL.ordinal()] = 0xc9ad78;
+    }
+
+    private static final int ROUTE = 0xff0000;
+
+    /**
+     * @param map
+     * @param size Largest width or height of the preview.
+     * @return RGB image, the map's shape, at most size x size. A whole number
+     * of pixels per location if the map fits.
+     */
+    public static BufferedImage render(PirateMap map, int size)
+    {
+        int W = map.W, H = map.H;
+        int w, h;
+        if (Math.max(W, H) <= size)
+        {
+            int k = size / Math.max(W, H);
+            w = W*k;
+            h = H*k;
+        }
+        else
+        {
+            w = Math.max(1, (int) ((long) W*size / Math.max(W, H)));
+            h = Math.max(1, (int) ((long) H*size / Math.max(W, H)));
+        }
+
+        BufferedImage im = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        int[] px = ((DataBufferInt) im.getRaster().getDataBuffer()).getData();
+
+        if (w >= W)
+            fill(map, px, w, h);
+        else
+            sample(map, px, w, h);
+
+        for (Treasure tr : map.allTreasures())
+        {
+            if (tr.route != null)
+            {
+                Coord last = null;
+                for (Coord c : tr.route)
+                {
+                    if (last != null)
+                        line(px, w, h, pixel(last.x, W, w), pixel(last.y, H, h),
+                                pixel(c.x, W, w), pixel(c.y, H, h), ROUTE);
+                    last = c;
+                }
+            }
+            if (tr.mark != null)
+            {
+                int mx = pixel(tr.mark.x, W, w), my = pixel(tr.mark.y, H, h);
+                mark(px, w, h, mx, my, ROUTE);
+            }
+        }
+        return im;
+    }
+
+    /**
+     * Part of the map at any scale, for viewers. Like render, but the image
+     * is a window onto the whole map drawn at scale pixels per location.
+     * Only the locations under the window are read, so the cost depends on
+     * the image size, not the map's.
+     * @param im TYPE_INT_ARGB, pixels past the map edge are left transparent.
+     * @param ox Left of the window in pixels of the whole map.
+     * @param oy Top of the window.
+     * @param scale Pixels per location.
+     */
+    static void region(PirateMap map, BufferedImage im, long ox, long oy, double scale)
+    {
+        int w = im.getWidth(), h = im.getHeight();
+        int[] px = ((DataBufferInt) im.getRaster().getDataBuffer()).getData();
+
+        int[] row = new int[h];
+        for (int y = 0; y < h; y++)
+            row[y] = (int) Math.min(Math.floor((oy + y) / scale), Integer.MAX_VALUE);
+        for (int x = 0; x < w; x++)
+        {
+            map.context.checkpoint();
+            long gx = (long) Math.floor((ox + x) / scale);
+            for (int y = 0; y < h; y++)
+                px[y*w + x] = gx < map.W && row[y] < map.H
+                        ? 0xff000000 | COLORS[map.getTile((int) gx, row[y]).ordinal()] : 0;
+        }
+
+        int route = 0xff000000 | ROUTE;
+        for (Treasure tr : map.allTreasures())
+        {
+            if (tr.route != null)
+            {
+                Coord last = null;
+                for (Coord c : tr.route)
+                {
+                    // Segments are short, skip those nowhere near the window
+                    if (last != null && Math.max(last.x, c.x) + 1 >= (ox - 1) / scale
+                            && Math.min(last.x, c.x) - 1 <= (ox + w) / scale
+                            && Math.max(last.y, c.y) + 1 >= (oy - 1) / scale
+                            && Math.min(last.y, c.y) - 1 <= (oy + h) / scale)
+                        line(px, w, h, pixel(last.x, ox, scale), pixel(last.y, oy, scale),
+                                pixel(c.x, ox, scale), pixel(c.y, oy, scale), route);
+                    last = c;
+                }
+            }
+            if (tr.mark != null)
+                mark(px, w, h, pixel(tr.mark.x, ox, scale), pixel(tr.mark.y, oy, scale), route);
+        }
+    }
+
+    /**
+     * k x k pixels per location, a row of pixels is made once per grid row
+     * and copied down.
+     */
+    private static void fill(PirateMap map, int[] px, int w, int h)
+    {
+        int k = w / map.W;
+        for (int gy = 0; gy < map.H; gy++)
+        {
+            map.context.checkpoint();
+            int row = gy*k*w;
+            for (int gx = 0; gx < map.W; gx++)
+            {
+                int c = COLORS[map.getTile(gx, gy).ordinal()];
+                for (int i = 0; i < k; i++)
+                    px[row + gx*k + i] = c;
+            }
+            for (int i = 1; i < k; i++)
+                System.arraycopy(px, row, px, row + i*w, w);
+        }
+    }
+
+    /**
+     * One location per pixel. Column by column, the order the grid is stored
+     * in, as most of the time goes on fetching locations.
+     */
+    private static void sample(PirateMap map, int[] px, int w, int h)
+    {
+        int[] row = new int[h];
+        for (int y = 0; y < h; y++)
+            row[y] = (int) ((long) y*map.H / h);
+
+        for (int x = 0; x < w; x++)
+        {
+            map.context.checkpoint();
+            int gx = (int) ((long) x*map.W / w);
+            for (int y = 0; y < h; y++)
+                px[y*w + x] = COLORS[map.getTile(gx, row[y]).ordinal()];
+        }
+    }
+
+    /**
+     * @return Pixel at the middle of grid location g, along a side of n locations and p pixels.
+     */
+    private static int pixel(int g, int n, int p)
+    {
+        return (int) ((2L*g + 1)*p / (2L*n));
+    }
+
+    /**
+     * @return Pixel at the middle of grid location g, for a window starting at pixel o.
+     */
+    private static int pixel(int g, long o, double scale)
+    {
+        return (int) Math.max(Math.min((long) Math.floor((g + .5) * scale) - o,
+                Integer.MAX_VALUE / 2), Integer.MIN_VALUE / 2);
+    }
+
+    private static void set(int[] px, int w, int h, int x, int y, int c)
+    {
+        if (x >= 0 && y >= 0 && x < w && y < h)
+            px[y*w + x] = c;
+    }
+
+    private static void mark(int[] px, int w, int h, int mx, int my, int c)
+    {
+        for (int d = -2; d <= 2; d++)
+        {
+            set(px, w, h, mx + d, my + d, c);
+            set(px, w, h, mx + d, my - d, c);
+        }
+    }
+
+    /**
+     * Bresenham line, both ends included.
+     */
+    private static void line(int[] px, int w, int h, int x0, int y0, int x1, int y1, int c)
+    {
+        int dx = Math.abs(x1 - x0), dy = -Math.abs(y1 - y0);
+        int sx = x0 < x1 ? 1 : -1, sy = y0 < y1 ? 1 : -1;
+        int err = dx + dy;
+        while (true)
+        {
+            set(px, w, h, x0, y0, c);
+            if (x0 == x1 && y0 == y1)
+                return;
+            int e2 = 2*err;
+            if (e2 >= dy)
+            {
+                err += dy;
+                x0 += sx;
+            }
+            if (e2 <= dx)
+            {
+                err += dx;
+                y0 += sy;
+            }
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package piratemap.generate;
+
+import static piratemap.generate.PirateMap.Tile.*;
+
+import java.io.IOException;
+import java.util.Random;
+
+import piratemap.generate.PirateMap.Coord;
+import piratemap.generate.PirateMap.Treasure;
+import piratemap.utils.IntRaster;
+import piratemap.utils.Tileset;
+
+/**
+ * PirateMap.render without java.awt, onto an IntRaster, for servers and
+ * builds where AWT is unwelcome. Encode the result with PngEncoder.
+ *
+ * Draws the same layers in the same order and takes the same numbers from
+ * rand, so water variants, hills and palms land where render() puts them.
+ * Lines are rasterized directly, see IntRaster.drawLine, so the only
+ * differences from render() are a few edge pixels of the routes and Xs and
+ * rounding of blended colours.
+ */
+class RasterRenderer
+{
+    private static final int RED = 0xffff0000;
+
+    /**
+     * Hill and palm sprites, read once.
+     */
+    private static class Sprites
+    {
+        static IntRaster hill, palm;
+        static
+        {
+            try
+            {
+                hill = IntRaster.load("tiles/hill");
+                palm = IntRaster.load("tiles/palm_small");
+            } catch (IOException e)
+            {
+                e.printStackTrace();
+                System.exit(1);
+            }
+        }
+    }
+
+    static IntRaster render(PirateMap map, int tileSizeX, int tileSizeY, Random rand, Tileset theme)
+    {
+        IntRaster hill = Sprites.hill, palm = Sprites.palm;
+        int W = map.W, H = map.H;
+        TileGrid grid = map.grid;
+        GenerationContext context = map.context;
+        IntRaster im = new IntRaster(W*tileSizeX, H*tileSizeY);
+
+        int[] codes = new int[4];
+        for (int x = 0; x < W; x++)
+        {
+            context.checkpoint();
+            context.progress(.5 * x / W);
+            for (int y = 0; y < H; y++)
+            {
+                map.getCornersWaterSand1(x, y, codes);
+                theme.printTile(im, x*tileSizeX, y*tileSizeY, tileSizeX, tileSizeY,
+                        codes[0], codes[1], codes[2], codes[3], rand);
+            }
+        }
+
+        // Overlays are shifted -.5, -.5 as in render
+        int ox = -tileSizeX/2, oy = -tileSizeY/2;
+
+        // Water gets darker away from land
+        short[] depth = CoastDistance.toLand(map);
+        for (int x = 0; x < W; x++)
+            for (int y = 0; y < H; y++)
+            {
+                int dd = Math.min(depth[y*W + x], 7) - 1;
+                if (dd > 0)
+                    im.fillRect(ox + x*tileSizeX, oy + y*tileSizeY, tileSizeX, tileSizeY,
+                            (dd*9) << 24 | 0x001030);
+            }
+
+        context.progress(.6);
+        for (int x = 0; x < W; x++)
+        {
+            context.checkpoint();
+            for (int y = 0; y < H; y++)
+            {
+                if (grid.get(x, y) != HILL)
+                    continue;
+                im.drawImage(hill, ox + x*tileSizeX + rand.nextInt(tileSizeX/4),
+                        oy + y*tileSizeY + rand.nextInt(tileSizeY/4), tileSizeX, tileSizeY);
+                if (x == W-1 || y == H-1)
+                    continue;
+                if (grid.get(x+1, y) != WATER && grid.get(x, y+1) != WATER
+                        && grid.get(x+1, y+1) != WATER)
+                    im.drawImage(hill, ox + x*tileSizeX + tileSizeX/2 + rand.nextInt(tileSizeX/2),
+                            oy + y*tileSizeY + tileSizeY/2 + rand.nextInt(tileSizeY/2),
+                            tileSizeX, tileSizeY);
+            }
+        }
+
+        // The trees are 16x32
+        context.progress(.8);
+        for (int x = 0; x < W; x++)
+        {
+            context.checkpoint();
+            for (int y = 0; y < H; y++)
+            {
+                if (grid.get(x, y) != TREES)
+                    continue;
+                im.drawImage(palm, ox + x*tileSizeX + rand.nextInt(tileSizeX/4),
+                        oy + y*tileSizeY - tileSizeY/2 + rand.nextInt(tileSizeY/4),
+                        tileSizeX/2, tileSizeY);
+                if (x == W-1 || y == H-1)
+                    continue;
+                if (grid.get(x+1, y) != WATER && grid.get(x, y+1) != WATER
+                        && grid.get(x+1, y+1) != WATER)
+                {
+                    im.drawImage(palm, ox + x*tileSizeX + rand.nextInt(tileSizeX/2),
+                            oy + y*tileSizeY - tileSizeY/2 + rand.nextInt(tileSizeY/2),
+                            tileSizeX/2, tileSizeY);
+                    im.drawImage(palm, ox + x*tileSizeX + rand.nextInt(tileSizeX/2),
+                            oy + y*tileSizeY - tileSizeY/2 + rand.nextInt(tileSizeY/2),
+                            tileSizeX/2, tileSizeY);
+                }
+            }
+        }
+
+        // Routes, dashed 10 on 10 off with round caps, then a 7 pixel X.
+        // Java2D draws a line through the middles of the pixels at its ends.
+        double cx = ox + tileSizeX/2 + .5, cy = oy + tileSizeY/2 + .5;
+        for (Treasure tr : map.allTreasures())
+        {
+            if (tr.route == null)
+                continue;
+            Coord last = null;
+            for (Coord c : tr.route)
+            {
+                if (last != null)
+                    im.drawDashedLine(cx + last.x*tileSizeX, cy + last.y*tileSizeY,
+                            cx + c.x*tileSizeX, cy + c.y*tileSizeY, 3, 10, RED);
+                last = c;
+            }
+
+            Coord mark = tr.mark;
+            double mx = ox + mark.x*tileSizeX + .5, my = oy + mark.y*tileSizeY + .5;
+            im.drawLine(mx, my, mx + tileSizeX, my + tileSizeY, 7, false, RED);
+            im.drawLine(mx, my + tileSizeY, mx + tileSizeX, my, 7, false, RED);
+        }
+        return im;
+    }
+}
@@ -0,0 +1,269 @@
+package piratemap.generate;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.imageio.ImageIO;
+
+import piratemap.generate.PirateMap.Options;
+import piratemap.utils.SeedTree;
+import piratemap.utils.Tileset;
+
+/**
+ * Guards that rendering many maps at once gives the same pictures as
+ * rendering them one at a time: the tilesets, atlases and sprites every
+ * render shares must never be changed by one.
+ *
+ * Makes --maps small maps of different sizes, tile sizes and themes (every
+ * tiles/*.tsx, and a copy of the default one with its colours swapped, so
+ * there are always at least two atlases in use), each drawn one of three
+ * ways: render(), the raster renderer, or renderRegion a block at a time as
+ * the tile pyramid does. All are drawn on --threads threads at once in a
+ * shuffled order and a checksum of each picture kept, then all again one
+ * after another, and the checksums compared. Exits with 1 if any differs.
+ *
+ * Like the other tools it reads tiles/ from the current directory, so run it
+ * from the one holding it.
+ */
+public class RenderStress
+{
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
+    private static final int[] TILE_SIZES = { 8, 12, 16, 20, 32 };
+    private static final String[] KINDS = { "java2d", "raster", "region" };
+    // Locations per renderRegion block
+    private static final int BLOCK = 8;
+
+    /**
+     * One map and how to draw it.
+     */
+    static class Case
+    {
+        final int index;
+        final PirateMap map;
+        final long seed;
+        final int tileSize;
+        final String kind;
+        final Tileset theme;
+
+        Case(int index, PirateMap map, long seed, int tileSize, String kind, Tileset theme)
+        {
+            this.index = index;
+            this.map = map;
+            this.seed = seed;
+            this.tileSize = tileSize;
+            this.kind = kind;
+            this.theme = theme;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "--seed " + seed + " --size " + map.W*tileSize + "x" + map.H*tileSize
+                    + " --tileSize " + tileSize + " " + kind + " --theme " + theme.name;
+        }
+    }
+
+    /**
+     * Draw c and checksum the picture.
+     */
+    static long draw(Case c)
+    {
+        int ts = c.tileSize;
+        Random rand = new SeedTree(c.seed).child("render").random();
+        if ("java2d".equals(c.kind))
+            return checksum(FNV_OFFSET, c.map.render(ts, ts, rand, c.theme));
+        if ("raster".equals(c.kind))
+            return checksum(FNV_OFFSET, RasterRenderer.render(c.map, ts, ts, rand, c.theme).pixels);
+
+        long sum = FNV_OFFSET;
+        long seed = TilePyramid.renderSeed(c.seed);
+        for (int by = 0; by < c.map.H; by += BLOCK)
+            for (int bx = 0; bx < c.map.W; bx += BLOCK)
+            {
+                BufferedImage im = new BufferedImage(BLOCK*ts, BLOCK*ts, BufferedImage.TYPE_INT_ARGB);
+                Graphics2D g2 = im.createGraphics();
+                g2.clipRect(0, 0, im.getWidth(), im.getHeight());
+                g2.translate(-bx*ts, -by*ts);
+                c.map.renderRegion(g2, bx - 2, by - 2, bx + BLOCK + 2, by + BLOCK + 2, ts, seed, c.theme);
+                g2.dispose();
+                sum = checksum(sum, im);
+            }
+        return sum;
+    }
+
+    private static long checksum(long h, BufferedImage im)
+    {
+        return checksum(h, ((DataBufferInt) im.getRaster().getDataBuffer()).getData());
+    }
+
+    /**
+     * FNV-1a over the pixels, a byte at a time.
+     */
+    private static long checksum(long h, int[] pixels)
+    {
+        for (int p : pixels)
+            for (int k = 0; k < 32; k += 8)
+            {
+                h ^= p >>> k & 0xff;
+                h *= FNV_PRIME;
+            }
+        return h;
+    }
+
+    /**
+     * Every theme in tiles/, and swapped().
+     */
+    private static List<Tileset> themes() throws IOException
+    {
+        List<Tileset> themes = new ArrayList<>();
+        File[] files = new File(Tileset.DIR).listFiles();
+        if (files != null)
+            for (File f : files)
+                if (f.getName().endsWith(".tsx"))
+                    themes.add(Tileset.theme(f.getName().replaceFirst("\\.tsx$", "")));
+        if (themes.isEmpty())
+            throw new IOException("No themes in " + Tileset.DIR);
+        themes.add(swapped());
+        return themes;
+    }
+
+    /**
+     * The default theme as "swapped", in a temporary directory with every
+     * png of tiles/ red and blue swapped, deleted on exit.
+     */
+    private static Tileset swapped() throws IOException
+    {
+        File dir = Files.createTempDirectory("themes").toFile();
+        dir.deleteOnExit();
+        File tsx = new File(dir, "swapped.tsx");
+        tsx.deleteOnExit();
+        Tileset.sidecar(tsx).deleteOnExit();
+        Files.copy(new File(Tileset.DIR, Tileset.DEFAULT_THEME + ".tsx").toPath(), tsx.toPath());
+
+        File[] files = new File(Tileset.DIR).listFiles();
+        if (files != null)
+            for (File f : files)
+            {
+                if (!f.getName().endsWith(".png"))
+                    continue;
+                BufferedImage src = ImageIO.read(f);
+                if (src == null)
+                    throw new IOException("Cannot read " + f);
+                BufferedImage im = new BufferedImage(src.getWidth(), src.getHeight(),
+                        src.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB
+                                : BufferedImage.TYPE_INT_RGB);
+                for (int y = 0; y < im.getHeight(); y++)
+                    for (int x = 0; x < im.getWidth(); x++)
+                    {
+                        int p = src.getRGB(x, y);
+                        im.setRGB(x, y, p & 0xff00ff00 | (p >>> 16 & 0xff) | (p & 0xff) << 16);
+                    }
+                File out = new File(dir, f.getName());
+                out.deleteOnExit();
+                ImageIO.write(im, "png", out);
+            }
+        return Tileset.load(tsx);
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException
+    {
+        int maps = 200;
+        int threads = Math.max(4, 2*Runtime.getRuntime().availableProcessors());
+        for (int i = 0; i < args.length; i++)
+        {
+            if ("--maps".equals(args[i]) && i < args.length - 1)
+                maps = Integer.parseInt(args[++i]);
+            else if ("--threads".equals(args[i]) && i < args.length - 1)
+                threads = Integer.parseInt(args[++i]);
+            else
+            {
+                System.out.println("RenderStress [--maps <n>] [--threads <n>]");
+                System.out.println("Run from the directory holding tiles/");
+                return;
+            }
+        }
+
+        // Maps first, generating is not what is checked here
+        List<Tileset> themes = themes();
+        Random mix = new Random(1);
+        List<Case> cases = new ArrayList<>();
+        for (int i = 0; i < maps; i++)
+        {
+            Options o = new Options();
+            o.seed = i + 1;
+            o.tileSize = TILE_SIZES[mix.nextInt(TILE_SIZES.length)];
+            o.imageX = (16 + mix.nextInt(40)) * o.tileSize;
+            o.imageY = (16 + mix.nextInt(40)) * o.tileSize;
+            o.quiet = true;
+            PirateMap map = Pipeline.generate(o, Pipeline.Stage.ROUTE);
+            cases.add(new Case(i, map, o.seed, o.tileSize, KINDS[i % KINDS.length],
+                    themes.get(mix.nextInt(themes.size()))));
+        }
+
+        // At once first, so the atlases also load under contention
+        List<Case> shuffled = new ArrayList<>(cases);
+        Collections.shuffle(shuffled, mix);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<Long>> futures = new ArrayList<>();
+        long t0 = System.nanoTime();
+        for (final Case c : shuffled)
+            futures.add(pool.submit(new Callable<Long>() {
+                @Override
+                public Long call()
+                {
+                    return draw(c);
+                }
+            }));
+        Long[] parallel = new Long[maps];
+        for (int i = 0; i < shuffled.size(); i++)
+        {
+            try
+            {
+                parallel[shuffled.get(i).index] = futures.get(i).get();
+            } catch (ExecutionException e)
+            {
+                System.out.println(shuffled.get(i) + ": " + e.getCause());
+            }
+        }
+        long parallelNanos = System.nanoTime() - t0;
+        pool.shutdown();
+
+        t0 = System.nanoTime();
+        int differ = 0;
+        for (Case c : cases)
+        {
+            long sum = draw(c);
+            if (parallel[c.index] == null)
+                differ++;
+            else if (sum != parallel[c.index])
+            {
+                System.out.println(c + ": differs from drawing it alone");
+                differ++;
+            }
+        }
+        long serialNanos = System.nanoTime() - t0;
+
+        System.out.println(String.format(Locale.ROOT,
+                "%d maps, %d themes, %d threads, %.1fs one at a time, %.1fs at once, %s",
+                maps, themes.size(), threads, serialNanos / 1e9, parallelNanos / 1e9,
+                differ == 0 ? "all the same" : differ + " differ"));
+        if (differ > 0)
+            System.exit(1);
+    }
+}
@@ -0,0 +1,255 @@
+package piratemap.generate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import piratemap.generate.PirateMap.Options;
+import piratemap.generate.PirateMap.Tile;
+
+/**
+ * Scan a range of seeds on all cores for maps that meet some criteria, eg.
+ * a route with at least 12 turns, or the X on a hill.
+ *
+ * Only the grid stages are run, nothing is rendered and no directions are
+ * made, see Pipeline.generate. Matches are printed as soon as they are found,
+ * so they are not in seed order. The search stops after --limit matches.
+ */
+public class SeedSearch
+{
+    /**
+     * Test a generated map.
+     */
+    public interface MapPredicate
+    {
+        boolean accept(PirateMap map, MapMetrics m);
+    }
+
+    private final Options base;
+    private final List<MapPredicate> predicates = new ArrayList<>();
+    private long from = 1, to = Long.MAX_VALUE;
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int limit = 10;
+
+    private final AtomicLong next = new AtomicLong();
+    private final AtomicLong scanned = new AtomicLong();
+    private final AtomicInteger hits = new AtomicInteger();
+
+    public SeedSearch(Options base)
+    {
+        this.base = base;
+    }
+
+    public void add(MapPredicate p)
+    {
+        predicates.add(p);
+    }
+
+    /**
+     * Search from..to, both inclusive.
+     * @return Number of matches found.
+     */
+    public int run() throws InterruptedException
+    {
+        next.set(from);
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++)
+        {
+            workers[i] = new Thread(new Runnable() {
+                @Override
+                public void run()
+                {
+                    search();
+                }
+            }, "SeedSearch-" + i);
+            workers[i].start();
+        }
+        for (Thread t : workers)
+            t.join();
+        return Math.min(hits.get(), limit);
+    }
+
+    private void search()
+    {
+        Workspace ws = new Workspace();
+        while (hits.get() < limit)
+        {
+            long seed = next.getAndIncrement();
+            // Also stops if next wrapped around past Long.MAX_VALUE
+            if (seed > to || seed < from)
+                return;
+
+            Options o = new Options();
+            o.imageX = base.imageX;
+            o.imageY = base.imageY;
+            o.tileSize = base.tileSize;
+            o.treasures = base.treasures;
+            o.legacyRandom = base.legacyRandom;
+            o.quiet = true;
+            o.seed = seed;
+
+            PirateMap map = Pipeline.generate(o, Pipeline.Stage.ROUTE, null, ws);
+            MapMetrics m = new MapMetrics(map);
+            scanned.incrementAndGet();
+
+            boolean ok = true;
+            for (MapPredicate p : predicates)
+            {
+                if (!p.accept(map, m))
+                {
+                    ok = false;
+                    break;
+                }
+            }
+
+            // Others may have found the last match meanwhile
+            if (ok && hits.incrementAndGet() <= limit)
+                report(seed, m);
+        }
+    }
+
+    private static synchronized void report(long seed, MapMetrics m)
+    {
+        System.out.println(String.format(Locale.ROOT,
+                "seed %d  %dx%d  land %.1f%%  route %d  turns %d",
+                seed, m.W, m.H, 100*m.landFraction(), m.routeLength, m.turns));
+        System.out.flush();
+    }
+
+    static void usage()
+    {
+        System.out.println("SeedSearch [--from <seed>] [--to <seed>] [--threads <n>] [--limit <k>]\n"
+                + "           [--minTurns <n>] [--maxTurns <n>] [--minRoute <n>]\n"
+                + "           [--minLand <percent>] [--maxLand <percent>] [--markOn sand|trees|hill]\n"
+                + "           [PirateMap options: --size --tileSize --treasures --legacyRandom]\n"
+                + "Default is seeds 1 and up on all cores, stopping after 10 matches.");
+    }
+
+    private static void printArgError(String msg)
+    {
+        System.out.println(msg);
+        usage();
+        System.exit(0);
+    }
+
+    private static long number(String[] args, int i)
+    {
+        if (i >= args.length)
+            printArgError(args[i-1] + " needs an arguement.");
+        try {
+            return Long.parseLong(args[i]);
+        } catch (NumberFormatException e)
+        {
+            printArgError("Expecting a number for " + args[i-1] + " " + e.getMessage());
+        }
+        return 0;
+    }
+
+    public static void main(String[] args) throws InterruptedException
+    {
+        Options options = new Options();
+        options.tileSize = 32;
+        SeedSearch search = new SeedSearch(options);
+
+        // Anything not ours goes to PirateMap
+        List<String> rest = new ArrayList<>();
+        for (int i = 0; i < args.length; i++)
+        {
+            String a = args[i];
+            if ("--from".equals(a))
+                search.from = number(args, ++i);
+            else if ("--to".equals(a))
+                search.to = number(args, ++i);
+            else if ("--threads".equals(a))
+                search.threads = (int) Math.max(1, number(args, ++i));
+            else if ("--limit".equals(a))
+                search.limit = (int) Math.max(1, number(args, ++i));
+            else if ("--minTurns".equals(a))
+            {
+                final long n = number(args, ++i);
+                search.add(new MapPredicate() {
+                    @Override
+                    public boolean accept(PirateMap map, MapMetrics m)
+                    {
+                        return m.turns >= n;
+                    }
+                });
+            }
+            else if ("--maxTurns".equals(a))
+            {
+                final long n = number(args, ++i);
+                search.add(new MapPredicate() {
+                    @Override
+                    public boolean accept(PirateMap map, MapMetrics m)
+                    {
+                        return m.failedRoutes == 0 && m.treasures > 0 && m.turns <= n;
+                    }
+                });
+            }
+            else if ("--minRoute".equals(a))
+            {
+                final long n = number(args, ++i);
+                search.add(new MapPredicate() {
+                    @Override
+                    public boolean accept(PirateMap map, MapMetrics m)
+                    {
+                        return m.routeLength >= n;
+                    }
+                });
+            }
+            else if ("--minLand".equals(a))
+            {
+                final long n = number(args, ++i);
+                search.add(new MapPredicate() {
+                    @Override
+                    public boolean accept(PirateMap map, MapMetrics m)
+                    {
+                        return 100*m.landFraction() >= n;
+                    }
+                });
+            }
+            else if ("--maxLand".equals(a))
+            {
+                final long n = number(args, ++i);
+                search.add(new MapPredicate() {
+                    @Override
+                    public boolean accept(PirateMap map, MapMetrics m)
+                    {
+                        return 100*m.landFraction() <= n;
+                    }
+                });
+            }
+            else if ("--markOn".equals(a))
+            {
+                if (i >= args.length - 1)
+                    printArgError("--markOn needs an arguement.");
+                String t = args[++i];
+                final Tile tile = "sand".equals(t) ? Tile.SAND
+                        : "trees".equals(t) ? Tile.TREES
+                        : "hill".equals(t) ? Tile.HILL : null;
+                if (tile == null)
+                    printArgError("Expecting sand, trees or hill for --markOn");
+                search.add(new MapPredicate() {
+                    @Override
+                    public boolean accept(PirateMap map, MapMetrics m)
+                    {
+                        return m.allMarksOn(tile);
+                    }
+                });
+            }
+            else
+                rest.add(a);
+        }
+        PirateMap.getOptions(rest.toArray(new String[rest.size()]), options);
+
+        long start = System.nanoTime();
+        int found = search.run();
+        double secs = (System.nanoTime() - start) / 1e9;
+        long n = search.scanned.get();
+        System.err.println(String.format(Locale.ROOT,
+                "%d matches in %d seeds, %.1fs, %.0f seeds/s",
+                found, n, secs, n / Math.max(secs, 1e-9)));
+    }
+}
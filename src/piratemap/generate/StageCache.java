@@ -0,0 +1,81 @@
+package piratemap.generate;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * In-memory LRU cache of stage outputs, keyed by stage cache key.
+ * Values are shared, callers must not modify them.
+ *
+ * Bounded by the number of entries and, for values put with their size, by
+ * the bytes they hold. A value larger than the whole budget is not kept.
+ */
+class StageCache
+{
+    private static class Entry
+    {
+        final Object value;
+        final long bytes;
+
+        Entry(Object value, long bytes)
+        {
+            this.value = value;
+            this.bytes = bytes;
+        }
+    }
+
+    private final LinkedHashMap<String, Entry> map = new LinkedHashMap<>(16, .75f, true);
+    private final int maxEntries;
+    private final long maxBytes;
+    private long bytes;
+
+    StageCache(int maxEntries)
+    {
+        this(maxEntries, Long.MAX_VALUE);
+    }
+
+    /**
+     * @param maxEntries
+     * @param maxBytes Most bytes held by values put with their size.
+     */
+    StageCache(int maxEntries, long maxBytes)
+    {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+    }
+
+    synchronized Object get(String key)
+    {
+        Entry e = map.get(key);
+        return e == null ? null : e.value;
+    }
+
+    /**
+     * Put a value whose size does not count against the byte budget.
+     */
+    synchronized void put(String key, Object value)
+    {
+        put(key, value, 0);
+    }
+
+    /**
+     * @param size Bytes the value holds, roughly.
+     */
+    synchronized void put(String key, Object value, long size)
+    {
+        Entry old = map.remove(key);
+        if (old != null)
+            bytes -= old.bytes;
+        if (size > maxBytes)
+            return;
+        map.put(key, new Entry(value, size));
+        bytes += size;
+
+        Iterator<Entry> eldest = map.values().iterator();
+        while (map.size() > maxEntries || bytes > maxBytes)
+        {
+            bytes -= eldest.next().bytes;
+            eldest.remove();
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package piratemap.generate;
+
+import static piratemap.generate.PirateMap.Tile.*;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import piratemap.generate.PirateMap.Coord;
+import piratemap.generate.PirateMap.Tile;
+import piratemap.generate.PirateMap.Treasure;
+import piratemap.utils.Contours;
+
+/**
+ * Write a map as SVG.
+ *
+ * Coastlines and hill/tree regions are traced from the grid with marching squares
+ * and simplified, palms and hills are references to shared symbols. Everything is
+ * in grid units, so the picture scales to any print size. Output is written
+ * as it goes; what is held in memory is the traced contours and, while each
+ * region is traced, a W x H mask of it.
+ */
+public class SvgWriter
+{
+    // Max distance (in tiles) a simplified contour may stray from the traced one.
+    private static final double SIMPLIFY_EPSILON = 0.3;
+
+    private static final String WATER_COLOR = "#3f74a8";
+    private static final String SAND_COLOR = "#e8d5a0";
+    private static final String HILL_COLOR = "#c9ad78";
+    private static final String TREES_COLOR = "#b7c27a";
+    private static final String ROUTE_COLOR = "#ff0000";
+
+    private final PirateMap map;
+    private final int tileSize;
+    private final Writer out;
+    private final Random rand;
+
+    /**
+     * @param map
+     * @param tileSize
+     * @param out
+     * @param rand Jitter of the hills and palms, the same rand gives the same file.
+     */
+    SvgWriter(PirateMap map, int tileSize, Writer out, Random rand)
+    {
+        this.map = map;
+        this.tileSize = tileSize;
+        this.out = out;
+        this.rand = rand;
+    }
+
+    void write() throws IOException
+    {
+        int W = map.W, H = map.H;
+
+        out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        out.write("<svg xmlns=\"http://www.w3.org/2000/svg\""
+                + " xmlns:xlink=\"http://www.w3.org/1999/xlink\"");
+        out.write(" width=\"" + W*tileSize + "\" height=\"" + H*tileSize + "\"");
+        out.write(" viewBox=\"0 0 " + W + " " + H + "\">\n");
+
+        writeDefs();
+
+        out.write("<rect width=\"" + W + "\" height=\"" + H + "\" fill=\"" + WATER_COLOR + "\"/>\n");
+
+        writeRegion(mask(null), SAND_COLOR, "#a08c5a");
+        writeRegion(mask(HILL), HILL_COLOR, null);
+        writeRegion(mask(TREES), TREES_COLOR, null);
+
+        writeSymbols();
+        writeRoute();
+
+        out.write("</svg>\n");
+    }
+
+    /**
+     * One symbol each for hills and palms, both sized in tiles.
+     * Palms are half a tile wide, like the png sprite.
+     */
+    private void writeDefs() throws IOException
+    {
+        out.write("<defs>\n");
+        out.write("<g id=\"hill\">"
+                + "<path d=\"M0.05 0.85Q0.5 0.05 0.95 0.85Z\" fill=\"#9c7b4b\""
+                + " stroke=\"#5b4527\" stroke-width=\"0.04\"/>"
+                + "<path d=\"M0.5 0.35Q0.62 0.6 0.78 0.8\" fill=\"none\""
+                + " stroke=\"#5b4527\" stroke-width=\"0.03\"/>"
+                + "</g>\n");
+        out.write("<g id=\"palm\">"
+                + "<path d=\"M0.22 1Q0.3 0.7 0.25 0.4\" fill=\"none\""
+                + " stroke=\"#7a5230\" stroke-width=\"0.07\"/>"
+                + "<path d=\"M0.25 0.4Q0.05 0.3 0 0.5M0.25 0.4Q0.45 0.3 0.5 0.5"
+                + "M0.25 0.4Q0.1 0.2 0.05 0.25M0.25 0.4Q0.4 0.2 0.45 0.25\""
+                + " fill=\"none\" stroke=\"#2f7a2a\" stroke-width=\"0.08\""
+                + " stroke-linecap=\"round\"/>"
+                + "</g>\n");
+        out.write("</defs>\n");
+    }
+
+    /**
+     * @param type Tile type to mask, null for all land.
+     */
+    private boolean[][] mask(Tile type)
+    {
+        boolean[][] m = new boolean[map.W][map.H];
+        for (int x = 0; x < map.W; x++)
+            for (int y = 0; y < map.H; y++)
+            {
+                Tile t = map.getTile(x, y);
+                m[x][y] = type == null ? t != WATER : t == type;
+            }
+        return m;
+    }
+
+    /**
+     * Trace, simplify and write all contours of the mask as one path.
+     */
+    private void writeRegion(boolean[][] mask, String fill, String stroke) throws IOException
+    {
+        List<double[]> rings = Contours.trace(mask, map.W, map.H);
+        if (rings.isEmpty())
+            return;
+
+        out.write("<path fill=\"" + fill + "\" fill-rule=\"evenodd\"");
+        if (stroke != null)
+            out.write(" stroke=\"" + stroke + "\" stroke-width=\"0.06\" stroke-linejoin=\"round\"");
+        out.write(" d=\"");
+        for (double[] ring : rings)
+        {
+            double[] r = Contours.simplifyRing(ring, SIMPLIFY_EPSILON);
+            for (int i = 0; i < r.length; i+=2)
+            {
+                out.write(i == 0 ? 'M' : 'L');
+                out.write(num(r[i]));
+                out.write(' ');
+                out.write(num(r[i+1]));
+            }
+            out.write('Z');
+        }
+        out.write("\"/>\n");
+    }
+
+    /**
+     * Same placement as the png renderer, sprite top left is shifted half a
+     * tile up and left, with some random jitter.
+     */
+    private void writeSymbols() throws IOException
+    {
+        for (int x = 0; x < map.W; x++)
+            for (int y = 0; y < map.H; y++)
+            {
+                Tile t = map.getTile(x, y);
+                if (t != HILL && t != TREES)
+                    continue;
+
+                boolean inside = x < map.W-1 && y < map.H-1
+                        && map.getTile(x+1, y) != WATER
+                        && map.getTile(x, y+1) != WATER
+                        && map.getTile(x+1, y+1) != WATER;
+
+                if (t == HILL)
+                {
+                    use("hill", x - .5 + rand.nextDouble()/4, y - .5 + rand.nextDouble()/4);
+                    if (inside)
+                        use("hill", x + rand.nextDouble()/2, y + rand.nextDouble()/2);
+                }
+                else
+                {
+                    use("palm", x - .5 + rand.nextDouble()/4, y - 1 + rand.nextDouble()/4);
+                    if (inside)
+                    {
+                        use("palm", x - .5 + rand.nextDouble()/2, y - 1 + rand.nextDouble()/2);
+                        use("palm", x - .5 + rand.nextDouble()/2, y - 1 + rand.nextDouble()/2);
+                    }
+                }
+            }
+    }
+
+    private void use(String id, double x, double y) throws IOException
+    {
+        out.write("<use xlink:href=\"#" + id + "\" x=\"" + num(x) + "\" y=\"" + num(y) + "\"/>\n");
+    }
+
+    /**
+     * Dashed routes and the Xs. Line widths match the png at the given tile size.
+     */
+    private void writeRoute() throws IOException
+    {
+        double px = 1.0 / tileSize;
+
+        for (Treasure tr : map.allTreasures())
+        {
+            if (tr.route == null)
+                continue;
+
+            if (tr.route.size() > 1)
+            {
+                out.write("<path fill=\"none\" stroke=\"" + ROUTE_COLOR + "\" stroke-width=\"" + num(3*px)
+                        + "\" stroke-linecap=\"round\" stroke-linejoin=\"round\" stroke-dasharray=\""
+                        + num(10*px) + "\" d=\"");
+                boolean first = true;
+                for (Coord c : tr.route)
+                {
+                    out.write(first ? 'M' : 'L');
+                    out.write(c.x + " " + c.y);
+                    first = false;
+                }
+                out.write("\"/>\n");
+            }
+
+            double x0 = tr.mark.x - .5, y0 = tr.mark.y - .5;
+            out.write("<path fill=\"none\" stroke=\"" + ROUTE_COLOR + "\" stroke-width=\"" + num(7*px)
+                    + "\" d=\"M" + num(x0) + " " + num(y0) + "l1 1M" + num(x0) + " " + num(y0+1) + "l1 -1\"/>\n");
+        }
+    }
+
+    /**
+     * Short locale independent number.
+     */
+    private static String num(double v)
+    {
+        String s = String.format(Locale.ROOT, "%.3f", v);
+        int end = s.length();
+        while (s.charAt(end-1) == '0')
+            end--;
+        if (s.charAt(end-1) == '.')
+            end--;
+        s = s.substring(0, end);
+        return "-0".equals(s) ? "0" : s;
+    }
+}
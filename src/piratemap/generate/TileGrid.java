@@ -0,0 +1,19 @@
+package piratemap.generate;
+
+import piratemap.generate.PirateMap.Tile;
+
+/**
+ * Storage of a map's tiles. The map only uses the W x H corner, the storage
+ * may be larger when it is reused.
+ */
+interface TileGrid
+{
+    Tile get(int x, int y);
+
+    void set(int x, int y, Tile t);
+
+    /**
+     * Set the W x H corner to water.
+     */
+    void clear(int W, int H);
+}
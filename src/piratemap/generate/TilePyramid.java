@@ -0,0 +1,361 @@
+package piratemap.generate;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import javax.imageio.ImageIO;
+
+import piratemap.generate.PirateMap.Options;
+import piratemap.utils.SeedTree;
+import piratemap.utils.Tileset;
+import piratemap.utils.Util;
+
+/**
+ * A map as a pyramid of 256 x 256 pixel tiles, z/x/y as slippy maps use, so a
+ * map far too big for one image can be looked at piece by piece.
+ *
+ * The deepest zoom, maxZoom(), is the map at its tile size. Each tile there
+ * draws only the grid locations it covers (see PirateMap.renderRegion). Every
+ * zoom above it halves the size, a tile is its four tiles from the zoom below
+ * scaled down, so the whole map is only ever drawn once. Zoom 0 is one tile.
+ * The map sits at the top left, pixels past its edge are transparent, and
+ * tiles entirely past it do not exist.
+ *
+ * Tiles are kept in an LRU cache, which pyramids can share, and in a directory
+ * tree z/x/y.png if one is given, which is also how a pyramid is exported.
+ * A tile high up can take drawing a great many below it, so tile() takes a
+ * GenerationContext to stop at. Safe to share between threads.
+ */
+public class TilePyramid
+{
+    public static final int TILE = 256;
+    /** Bytes a cached tile holds */
+    static final long TILE_BYTES = 4L * TILE * TILE;
+
+    private final PirateMap map;
+    private final int tileSize;
+    private final long seed;
+    private final Tileset theme;
+    private final File dir;
+    private final StageCache cache;
+    // Tells this pyramid's tiles apart in a shared cache
+    private final String cacheKey;
+    private final int maxZoom;
+
+    /**
+     * @param map Must not change while the pyramid is used.
+     * @param tileSize Pixels per grid location at the deepest zoom.
+     * @param seed For the decorations, the same seed gives the same tiles.
+     * @param theme Terrain tiles to draw with.
+     * @param dir Directory for the z/x/y.png tree, null for memory only.
+     * @param cachedTiles Tiles kept in memory, 256 KB each.
+     */
+    public TilePyramid(PirateMap map, int tileSize, long seed, Tileset theme, File dir,
+            int cachedTiles)
+    {
+        this(map, tileSize, seed, theme, dir, new StageCache(cachedTiles), "");
+    }
+
+    /**
+     * Same as the public constructor, keeping tiles in cache, which may be
+     * shared with other pyramids.
+     * @param cacheKey Different for each pyramid sharing the cache.
+     */
+    TilePyramid(PirateMap map, int tileSize, long seed, Tileset theme, File dir,
+            StageCache cache, String cacheKey)
+    {
+        this.map = map;
+        this.tileSize = tileSize;
+        this.seed = seed;
+        this.theme = theme;
+        this.dir = dir;
+        this.cache = cache;
+        this.cacheKey = cacheKey;
+
+        long size = (long) Math.max(map.W, map.H) * tileSize;
+        int z = 0;
+        while (((long) TILE << z) < size)
+            z++;
+        maxZoom = z;
+    }
+
+    /**
+     * @return The deepest zoom, where one map pixel is one tile pixel.
+     */
+    public int maxZoom()
+    {
+        return maxZoom;
+    }
+
+    /**
+     * @return Whether tile z/x/y has any of the map.
+     */
+    public boolean exists(int z, int x, int y)
+    {
+        if (z < 0 || z > maxZoom || x < 0 || y < 0)
+            return false;
+        long span = (long) TILE << (maxZoom - z);
+        return x*span < (long) map.W*tileSize && y*span < (long) map.H*tileSize;
+    }
+
+    /**
+     * @return The tile, shared, do not draw on it. null if it does not exist.
+     * @throws IOException If the directory cannot be read or written.
+     */
+    public BufferedImage tile(int z, int x, int y) throws IOException
+    {
+        return tile(z, x, y, new GenerationContext());
+    }
+
+    /**
+     * Same as tile(z, x, y), stopping before each tile it has to draw once
+     * ctx is cancelled or past its deadline. The tiles drawn until then are
+     * kept, so asking again goes on from there.
+     * @throws GenerationCancelledException
+     */
+    public BufferedImage tile(int z, int x, int y, GenerationContext ctx) throws IOException
+    {
+        if (!exists(z, x, y))
+            return null;
+
+        String key = cacheKey + z + "/" + x + "/" + y;
+        BufferedImage im = (BufferedImage) cache.get(key);
+        if (im != null)
+            return im;
+
+        File f = dir == null ? null : file(z, x, y);
+        if (f != null && f.isFile())
+            im = ImageIO.read(f);
+        if (im == null)
+        {
+            ctx.checkpoint();
+            im = z == maxZoom ? render(x, y) : downsample(z, x, y, ctx);
+            if (f != null)
+                write(im, f);
+        }
+        cache.put(key, im, TILE_BYTES);
+        return im;
+    }
+
+    /**
+     * @return The tile as png, null if it does not exist.
+     */
+    public byte[] png(int z, int x, int y) throws IOException
+    {
+        return png(z, x, y, new GenerationContext());
+    }
+
+    /**
+     * Same as png(z, x, y), stopping as tile(z, x, y, ctx) does.
+     * @throws GenerationCancelledException
+     */
+    public byte[] png(int z, int x, int y, GenerationContext ctx) throws IOException
+    {
+        if (!exists(z, x, y))
+            return null;
+        if (dir != null)
+        {
+            File f = file(z, x, y);
+            if (!f.isFile())
+                tile(z, x, y, ctx);
+            return Files.readAllBytes(f.toPath());
+        }
+        return Util.encodePng(tile(z, x, y, ctx));
+    }
+
+    private File file(int z, int x, int y)
+    {
+        return new File(dir, z + File.separator + x + File.separator + y + ".png");
+    }
+
+    /**
+     * Write through a temporary file, so other threads and runs never see half a tile.
+     */
+    private static void write(BufferedImage im, File f) throws IOException
+    {
+        f.getParentFile().mkdirs();
+        File tmp = File.createTempFile("tile", ".tmp", f.getParentFile());
+        try
+        {
+            Files.write(tmp.toPath(), Util.encodePng(im));
+            Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally
+        {
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Tile at the deepest zoom, from the grid locations under it.
+     */
+    private BufferedImage render(int x, int y)
+    {
+        return render(map, tileSize, seed, theme, x, y);
+    }
+
+    /**
+     * TILE x TILE pixels of the picture of map at tileSize, with tile x, y's
+     * top left at pixel x * TILE, y * TILE. Draws only the grid locations
+     * under it, see PirateMap.renderRegion.
+     * @param tileSize At least 4.
+     */
+    static BufferedImage render(PirateMap map, int tileSize, long seed, Tileset theme,
+            int x, int y)
+    {
+        BufferedImage im = new BufferedImage(TILE, TILE, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g2 = im.createGraphics();
+        g2.clipRect(0, 0, TILE, TILE);
+        g2.translate(-x*TILE, -y*TILE);
+
+        // Locations under the tile, and two more each side for what reaches in
+        int x0 = (int) ((long) x*TILE / tileSize) - 2, y0 = (int) ((long) y*TILE / tileSize) - 2;
+        int x1 = (int) (((long) (x+1)*TILE + tileSize - 1) / tileSize) + 2;
+        int y1 = (int) (((long) (y+1)*TILE + tileSize - 1) / tileSize) + 2;
+        map.renderRegion(g2, x0, y0, x1, y1, tileSize, seed, theme);
+        g2.dispose();
+        return im;
+    }
+
+    /**
+     * Tile made from the four below it, each 2 x 2 pixels averaged.
+     */
+    private BufferedImage downsample(int z, int x, int y, GenerationContext ctx) throws IOException
+    {
+        BufferedImage im = new BufferedImage(TILE, TILE, BufferedImage.TYPE_INT_ARGB);
+        int[] src = new int[TILE*TILE];
+        int[] dst = new int[TILE/2 * TILE/2];
+        for (int j = 0; j < 2; j++)
+            for (int i = 0; i < 2; i++)
+            {
+                BufferedImage child = tile(z+1, 2*x + i, 2*y + j, ctx);
+                if (child == null)
+                    continue;
+                child.getRGB(0, 0, TILE, TILE, src, 0, TILE);
+                for (int py = 0; py < TILE/2; py++)
+                    for (int px = 0; px < TILE/2; px++)
+                    {
+                        int s = 2*py*TILE + 2*px;
+                        dst[py*TILE/2 + px] = average(src[s], src[s+1], src[s+TILE], src[s+TILE+1]);
+                    }
+                im.setRGB(i*TILE/2, j*TILE/2, TILE/2, TILE/2, dst, 0, TILE/2);
+            }
+        return im;
+    }
+
+    /**
+     * Average of four ARGB pixels, colours weighted by alpha so transparent
+     * pixels past the map edge do not darken it.
+     */
+    private static int average(int p0, int p1, int p2, int p3)
+    {
+        int a = 0, r = 0, g = 0, b = 0;
+        for (int p : new int[] {p0, p1, p2, p3})
+        {
+            int pa = p >>> 24;
+            a += pa;
+            r += (p >> 16 & 0xff) * pa;
+            g += (p >> 8 & 0xff) * pa;
+            b += (p & 0xff) * pa;
+        }
+        if (a == 0)
+            return 0;
+        return (a + 2) / 4 << 24 | (r + a/2) / a << 16 | (g + a/2) / a << 8 | (b + a/2) / a;
+    }
+
+    /**
+     * Make every tile from minZoom down, into the directory.
+     * @param minZoom
+     * @return Number of tiles.
+     */
+    public int export(int minZoom) throws IOException
+    {
+        // Each tile makes the four below it first, depth first, so they are
+        // still cached when it is scaled down from them.
+        minZoom = Math.max(minZoom, 0);
+        int count = 1 << minZoom;
+        for (int y = 0; y < count; y++)
+            for (int x = 0; x < count; x++)
+                tile(minZoom, x, y);
+
+        int n = 0;
+        for (int z = minZoom; z <= maxZoom; z++)
+        {
+            long span = (long) TILE << (maxZoom - z);
+            n += ((map.W*(long) tileSize + span - 1) / span) * ((map.H*(long) tileSize + span - 1) / span);
+        }
+        return n;
+    }
+
+    /**
+     * Decoration seed for a map, the same for the pyramid the server and
+     * export make.
+     */
+    static long renderSeed(long mapSeed)
+    {
+        return new SeedTree(mapSeed).child("render").child("tiles").seed();
+    }
+
+    private static void usage()
+    {
+        System.out.println("TilePyramid --out <dir> [--minZoom <z>] <PirateMap options>\n"
+                + "Writes the map as <dir>/z/x/y.png tiles of " + TILE + " pixels.\n"
+                + "--size is in pixels at the deepest zoom, as for PirateMap.");
+    }
+
+    private static void printArgError(String msg)
+    {
+        System.out.println(msg);
+        usage();
+        System.exit(0);
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        Options options = new Options();
+        options.tileSize = 32;
+        options.quiet = true;
+        int minZoom = 0;
+        String out = null;
+
+        // Anything not ours goes to PirateMap
+        List<String> rest = new ArrayList<>();
+        for (int i = 0; i < args.length; i++)
+        {
+            if ("--minZoom".equals(args[i]) && i < args.length - 1)
+            {
+                try {
+                    minZoom = Integer.parseInt(args[++i]);
+                } catch (NumberFormatException e)
+                {
+                    printArgError("Expecting a number for --minZoom " + e.getMessage());
+                }
+            }
+            else if ("--out".equals(args[i]) && i < args.length - 1)
+                out = args[++i];
+            else
+                rest.add(args[i]);
+        }
+        if (out == null)
+            printArgError("--out is required");
+        PirateMap.getOptions(rest.toArray(new String[rest.size()]), options);
+
+        long t0 = System.nanoTime();
+        PirateMap map = Pipeline.generate(options, Pipeline.Stage.ROUTE);
+        long t1 = System.nanoTime();
+        TilePyramid pyramid = new TilePyramid(map, options.tileSize,
+                renderSeed(options.seed), Tileset.theme(options.theme), new File(out), 1024);
+        int n = pyramid.export(minZoom);
+        long t2 = System.nanoTime();
+        System.out.println(String.format(Locale.ROOT,
+                "%dx%d map, zoom %d to %d, %d tiles, generated in %.1fs, tiles in %.1fs",
+                map.W, map.H, minZoom, pyramid.maxZoom(), n, (t1 - t0) / 1e9, (t2 - t1) / 1e9));
+    }
+}
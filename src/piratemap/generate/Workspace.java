@@ -0,0 +1,223 @@
+package piratemap.generate;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+
+import piratemap.generate.PirateMap.Tile;
+import piratemap.utils.OffHeapArena;
+import piratemap.utils.OffHeapBuffer;
+
+/**
+ * Buffers reused from one map to the next, so a worker that makes many maps
+ * stops allocating once it has seen its largest map.
+ *
+ * Every buffer grows to the largest size asked for and stays that big. A map
+ * made with a workspace uses its buffers for the grid, masks, queues, distance
+ * fields, island labels and the rendered image, so it (and any image rendered
+ * from it) is only valid until the next map is made with the same workspace.
+ *
+ * With an arena the grid and the inland water flood fill live off heap
+ * instead, addressed with long indexes, so the largest buffers of a big map
+ * add nothing to garbage collection, and Pipeline keeps no heap snapshots of
+ * the grid. Route finding, islands, distance fields and rendering still use
+ * int indexed heap arrays, so a map has at most PirateMap.MAX_CELLS
+ * locations either way.
+ *
+ * Not thread safe, give each worker thread its own.
+ */
+public class Workspace
+{
+    private ArrayTileGrid grid = new ArrayTileGrid(new Tile[0][0]);
+    private int[] queue = new int[0], labels = new int[0];
+    private boolean[] mask = new boolean[0];
+    private short[] coastDist = new short[0], depth = new short[0];
+    private BufferedImage image;
+
+    private final OffHeapArena arena;
+    private OffHeapBuffer offHeapGrid, offHeapMask, offHeapQueue;
+
+    /**
+     * Number of times a buffer had to grow, for checking that a workload has
+     * reached its steady state.
+     */
+    private int grown;
+
+    public Workspace()
+    {
+        this(null);
+    }
+
+    /**
+     * @param arena Off heap memory for the grid and the inland water fill,
+     * null for the heap. The workspace must not be used after the arena is closed.
+     */
+    public Workspace(OffHeapArena arena)
+    {
+        this.arena = arena;
+    }
+
+    /**
+     * @return Whether the grid and inland water fill are off heap.
+     */
+    boolean offHeap()
+    {
+        return arena != null;
+    }
+
+    /**
+     * @return A grid at least W x H, with W x H filled with water.
+     */
+    TileGrid grid(int W, int H)
+    {
+        if (arena != null)
+        {
+            offHeapGrid = offHeap(offHeapGrid, (long) W*H);
+            TileGrid g = new OffHeapTileGrid(offHeapGrid, W);
+            g.clear(W, H);
+            return g;
+        }
+
+        Tile[][] t = grid.tiles;
+        if (t.length < W || (t.length > 0 && t[0].length < H))
+        {
+            int w = Math.max(W, t.length);
+            int h = Math.max(H, t.length > 0 ? t[0].length : 0);
+            grid = new ArrayTileGrid(new Tile[w][h]);
+            grown++;
+        }
+        grid.clear(W, H);
+        return grid;
+    }
+
+    /**
+     * @return Off heap mask of at least n bytes, the first n all 0.
+     */
+    OffHeapBuffer offHeapMask(long n)
+    {
+        offHeapMask = offHeap(offHeapMask, n);
+        offHeapMask.fill(0, n, (byte) 0);
+        return offHeapMask;
+    }
+
+    /**
+     * @return Off heap queue of at least n longs, contents undefined.
+     */
+    OffHeapBuffer offHeapQueue(long n)
+    {
+        offHeapQueue = offHeap(offHeapQueue, n*8);
+        return offHeapQueue;
+    }
+
+    /**
+     * Replace b with a bigger buffer from the arena if it is less than bytes.
+     */
+    private OffHeapBuffer offHeap(OffHeapBuffer b, long bytes)
+    {
+        if (b != null && b.size() >= bytes)
+            return b;
+        if (b != null)
+            arena.free(b);
+        try
+        {
+            b = arena.allocate(bytes);
+        } catch (IOException e)
+        {
+            throw new UncheckedIOException("Could not allocate off heap buffer", e);
+        }
+        grown++;
+        return b;
+    }
+
+    /**
+     * @return Queue of at least n entries, contents undefined.
+     */
+    int[] queue(int n)
+    {
+        if (queue.length < n)
+        {
+            queue = new int[n];
+            grown++;
+        }
+        return queue;
+    }
+
+    /**
+     * @return Island labels of at least n entries, contents undefined.
+     */
+    int[] labels(int n)
+    {
+        if (labels.length < n)
+        {
+            labels = new int[n];
+            grown++;
+        }
+        return labels;
+    }
+
+    /**
+     * @return Mask of at least n entries, the first n all false.
+     */
+    boolean[] mask(int n)
+    {
+        if (mask.length < n)
+        {
+            mask = new boolean[n];
+            grown++;
+        }
+        else
+            Arrays.fill(mask, 0, n, false);
+        return mask;
+    }
+
+    /**
+     * @return Distance to water field of at least n entries, contents undefined.
+     */
+    short[] coastDist(int n)
+    {
+        if (coastDist.length < n)
+        {
+            coastDist = new short[n];
+            grown++;
+        }
+        return coastDist;
+    }
+
+    /**
+     * @return Distance to land field (for rendering) of at least n entries,
+     * contents undefined.
+     */
+    short[] depth(int n)
+    {
+        if (depth.length < n)
+        {
+            depth = new short[n];
+            grown++;
+        }
+        return depth;
+    }
+
+    /**
+     * @return ARGB image at least w x h. Contents undefined, clear what is used.
+     */
+    BufferedImage image(int w, int h)
+    {
+        if (image == null || image.getWidth() < w || image.getHeight() < h)
+        {
+            int iw = Math.max(w, image == null ? 0 : image.getWidth());
+            int ih = Math.max(h, image == null ? 0 : image.getHeight());
+            image = new BufferedImage(iw, ih, BufferedImage.TYPE_INT_ARGB);
+            grown++;
+        }
+        return image;
+    }
+
+    /**
+     * @return How many times a buffer had to grow so far.
+     */
+    public int grown()
+    {
+        return grown;
+    }
+}
@@ -0,0 +1,408 @@
+package piratemap.generate;
+
+import static piratemap.generate.PirateMap.Tile.*;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import javax.imageio.ImageIO;
+
+import piratemap.generate.PirateMap.Coord;
+import piratemap.generate.PirateMap.Options;
+import piratemap.generate.PirateMap.Tile;
+import piratemap.generate.PirateMap.Treasure;
+import piratemap.utils.SeedTree;
+
+/**
+ * Endless archipelago made of square chunks, generated when first looked at.
+ *
+ * Chunk (cx, cy) covers world tiles cx * S .. cx * S + S-1 (and the same for y),
+ * where S is the chunk size. Its seed comes from the world seed and the chunk
+ * coordinates only, so a chunk is the same whatever order chunks are visited in.
+ *
+ * Each chunk is generated as an ordinary map (terrain through vegetation) of
+ * 2S x 2S, centered on the chunk, so it reaches half a chunk into each
+ * neighbour. Every world tile is covered by four of these, and is blended from
+ * them with bilinear weights that are 1 at a chunk's center and 0 at the far
+ * edge of its margin: it is land if the land weight is over half, with the type
+ * of the heaviest land. So coasts run smoothly across chunk borders, and the
+ * water border of every generated map fades out.
+ *
+ * Every chunk may have one treasure, with its mark inside the chunk. Its route
+ * is found on the 3 x 3 chunks around it, so routes can cross into neighbouring
+ * chunks.
+ *
+ * Generated chunks, blended chunks and treasures are kept in bounded LRU
+ * caches, so memory depends on the area looked at, not on the size of the
+ * world. Safe to share between threads, two threads may generate the same chunk
+ * at the same time and get the same result.
+ */
+public class World
+{
+    private static final Tile[] TILES = Tile.values();
+
+    // Cached for chunks without a treasure
+    private static final Treasure NONE = new Treasure();
+
+    private final long seed;
+    private final int S;
+    private final SeedTree seeds;
+    // Generated 2S x 2S maps, blended S x S chunks, treasures
+    private final StageCache generated, blended, treasures;
+
+    /**
+     * @param seed
+     * @param chunkSize Tiles along a side of a chunk, even and at least 16.
+     * @param cachedChunks Number of chunks to keep of each kind, about 5 * chunkSize^2
+     * bytes each.
+     */
+    public World(long seed, int chunkSize, int cachedChunks)
+    {
+        if (chunkSize < 16 || chunkSize % 2 != 0)
+            throw new IllegalArgumentException("Chunk size must be even and at least 16, not " + chunkSize);
+        this.seed = seed;
+        this.S = chunkSize;
+        seeds = new SeedTree(seed).child("world");
+        generated = new StageCache(cachedChunks);
+        blended = new StageCache(cachedChunks);
+        treasures = new StageCache(cachedChunks);
+    }
+
+    public long seed()
+    {
+        return seed;
+    }
+
+    public int chunkSize()
+    {
+        return S;
+    }
+
+    /**
+     * @return Seed of the map generated for a chunk, always positive.
+     */
+    long chunkSeed(int cx, int cy)
+    {
+        long s = seeds.child(cx).child(cy).seed() & Long.MAX_VALUE;
+        return s == 0 ? 1 : s;
+    }
+
+    /**
+     * @return The tile at world location x, y.
+     */
+    public Tile getTile(int x, int y)
+    {
+        int cx = Math.floorDiv(x, S), cy = Math.floorDiv(y, S);
+        return TILES[chunk(cx, cy)[(y - cy*S)*S + x - cx*S]];
+    }
+
+    /**
+     * Generated map of a chunk, 2S x 2S with its top left at world
+     * (cx * S - S/2, cy * S - S/2). Tile ordinals, row major.
+     */
+    private byte[] generated(int cx, int cy)
+    {
+        String key = cx + "," + cy;
+        byte[] tiles = (byte[]) generated.get(key);
+        if (tiles != null)
+            return tiles;
+
+        Options o = new Options();
+        o.seed = chunkSeed(cx, cy);
+        o.tileSize = 1;
+        o.imageX = o.imageY = 2*S;
+        o.quiet = true;
+        PirateMap map = Pipeline.generate(o, Pipeline.Stage.VEGETATION);
+
+        tiles = new byte[4*S*S];
+        for (int y = 0; y < 2*S; y++)
+            for (int x = 0; x < 2*S; x++)
+                tiles[y*2*S + x] = (byte) map.getTile(x, y).ordinal();
+        generated.put(key, tiles);
+        return tiles;
+    }
+
+    /**
+     * Blended tiles of a chunk, S x S, tile ordinals, row major.
+     */
+    private byte[] chunk(int cx, int cy)
+    {
+        String key = cx + "," + cy;
+        byte[] tiles = (byte[]) blended.get(key);
+        if (tiles != null)
+            return tiles;
+
+        // The 3 x 3 generated maps around the chunk, fetched when needed
+        byte[][] near = new byte[9][];
+        int[] wx = new int[2], wy = new int[2];
+        int[] gx = new int[2], gy = new int[2];
+
+        tiles = new byte[S*S];
+        for (int y = 0; y < S; y++)
+        {
+            // The two generated maps that cover this row, as -1, 0, 1 from cy
+            int ny = y < S/2 ? -1 : 0;
+            for (int k = 0; k < 2; k++)
+            {
+                // Row within generated map cy + ny + k
+                gy[k] = y + S/2 - (ny + k)*S;
+                wy[k] = weight(gy[k]);
+            }
+
+            for (int x = 0; x < S; x++)
+            {
+                int nx = x < S/2 ? -1 : 0;
+                for (int k = 0; k < 2; k++)
+                {
+                    gx[k] = x + S/2 - (nx + k)*S;
+                    wx[k] = weight(gx[k]);
+                }
+
+                // Weights are out of (2S)^2
+                long land = 0, best = 0;
+                int type = 0;
+                for (int j = 0; j < 2; j++)
+                    for (int i = 0; i < 2; i++)
+                    {
+                        int n = (ny + j + 1)*3 + nx + i + 1;
+                        if (near[n] == null)
+                            near[n] = generated(cx + nx + i, cy + ny + j);
+                        int t = near[n][gy[j]*2*S + gx[i]];
+                        if (t == WATER.ordinal())
+                            continue;
+                        long w = (long) wx[i]*wy[j];
+                        land += w;
+                        if (w > best)
+                        {
+                            best = w;
+                            type = t;
+                        }
+                    }
+                tiles[y*S + x] = (byte) (2*land > 4L*S*S ? type : WATER.ordinal());
+            }
+        }
+        blended.put(key, tiles);
+        return tiles;
+    }
+
+    /**
+     * Blend weight of a generated map at u tiles from its left (or top) edge,
+     * out of 2S. Rises from the edge to the center and falls again, so the
+     * weights of the two maps that cover a location add up to 2S.
+     */
+    private int weight(int u)
+    {
+        return u < S ? 2*u + 1 : 4*S - 2*u - 1;
+    }
+
+    /**
+     * @return The treasure of a chunk in world coordinates, null if it has none.
+     * Shared, do not modify.
+     */
+    Treasure treasure(int cx, int cy)
+    {
+        String key = cx + "," + cy;
+        Treasure tr = (Treasure) treasures.get(key);
+        if (tr != null)
+            return tr == NONE ? null : tr;
+
+        // Routes can wander a chunk away from the mark, so look at the 3 x 3
+        // chunks around it, with water all round like a normal map.
+        int W = 3*S;
+        int x0 = (cx-1)*S, y0 = (cy-1)*S;
+        PirateMap map = new PirateMap(new Tile[W][W], W, W,
+                seeds.child(cx).child(cy).child("route").random());
+        map.verbose = false;
+        fill(map, x0, y0);
+        for (int i = 0; i < W; i++)
+        {
+            map.setTile(i, 0, WATER);
+            map.setTile(i, W-1, WATER);
+            map.setTile(0, i, WATER);
+            map.setTile(W-1, i, WATER);
+        }
+
+        map.makeXAndRoutes(1, new Rectangle(S, S, S, S));
+
+        tr = NONE;
+        if (map.treasures.size() > 0 && !map.treasures.get(0).route.isEmpty()
+                && !nearEdge(map.treasures.get(0).route, W))
+        {
+            // The window's water border is not real coast, so routes that
+            // reach it are dropped, the rest move to world coordinates.
+            Treasure found = map.treasures.get(0);
+            tr = new Treasure();
+            tr.mark = new Coord(found.mark.x + x0, found.mark.y + y0);
+            tr.route = new ArrayList<>(found.route.size());
+            for (Coord c : found.route)
+                tr.route.add(new Coord(c.x + x0, c.y + y0));
+            tr.routeDirs = found.routeDirs;
+        }
+        treasures.put(key, tr);
+        return tr == NONE ? null : tr;
+    }
+
+    private static boolean nearEdge(ArrayList<Coord> route, int W)
+    {
+        for (Coord c : route)
+        {
+            if (c.x <= 1 || c.y <= 1 || c.x >= W-2 || c.y >= W-2)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Copy world tiles to the map, with map location 0, 0 at world x0, y0.
+     */
+    private void fill(PirateMap map, int x0, int y0)
+    {
+        int cx0 = Math.floorDiv(x0, S), cx1 = Math.floorDiv(x0 + map.W - 1, S);
+        int cy0 = Math.floorDiv(y0, S), cy1 = Math.floorDiv(y0 + map.H - 1, S);
+        for (int cy = cy0; cy <= cy1; cy++)
+            for (int cx = cx0; cx <= cx1; cx++)
+            {
+                byte[] tiles = chunk(cx, cy);
+                int xs = Math.max(cx*S, x0), xe = Math.min(cx*S + S, x0 + map.W);
+                int ys = Math.max(cy*S, y0), ye = Math.min(cy*S + S, y0 + map.H);
+                for (int y = ys; y < ye; y++)
+                    for (int x = xs; x < xe; x++)
+                        map.setTile(x - x0, y - y0, TILES[tiles[(y - cy*S)*S + x - cx*S]]);
+            }
+    }
+
+    /**
+     * Part of the world as a map, eg. to render or save.
+     *
+     * Has the treasures whose marks are inside the window, in window
+     * coordinates. Their routes may run outside the window.
+     * @param x0 World location of the map's top left.
+     * @param y0
+     * @param w
+     * @param h
+     * @return
+     */
+    public PirateMap window(int x0, int y0, int w, int h)
+    {
+        PirateMap map = new PirateMap(new Tile[w][h], w, h, seeds.child("window").random());
+        fill(map, x0, y0);
+
+        map.treasures = new ArrayList<>();
+        for (int cy = Math.floorDiv(y0, S); cy <= Math.floorDiv(y0 + h - 1, S); cy++)
+            for (int cx = Math.floorDiv(x0, S); cx <= Math.floorDiv(x0 + w - 1, S); cx++)
+            {
+                Treasure tr = treasure(cx, cy);
+                if (tr == null || tr.mark.x < x0 || tr.mark.y < y0
+                        || tr.mark.x >= x0 + w || tr.mark.y >= y0 + h)
+                    continue;
+
+                Treasure t = new Treasure();
+                t.mark = new Coord(tr.mark.x - x0, tr.mark.y - y0);
+                t.route = new ArrayList<>(tr.route.size());
+                for (Coord c : tr.route)
+                    t.route.add(new Coord(c.x - x0, c.y - y0));
+                t.routeDirs = new ArrayList<>(tr.routeDirs);
+                map.treasures.add(t);
+            }
+
+        if (map.treasures.size() > 0)
+        {
+            Treasure first = map.treasures.get(0);
+            map.mark = first.mark;
+            map.route = first.route;
+            map.routeDirs = first.routeDirs;
+        }
+        return map;
+    }
+
+    private static void usage()
+    {
+        System.out.println("World [--seed <seed>] [--chunkSize <tiles>] [--x <x>] [--y <y>]\n"
+                + "      [--size <tilesX>x<tilesY>] [--tileSize <tileSize>] [--out <file.png>]\n"
+                + "Renders part of the endless world, x and y are world tiles.\n"
+                + "Default chunk size is 128, size 256x256, tile size 8.");
+    }
+
+    private static void printArgError(String msg)
+    {
+        System.out.println(msg);
+        usage();
+        System.exit(0);
+    }
+
+    private static String arg(String[] args, int i)
+    {
+        if (i >= args.length)
+            printArgError(args[i-1] + " needs an arguement.");
+        return args[i];
+    }
+
+    private static int number(String[] args, int i)
+    {
+        String a = arg(args, i);
+        try {
+            return Integer.parseInt(a);
+        } catch (NumberFormatException e)
+        {
+            printArgError("Expecting a number for " + args[i-1] + " " + e.getMessage());
+        }
+        return 0;
+    }
+
+    public static void main(String[] args) throws IOException
+    {
+        long seed = 1;
+        int chunkSize = 128, x = 0, y = 0, w = 256, h = 256, tileSize = 8;
+        String out = "World.png";
+        for (int i = 0; i < args.length; i++)
+        {
+            String a = args[i];
+            if ("--seed".equals(a))
+            {
+                try {
+                    seed = Long.parseLong(arg(args, ++i));
+                } catch (NumberFormatException e)
+                {
+                    printArgError("Expecting a number for --seed " + e.getMessage());
+                }
+            }
+            else if ("--chunkSize".equals(a))
+                chunkSize = number(args, ++i);
+            else if ("--x".equals(a))
+                x = number(args, ++i);
+            else if ("--y".equals(a))
+                y = number(args, ++i);
+            else if ("--tileSize".equals(a))
+                tileSize = number(args, ++i);
+            else if ("--out".equals(a))
+                out = arg(args, ++i);
+            else if ("--size".equals(a))
+            {
+                String[] words = arg(args, ++i).split("x");
+                try {
+                    w = Integer.parseInt(words[0]);
+                    h = Integer.parseInt(words[1]);
+                } catch (NumberFormatException | ArrayIndexOutOfBoundsException e)
+                {
+                    printArgError("Expecting <tilesX>x<tilesY> for --size");
+                }
+            }
+            else
+                printArgError("Invalid arguement " + a);
+        }
+        if (chunkSize < 16 || chunkSize % 2 != 0)
+            printArgError("--chunkSize must be even and at least 16");
+        if (w < 1 || h < 1 || tileSize < 1)
+            printArgError("--size and --tileSize must be positive");
+
+        World world = new World(seed, chunkSize, 64);
+        PirateMap map = world.window(x, y, w, h);
+        BufferedImage image = map.render(tileSize, tileSize,
+                new SeedTree(seed).child("render").random());
+        ImageIO.write(image, "png", new File(out));
+        System.out.println(map.treasures.size() + " treasures");
+    }
+}
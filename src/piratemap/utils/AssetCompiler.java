@@ -0,0 +1,49 @@
+package piratemap.utils;
+
+import java.io.File;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Turn the tile assets into what loads fastest: the corner lookup of every
+ * tileset as its .tsx.bin sidecar (see Tileset), and every png as a .raw next
+ * to it (see RawImage). Run it again when an image changes, stale .raw files
+ * are used as they are. Sidecars are checked against their tsx and written
+ * again on their own when stale.
+ */
+public class AssetCompiler
+{
+    private static final String[] IMAGES = { "hill", "palm", "palm_small" };
+
+    public static void main(String[] args) throws IOException
+    {
+        File dir = new File(args.length > 0 ? args[0] : "tiles");
+
+        File[] tsxs = dir.listFiles();
+        if (tsxs == null)
+            throw new IOException("No directory " + dir);
+        for (File tsx : tsxs)
+        {
+            if (!tsx.getName().endsWith(".tsx"))
+                continue;
+            File bin = Tileset.compile(tsx);
+            System.out.println(bin + " " + bin.length() + " bytes");
+            compileImage(new File(Tileset.load(tsx).image()));
+        }
+
+        for (String name : IMAGES)
+            compileImage(new File(dir, name));
+    }
+
+    /**
+     * name.png to name.raw, name without extension.
+     */
+    private static void compileImage(File name) throws IOException
+    {
+        File png = new File(name.getPath() + ".png");
+        File raw = new File(name.getPath() + ".raw");
+        RawImage.write(ImageIO.read(png), raw);
+        System.out.println(raw + " " + raw.length() + " bytes, from " + png.length());
+    }
+}
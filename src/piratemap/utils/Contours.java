@@ -0,0 +1,255 @@
+package piratemap.utils;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Contour tracing and polyline simplification for vector output.
+ *
+ * Samples are grid points, a contour is traced between samples that are
+ * inside the mask and samples that are not. Everything outside the mask
+ * bounds counts as outside, so all contours are closed rings.
+ *
+ * Coordinates of the output are in sample units, ie sample (x, y) is at (x, y)
+ * and the contour runs through the midpoints between samples.
+ */
+public class Contours
+{
+    // Cell edges
+    private static final int T = 0, R = 1, B = 2, L = 3;
+
+    /**
+     * Marching squares case table. Corner bits are top left = 8, top right = 4,
+     * bottom right = 2, bottom left = 1. Each case lists pairs of edges to join.
+     * Saddles (5, 10) cut off each inside corner, because land is only
+     * connected NSEW, never diagonally.
+     */
+    private static final int[][] CASES = new int[][] {
+        {},
+        {L, B},
+        {B, R},
+        {L, R},
+        {T, R},
+        {T, R, L, B},
+        {T, B},
+        {T, L},
+        {T, L},
+        {T, B},
+        {T, L, B, R},
+        {T, R},
+        {L, R},
+        {R, B},
+        {L, B},
+        {},
+    };
+
+    /**
+     * Trace all contours of the mask with marching squares.
+     * @param mask mask[x][y], true if inside
+     * @param w
+     * @param h
+     * @return Closed rings as x0, y0, x1, y1, ... The first point is not repeated.
+     */
+    public static List<double[]> trace(boolean[][] mask, int w, int h)
+    {
+        // Edge midpoints are keyed in doubled coordinates so they are integers.
+        // Every midpoint on a contour is shared by exactly 2 segments.
+        HashMap<Long, long[]> links = new HashMap<>();
+
+        for (int cx = -1; cx < w; cx++)
+        {
+            for (int cy = -1; cy < h; cy++)
+            {
+                int c = (get(mask, w, h, cx, cy) ? 8 : 0)
+                        | (get(mask, w, h, cx+1, cy) ? 4 : 0)
+                        | (get(mask, w, h, cx+1, cy+1) ? 2 : 0)
+                        | (get(mask, w, h, cx, cy+1) ? 1 : 0);
+
+                int[] edges = CASES[c];
+                for (int i = 0; i + 1 < edges.length; i+=2)
+                {
+                    long a = edgeKey(cx, cy, edges[i]);
+                    long b = edgeKey(cx, cy, edges[i+1]);
+                    link(links, a, b);
+                    link(links, b, a);
+                }
+            }
+        }
+
+        ArrayList<double[]> rings = new ArrayList<>();
+        while (!links.isEmpty())
+        {
+            long start = links.keySet().iterator().next();
+
+            ArrayList<Long> ring = new ArrayList<>();
+            long prev = Long.MIN_VALUE;
+            long cur = start;
+            do
+            {
+                ring.add(cur);
+                long[] n = links.remove(cur);
+                long next = n[0] != prev ? n[0] : n[1];
+                prev = cur;
+                cur = next;
+            } while (cur != start);
+
+            double[] pts = new double[ring.size() * 2];
+            for (int i = 0; i < ring.size(); i++)
+            {
+                long k = ring.get(i);
+                pts[i*2] = keyX(k) / 2.0;
+                pts[i*2+1] = keyY(k) / 2.0;
+            }
+            rings.add(pts);
+        }
+
+        return rings;
+    }
+
+    private static boolean get(boolean[][] mask, int w, int h, int x, int y)
+    {
+        if (x < 0 || y < 0 || x >= w || y >= h)
+            return false;
+        return mask[x][y];
+    }
+
+    private static void link(HashMap<Long, long[]> links, long from, long to)
+    {
+        long[] n = links.get(from);
+        if (n == null)
+        {
+            links.put(from, new long[] {to, Long.MIN_VALUE});
+        }
+        else
+            n[1] = to;
+    }
+
+    /**
+     * Key of the midpoint of an edge of cell cx, cy, in doubled coordinates.
+     * Cells start at -1, so shift by 2 to keep both halves positive.
+     */
+    private static long edgeKey(int cx, int cy, int edge)
+    {
+        int x2 = 2*cx, y2 = 2*cy;
+        switch (edge)
+        {
+        case T: x2 += 1; break;
+        case R: x2 += 2; y2 += 1; break;
+        case B: x2 += 1; y2 += 2; break;
+        default: y2 += 1; break;
+        }
+        return ((long)(x2 + 2) << 32) | (y2 + 2);
+    }
+
+    private static int keyX(long k)
+    {
+        return (int)(k >>> 32) - 2;
+    }
+
+    private static int keyY(long k)
+    {
+        return (int)(k & 0xffffffffL) - 2;
+    }
+
+    /**
+     * Douglas-Peucker simplification of a closed ring.
+     * The ring is split at its first point and the point farthest from it,
+     * and both halves are simplified as open polylines.
+     * @param ring x0, y0, x1, y1, ...
+     * @param epsilon Max allowed distance of a dropped point from the result.
+     * @return Simplified ring, first point not repeated.
+     */
+    public static double[] simplifyRing(double[] ring, double epsilon)
+    {
+        int n = ring.length / 2;
+        if (n < 4)
+            return ring;
+
+        int far = 0;
+        double farDist = -1;
+        for (int i = 1; i < n; i++)
+        {
+            double dx = ring[i*2] - ring[0], dy = ring[i*2+1] - ring[1];
+            double d = dx*dx + dy*dy;
+            if (d > farDist)
+            {
+                farDist = d;
+                far = i;
+            }
+        }
+
+        // Close the ring so the second half ends on the first point.
+        double[] closed = new double[(n+1)*2];
+        System.arraycopy(ring, 0, closed, 0, n*2);
+        closed[n*2] = ring[0];
+        closed[n*2+1] = ring[1];
+
+        boolean[] keep = new boolean[n+1];
+        keep[0] = keep[far] = keep[n] = true;
+        simplify(closed, 0, far, epsilon, keep);
+        simplify(closed, far, n, epsilon, keep);
+
+        int count = 0;
+        for (int i = 0; i < n; i++)
+            if (keep[i])
+                count++;
+
+        double[] out = new double[count*2];
+        int j = 0;
+        for (int i = 0; i < n; i++)
+        {
+            if (keep[i])
+            {
+                out[j++] = closed[i*2];
+                out[j++] = closed[i*2+1];
+            }
+        }
+        return out;
+    }
+
+    /**
+     * Mark the points to keep between first and last (inclusive ends already kept).
+     * Uses an explicit stack, coastlines of big maps are too long to recurse on.
+     */
+    private static void simplify(double[] pts, int first, int last, double epsilon,
+            boolean[] keep)
+    {
+        ArrayList<int[]> stack = new ArrayList<>();
+        stack.add(new int[]{first, last});
+
+        while (stack.size() > 0)
+        {
+            int[] span = stack.remove(stack.size()-1);
+            int a = span[0], b = span[1];
+            if (b - a < 2)
+                continue;
+
+            double ax = pts[a*2], ay = pts[a*2+1];
+            double bx = pts[b*2], by = pts[b*2+1];
+            double dx = bx - ax, dy = by - ay;
+            double len = Math.sqrt(dx*dx + dy*dy);
+
+            int far = -1;
+            double farDist = epsilon;
+            for (int i = a+1; i < b; i++)
+            {
+                double px = pts[i*2] - ax, py = pts[i*2+1] - ay;
+                double d = len == 0 ? Math.sqrt(px*px + py*py)
+                                    : Math.abs(px*dy - py*dx) / len;
+                if (d > farDist)
+                {
+                    farDist = d;
+                    far = i;
+                }
+            }
+
+            if (far >= 0)
+            {
+                keep[far] = true;
+                stack.add(new int[]{a, far});
+                stack.add(new int[]{far, b});
+            }
+        }
+    }
+}
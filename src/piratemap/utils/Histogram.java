@@ -0,0 +1,94 @@
+package piratemap.utils;
+
+/**
+ * Histogram of non negative longs, for percentiles over a stream of values.
+ *
+ * Log linear buckets: values below 64 each have their own bucket, above that
+ * every power of two is split in 32 buckets. So the reported percentiles are
+ * within about 3% of the real value, whatever the range, and the histogram is a
+ * fixed size (under 2000 counters).
+ *
+ * Not thread safe. Give each thread its own and merge them at the end.
+ */
+public class Histogram
+{
+    private static final int EXACT = 64;
+    private static final int SUB_BITS = 5, SUB = 1 << SUB_BITS;
+    // Highest bit of a positive long is bit 62
+    private static final int BUCKETS = EXACT + (62 - SUB_BITS) * SUB;
+
+    private final long[] counts = new long[BUCKETS];
+    private long total;
+    private long max;
+
+    /**
+     * @param v Negative values count as 0.
+     */
+    public void add(long v)
+    {
+        if (v < 0)
+            v = 0;
+        counts[bucket(v)]++;
+        total++;
+        max = Math.max(max, v);
+    }
+
+    public void merge(Histogram other)
+    {
+        for (int i = 0; i < BUCKETS; i++)
+            counts[i] += other.counts[i];
+        total += other.total;
+        max = Math.max(max, other.max);
+    }
+
+    public long count()
+    {
+        return total;
+    }
+
+    public long max()
+    {
+        return max;
+    }
+
+    /**
+     * @param p 0 to 100
+     * @return Highest value of the bucket holding the p-th percentile, but never
+     * more than the max. 0 if empty.
+     */
+    public long percentile(double p)
+    {
+        if (total == 0)
+            return 0;
+        long rank = (long) Math.ceil(p / 100 * total);
+        if (rank < 1)
+            rank = 1;
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            seen += counts[i];
+            if (seen >= rank)
+                return Math.min(highest(i), max);
+        }
+        return max;
+    }
+
+    private static int bucket(long v)
+    {
+        if (v < EXACT)
+            return (int) v;
+        int e = 63 - Long.numberOfLeadingZeros(v);
+        int sub = (int) (v >>> (e - SUB_BITS)) - SUB;
+        return EXACT + (e - SUB_BITS - 1) * SUB + sub;
+    }
+
+    private static long highest(int bucket)
+    {
+        if (bucket < EXACT)
+            return bucket;
+        int e = (bucket - EXACT) / SUB + SUB_BITS + 1;
+        long sub = (bucket - EXACT) % SUB;
+        long width = 1L << (e - SUB_BITS);
+        return (SUB + sub) * width + width - 1;
+    }
+}
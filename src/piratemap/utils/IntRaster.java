@@ -0,0 +1,279 @@
+package piratemap.utils;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * An image as a plain int[] of non premultiplied ARGB pixels, row major, and
+ * the few drawing operations the map needs, all source over. No java.awt, so
+ * it works without a display, headless setup or the AWT classes loading.
+ *
+ * Drawing is not antialiased and follows Java2D's rules: a pixel is covered
+ * when its middle is inside the shape, and scaled images take the source
+ * pixel under the middle of each destination pixel. So pictures match what
+ * Graphics2D draws on a TYPE_INT_ARGB image, to within rounding of the
+ * blended colours.
+ */
+public class IntRaster
+{
+    public final int width, height;
+    public final int[] pixels;
+
+    // Clip, pixels outside are never drawn
+    private int clipX0, clipY0, clipX1, clipY1;
+    // Every pixel opaque when loaded, see drawImage
+    private boolean opaque;
+
+    public IntRaster(int width, int height)
+    {
+        this(width, height, new int[width*height]);
+    }
+
+    public IntRaster(int width, int height, int[] pixels)
+    {
+        this.width = width;
+        this.height = height;
+        this.pixels = pixels;
+        clipX1 = width;
+        clipY1 = height;
+    }
+
+    /**
+     * @param name Path without extension.
+     * @return name.raw if there is one (see RawImage), else name.png through PngDecoder.
+     */
+    public static IntRaster load(String name) throws IOException
+    {
+        File raw = new File(name + ".raw");
+        IntRaster im = raw.isFile() ? RawImage.readRaster(raw)
+                : PngDecoder.decode(new File(name + ".png"));
+        im.opaque = im.isOpaque();
+        return im;
+    }
+
+    /**
+     * @return Whether every pixel is opaque.
+     */
+    public boolean isOpaque()
+    {
+        for (int p : pixels)
+            if (p >>> 24 != 0xff)
+                return false;
+        return true;
+    }
+
+    /**
+     * Only draw inside x, y, w, h from now on, within the raster.
+     */
+    public void clip(int x, int y, int w, int h)
+    {
+        clipX0 = Math.max(x, 0);
+        clipY0 = Math.max(y, 0);
+        clipX1 = Math.min(x + w, width);
+        clipY1 = Math.min(y + h, height);
+    }
+
+    public int getRGB(int x, int y)
+    {
+        return pixels[y*width + x];
+    }
+
+    /**
+     * Blend argb over the pixel at x, y, if inside the clip.
+     */
+    public void blend(int x, int y, int argb)
+    {
+        if (x >= clipX0 && y >= clipY0 && x < clipX1 && y < clipY1)
+        {
+            int i = y*width + x;
+            pixels[i] = over(argb, pixels[i]);
+        }
+    }
+
+    /**
+     * Source over for non premultiplied colours, rounded the way Java2D's
+     * 8 bit loops round.
+     */
+    static int over(int src, int dst)
+    {
+        int sa = src >>> 24;
+        if (sa == 0xff)
+            return src;
+        if (sa == 0)
+            return dst;
+        int da = dst >>> 24;
+        if (da == 0)
+            return src;
+
+        // Destination weight, then everything premultiplied and back
+        int dw = mul8(0xff - sa, da);
+        int ra = sa + dw;
+        int r = mul8(sa, src >> 16 & 0xff) + mul8(dw, dst >> 16 & 0xff);
+        int g = mul8(sa, src >> 8 & 0xff) + mul8(dw, dst >> 8 & 0xff);
+        int b = mul8(sa, src & 0xff) + mul8(dw, dst & 0xff);
+        if (ra < 0xff)
+        {
+            r = div8(r, ra);
+            g = div8(g, ra);
+            b = div8(b, ra);
+        }
+        return ra << 24 | r << 16 | g << 8 | b;
+    }
+
+    /**
+     * a * b / 255, rounded.
+     */
+    private static int mul8(int a, int b)
+    {
+        return (a*b + 127) / 255;
+    }
+
+    /**
+     * v * 255 / a, rounded, at most 255.
+     */
+    private static int div8(int v, int a)
+    {
+        return Math.min((v*255 + a/2) / a, 255);
+    }
+
+    /**
+     * Blend argb over the rectangle.
+     */
+    public void fillRect(int x, int y, int w, int h, int argb)
+    {
+        int x0 = Math.max(x, clipX0), y0 = Math.max(y, clipY0);
+        int x1 = Math.min(x + w, clipX1), y1 = Math.min(y + h, clipY1);
+        for (int py = y0; py < y1; py++)
+            for (int px = x0; px < x1; px++)
+            {
+                int i = py*width + px;
+                pixels[i] = over(argb, pixels[i]);
+            }
+    }
+
+    /**
+     * Blend the source rectangle sx0, sy0 to sx1, sy1 of src over dx0, dy0
+     * to dx1, dy1, scaled nearest neighbour.
+     *
+     * Java2D scales images without alpha and images with alpha in different
+     * loops, which round source positions differently. A src that was opaque
+     * when loaded is sampled as the first, anything else as the second.
+     */
+    public void drawImage(IntRaster src, int dx0, int dy0, int dx1, int dy1,
+            int sx0, int sy0, int sx1, int sy1)
+    {
+        int dw = dx1 - dx0, dh = dy1 - dy0;
+        if (dw <= 0 || dh <= 0)
+            return;
+        int x0 = Math.max(dx0, clipX0), y0 = Math.max(dy0, clipY0);
+        int x1 = Math.min(dx1, clipX1), y1 = Math.min(dy1, clipY1);
+        int sw = sx1 - sx0, sh = sy1 - sy0;
+        // Source position of each destination pixel's middle in fixed point
+        // is start + d*step. With alpha, 32 fraction bits and the step
+        // rounded down, so middles exactly on a source boundary go down.
+        // Opaque, as many fraction bits as fit in an int with the larger
+        // source side and the first middle rounded.
+        int shift;
+        long startX, startY, stepX, stepY;
+        if (src.opaque)
+        {
+            shift = Integer.numberOfLeadingZeros(Math.max(sw, sh)) - 1;
+            stepX = ((long) sw << shift) / dw;
+            stepY = ((long) sh << shift) / dh;
+            startX = (((long) sw << shift) + dw) / (2*dw);
+            startY = (((long) sh << shift) + dh) / (2*dh);
+        }
+        else
+        {
+            shift = 32;
+            stepX = ((long) sw << 32) / dw;
+            stepY = ((long) sh << 32) / dh;
+            startX = stepX >> 1;
+            startY = stepY >> 1;
+        }
+        for (int py = y0; py < y1; py++)
+        {
+            // Source row under the middle of the destination row
+            int sy = sy0 + (int) (startY + (py - dy0)*stepY >> shift);
+            int srow = sy*src.width;
+            int row = py*width;
+            for (int px = x0; px < x1; px++)
+            {
+                int sx = sx0 + (int) (startX + (px - dx0)*stepX >> shift);
+                int s = src.pixels[srow + sx];
+                if (s >>> 24 != 0)
+                    pixels[row + px] = over(s, pixels[row + px]);
+            }
+        }
+    }
+
+    /**
+     * Blend all of src over x, y, w, h, scaled nearest neighbour.
+     */
+    public void drawImage(IntRaster src, int x, int y, int w, int h)
+    {
+        drawImage(src, x, y, x + w, y + h, 0, 0, src.width, src.height);
+    }
+
+    /**
+     * Blend a line lineWidth wide from x0, y0 to x1, y1, in pixel
+     * coordinates (pixel i spans i to i+1), covering the pixels whose middles
+     * are inside the stroke.
+     * @param round Round caps, else square caps reaching lineWidth/2 past the ends.
+     */
+    public void drawLine(double x0, double y0, double x1, double y1, double lineWidth,
+            boolean round, int argb)
+    {
+        double hw = lineWidth / 2;
+        double dx = x1 - x0, dy = y1 - y0;
+        double len = Math.sqrt(dx*dx + dy*dy);
+        int bx0 = Math.max((int) Math.floor(Math.min(x0, x1) - hw - 1), clipX0);
+        int by0 = Math.max((int) Math.floor(Math.min(y0, y1) - hw - 1), clipY0);
+        int bx1 = Math.min((int) Math.ceil(Math.max(x0, x1) + hw + 1), clipX1);
+        int by1 = Math.min((int) Math.ceil(Math.max(y0, y1) + hw + 1), clipY1);
+        // Unit vector along the line, any direction for a point
+        double ux = len > 0 ? dx / len : 1, uy = len > 0 ? dy / len : 0;
+        for (int py = by0; py < by1; py++)
+            for (int px = bx0; px < bx1; px++)
+            {
+                double cx = px + .5 - x0, cy = py + .5 - y0;
+                double along = cx*ux + cy*uy;
+                double across = -cx*uy + cy*ux;
+                boolean in;
+                if (round)
+                {
+                    double t = Math.max(0, Math.min(len, along));
+                    double ex = cx - t*ux, ey = cy - t*uy;
+                    in = ex*ex + ey*ey < hw*hw;
+                }
+                else
+                    in = along >= -hw && along < len + hw && Math.abs(across) < hw;
+                if (in)
+                {
+                    int i = py*width + px;
+                    pixels[i] = over(argb, pixels[i]);
+                }
+            }
+    }
+
+    /**
+     * drawLine with dashes, on and off length dash, starting with on. Round
+     * caps on every dash.
+     */
+    public void drawDashedLine(double x0, double y0, double x1, double y1, double lineWidth,
+            double dash, int argb)
+    {
+        double dx = x1 - x0, dy = y1 - y0;
+        double len = Math.sqrt(dx*dx + dy*dy);
+        if (len == 0)
+        {
+            drawLine(x0, y0, x1, y1, lineWidth, true, argb);
+            return;
+        }
+        for (double a = 0; a < len; a += 2*dash)
+        {
+            double b = Math.min(a + dash, len);
+            drawLine(x0 + dx*a/len, y0 + dy*a/len, x0 + dx*b/len, y0 + dy*b/len, lineWidth, true, argb);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package piratemap.utils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Owns off heap buffers and frees all of them at once on close(), so their
+ * lifetime is a block:
+ * <pre>
+ * try (OffHeapArena arena = new OffHeapArena(null))
+ * {
+ *     OffHeapBuffer b = arena.allocate(5L &lt;&lt; 30);
+ *     ...
+ * }
+ * </pre>
+ * Buffers are zero filled. Using a buffer after its arena is closed throws
+ * IllegalStateException.
+ */
+public class OffHeapArena implements Closeable
+{
+    private final File dir;
+    private List<OffHeapBuffer> buffers = new ArrayList<>();
+
+    /**
+     * @param dir Directory for memory mapped backing files, so buffers can be
+     * larger than RAM. null for native memory.
+     */
+    public OffHeapArena(File dir)
+    {
+        this.dir = dir;
+    }
+
+    /**
+     * @param bytes
+     * @return Zero filled buffer.
+     * @throws IOException If the backing file cannot be made.
+     */
+    public synchronized OffHeapBuffer allocate(long bytes) throws IOException
+    {
+        if (buffers == null)
+            throw new IllegalStateException("Arena is closed");
+        OffHeapBuffer b = new OffHeapBuffer(bytes, dir);
+        buffers.add(b);
+        return b;
+    }
+
+    /**
+     * Free a buffer before the arena closes, eg. when it is replaced by a bigger one.
+     */
+    public synchronized void free(OffHeapBuffer b)
+    {
+        if (buffers != null && buffers.remove(b))
+            b.free();
+    }
+
+    /**
+     * Free all buffers. No thread may use them any more.
+     */
+    @Override
+    public synchronized void close()
+    {
+        if (buffers == null)
+            return;
+        for (OffHeapBuffer b : buffers)
+            b.free();
+        buffers = null;
+    }
+}
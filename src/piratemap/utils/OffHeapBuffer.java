@@ -0,0 +1,230 @@
+package piratemap.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Fixed size block of memory outside the Java heap, addressed with long
+ * indexes so it can be larger than an array. Either plain native memory or a
+ * memory mapped temporary file, which can be larger than RAM.
+ *
+ * Made of 1 GB chunks of direct or mapped ByteBuffers. Typed accessors take an
+ * element index (a short index is a byte offset / 2 and so on), elements never
+ * cross a chunk. Native byte order.
+ *
+ * Allocated from an OffHeapArena and freed when the arena is closed. Not
+ * thread safe, and must not be used by any thread once the arena is closed.
+ */
+public class OffHeapBuffer
+{
+    private static final int CHUNK_BITS = 30;
+    private static final long CHUNK = 1L << CHUNK_BITS, MASK = CHUNK - 1;
+
+    private final long size;
+    private ByteBuffer[] chunks;
+    private final RandomAccessFile file;
+    private final File path;
+
+    /**
+     * @param size Bytes.
+     * @param dir Directory for the backing file, null for native memory.
+     */
+    OffHeapBuffer(long size, File dir) throws IOException
+    {
+        if (size < 0)
+            throw new IllegalArgumentException("Negative size " + size);
+        this.size = size;
+        int n = (int) ((size + CHUNK - 1) >>> CHUNK_BITS);
+        chunks = new ByteBuffer[n];
+
+        if (dir == null)
+        {
+            file = null;
+            path = null;
+            for (int i = 0; i < n; i++)
+                chunks[i] = ByteBuffer.allocateDirect(chunkSize(i)).order(ByteOrder.nativeOrder());
+            return;
+        }
+
+        path = File.createTempFile("piratemap", ".offheap", dir);
+        file = new RandomAccessFile(path, "rw");
+        try
+        {
+            // New file space reads as zeros, like native memory from allocateDirect
+            file.setLength(size);
+            FileChannel ch = file.getChannel();
+            for (int i = 0; i < n; i++)
+                chunks[i] = ch.map(FileChannel.MapMode.READ_WRITE, i * CHUNK, chunkSize(i))
+                        .order(ByteOrder.nativeOrder());
+        } catch (IOException e)
+        {
+            free();
+            throw e;
+        }
+    }
+
+    private int chunkSize(int i)
+    {
+        return (int) Math.min(CHUNK, size - i * CHUNK);
+    }
+
+    /**
+     * @return Size in bytes.
+     */
+    public long size()
+    {
+        return size;
+    }
+
+    private ByteBuffer chunk(long offset)
+    {
+        ByteBuffer[] c = chunks;
+        if (c == null)
+            throw new IllegalStateException("Off heap buffer is freed");
+        return c[(int) (offset >>> CHUNK_BITS)];
+    }
+
+    public byte getByte(long i)
+    {
+        return chunk(i).get((int) (i & MASK));
+    }
+
+    public void putByte(long i, byte v)
+    {
+        chunk(i).put((int) (i & MASK), v);
+    }
+
+    public short getShort(long i)
+    {
+        long o = i << 1;
+        return chunk(o).getShort((int) (o & MASK));
+    }
+
+    public void putShort(long i, short v)
+    {
+        long o = i << 1;
+        chunk(o).putShort((int) (o & MASK), v);
+    }
+
+    public int getInt(long i)
+    {
+        long o = i << 2;
+        return chunk(o).getInt((int) (o & MASK));
+    }
+
+    public void putInt(long i, int v)
+    {
+        long o = i << 2;
+        chunk(o).putInt((int) (o & MASK), v);
+    }
+
+    public long getLong(long i)
+    {
+        long o = i << 3;
+        return chunk(o).getLong((int) (o & MASK));
+    }
+
+    public void putLong(long i, long v)
+    {
+        long o = i << 3;
+        chunk(o).putLong((int) (o & MASK), v);
+    }
+
+    /**
+     * Set bytes from (inclusive) to to (exclusive).
+     */
+    public void fill(long from, long to, byte v)
+    {
+        byte[] block = new byte[(int) Math.min(1 << 16, Math.max(to - from, 0))];
+        if (v != 0)
+            Arrays.fill(block, v);
+        while (from < to)
+        {
+            ByteBuffer c = chunk(from).duplicate();
+            int pos = (int) (from & MASK);
+            int len = (int) Math.min(Math.min(to - from, c.capacity() - pos), block.length);
+            c.position(pos);
+            c.put(block, 0, len);
+            from += len;
+        }
+    }
+
+    /**
+     * Release the memory (and the file). Called by the arena.
+     */
+    void free()
+    {
+        ByteBuffer[] c = chunks;
+        chunks = null;
+        if (c != null)
+        {
+            for (ByteBuffer b : c)
+            {
+                if (b != null)
+                    Cleaner.clean(b);
+            }
+        }
+        if (file != null)
+        {
+            try
+            {
+                file.close();
+            } catch (IOException e)
+            {
+                // Nothing more to release
+            }
+            path.delete();
+        }
+    }
+
+    /**
+     * Frees direct and mapped buffers right away instead of when they are
+     * garbage collected, through sun.misc.Unsafe.invokeCleaner. If that is
+     * not there the memory is left to the collector.
+     */
+    private static class Cleaner
+    {
+        private static final Object UNSAFE;
+        private static final Method INVOKE_CLEANER;
+
+        static
+        {
+            Object unsafe = null;
+            Method m = null;
+            try
+            {
+                Class<?> c = Class.forName("sun.misc.Unsafe");
+                Field f = c.getDeclaredField("theUnsafe");
+                f.setAccessible(true);
+                unsafe = f.get(null);
+                m = c.getMethod("invokeCleaner", ByteBuffer.class);
+            } catch (Exception | LinkageError e)
+            {
+                unsafe = null;
+                m = null;
+            }
+            UNSAFE = unsafe;
+            INVOKE_CLEANER = m;
+        }
+
+        static void clean(ByteBuffer b)
+        {
+            if (INVOKE_CLEANER == null)
+                return;
+            try
+            {
+                INVOKE_CLEANER.invoke(UNSAFE, b);
+            } catch (Exception e)
+            {
+                // Left to the collector
+            }
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package piratemap.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Just enough of a png decoder for the tile assets, without ImageIO.
+ *
+ * All colour types and bit depths, not interlaced. Palette transparency
+ * (tRNS) is applied, gamma and colour space chunks are ignored as ImageIO
+ * ignores them, 16 bit samples keep their high byte.
+ */
+public class PngDecoder
+{
+    private static final long SIGNATURE = 0x89504e470d0a1a0aL;
+
+    public static IntRaster decode(File f) throws IOException
+    {
+        try (InputStream in = new FileInputStream(f))
+        {
+            return decode(in);
+        } catch (IOException e)
+        {
+            throw new IOException(f + ": " + e.getMessage(), e);
+        }
+    }
+
+    public static IntRaster decode(InputStream stream) throws IOException
+    {
+        DataInputStream in = new DataInputStream(stream);
+        if (in.readLong() != SIGNATURE)
+            throw new IOException("Not a png");
+
+        int w = 0, h = 0, depth = 0, type = 0;
+        int[] palette = null;
+        ByteArrayOutputStream idat = new ByteArrayOutputStream();
+        while (true)
+        {
+            int len = in.readInt();
+            int chunk = in.readInt();
+            byte[] data = new byte[len];
+            in.readFully(data);
+            in.readInt(); // crc
+
+            if (chunk == 0x49484452) // IHDR
+            {
+                w = int32(data, 0);
+                h = int32(data, 4);
+                depth = data[8] & 0xff;
+                type = data[9] & 0xff;
+                if (data[12] != 0)
+                    throw new IOException("Interlaced png not supported");
+            }
+            else if (chunk == 0x504c5445) // PLTE
+            {
+                palette = new int[256];
+                for (int i = 0; i < len / 3; i++)
+                    palette[i] = 0xff000000 | (data[3*i] & 0xff) << 16
+                            | (data[3*i+1] & 0xff) << 8 | (data[3*i+2] & 0xff);
+            }
+            else if (chunk == 0x74524e53 && palette != null) // tRNS
+            {
+                for (int i = 0; i < len; i++)
+                    palette[i] = (data[i] & 0xff) << 24 | (palette[i] & 0xffffff);
+            }
+            else if (chunk == 0x49444154) // IDAT
+                idat.write(data);
+            else if (chunk == 0x49454e44) // IEND
+                break;
+        }
+        if (w <= 0 || h <= 0)
+            throw new IOException("No IHDR");
+
+        int channels = type == 0 || type == 3 ? 1 : type == 2 ? 3 : type == 4 ? 2 : 4;
+        int bitsPerPixel = channels * depth;
+        int bpp = Math.max(1, bitsPerPixel / 8);
+        int stride = (w*bitsPerPixel + 7) / 8;
+
+        byte[] raw = new byte[(stride + 1) * h];
+        Inflater inf = new Inflater();
+        inf.setInput(idat.toByteArray());
+        try
+        {
+            int n = 0;
+            while (n < raw.length && !inf.finished())
+            {
+                int k = inf.inflate(raw, n, raw.length - n);
+                if (k == 0 && inf.needsInput())
+                    break;
+                n += k;
+            }
+            if (n < raw.length)
+                throw new IOException("Image data too short");
+        } catch (DataFormatException e)
+        {
+            throw new IOException(e.getMessage(), e);
+        } finally
+        {
+            inf.end();
+        }
+
+        IntRaster im = new IntRaster(w, h);
+        byte[] prev = new byte[stride], cur = new byte[stride];
+        for (int y = 0; y < h; y++)
+        {
+            int off = y*(stride + 1);
+            unfilter(raw[off], raw, off + 1, prev, cur, bpp);
+            for (int x = 0; x < w; x++)
+                im.pixels[y*w + x] = pixel(cur, x, type, depth, palette);
+            byte[] t = prev;
+            prev = cur;
+            cur = t;
+        }
+        return im;
+    }
+
+    private static int int32(byte[] b, int i)
+    {
+        return (b[i] & 0xff) << 24 | (b[i+1] & 0xff) << 16 | (b[i+2] & 0xff) << 8 | (b[i+3] & 0xff);
+    }
+
+    /**
+     * Undo a row's filter into cur, prev is the row above unfiltered.
+     */
+    private static void unfilter(int filter, byte[] raw, int off, byte[] prev, byte[] cur, int bpp)
+            throws IOException
+    {
+        for (int i = 0; i < cur.length; i++)
+        {
+            int x = raw[off + i] & 0xff;
+            int a = i >= bpp ? cur[i - bpp] & 0xff : 0;
+            int b = prev[i] & 0xff;
+            int c = i >= bpp ? prev[i - bpp] & 0xff : 0;
+            switch (filter)
+            {
+            case 0:
+                break;
+            case 1:
+                x += a;
+                break;
+            case 2:
+                x += b;
+                break;
+            case 3:
+                x += (a + b) / 2;
+                break;
+            case 4:
+                x += paeth(a, b, c);
+                break;
+            default:
+                throw new IOException("Bad filter " + filter);
+            }
+            cur[i] = (byte) x;
+        }
+    }
+
+    private static int paeth(int a, int b, int c)
+    {
+        int p = a + b - c;
+        int pa = Math.abs(p - a), pb = Math.abs(p - b), pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc)
+            return a;
+        return pb <= pc ? b : c;
+    }
+
+    /**
+     * ARGB of pixel x of an unfiltered row.
+     */
+    private static int pixel(byte[] row, int x, int type, int depth, int[] palette) throws IOException
+    {
+        if (depth < 8)
+        {
+            // Palette or grey, several pixels a byte, leftmost in the high bits
+            int perByte = 8 / depth;
+            int v = (row[x / perByte] & 0xff) >> (8 - depth * (x % perByte + 1)) & ((1 << depth) - 1);
+            if (type == 3)
+                return palette[v];
+            int g = v * 255 / ((1 << depth) - 1);
+            return 0xff000000 | g << 16 | g << 8 | g;
+        }
+        // High byte of each sample
+        int step = depth / 8;
+        switch (type)
+        {
+        case 0:
+        {
+            int g = row[x*step] & 0xff;
+            return 0xff000000 | g << 16 | g << 8 | g;
+        }
+        case 2:
+        {
+            int i = x*3*step;
+            return 0xff000000 | (row[i] & 0xff) << 16 | (row[i + step] & 0xff) << 8 | (row[i + 2*step] & 0xff);
+        }
+        case 3:
+            return palette[row[x] & 0xff];
+        case 4:
+        {
+            int i = x*2*step, g = row[i] & 0xff;
+            return (row[i + step] & 0xff) << 24 | g << 16 | g << 8 | g;
+        }
+        case 6:
+        {
+            int i = x*4*step;
+            return (row[i + 3*step] & 0xff) << 24 | (row[i] & 0xff) << 16
+                    | (row[i + step] & 0xff) << 8 | (row[i + 2*step] & 0xff);
+        }
+        default:
+            throw new IOException("Bad colour type " + type);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package piratemap.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Png encoder for IntRaster, without ImageIO. 8 bit RGBA, or RGB when every
+ * pixel is opaque, each row with the Paeth filter, which suits maps of tiled
+ * textures about as well as choosing per row and costs less.
+ */
+public class PngEncoder
+{
+    public static byte[] encode(IntRaster im) throws IOException
+    {
+        int w = im.width, h = im.height;
+        boolean alpha = false;
+        for (int p : im.pixels)
+            if (p >>> 24 != 0xff)
+            {
+                alpha = true;
+                break;
+            }
+        int bpp = alpha ? 4 : 3;
+        int stride = w*bpp;
+
+        // Filter and deflate a row at a time
+        Deflater def = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        ByteArrayOutputStream idat = new ByteArrayOutputStream();
+        byte[] prev = new byte[stride], cur = new byte[stride], line = new byte[stride + 1];
+        byte[] buf = new byte[65536];
+        try
+        {
+            for (int y = 0; y < h; y++)
+            {
+                int row = y*w;
+                for (int x = 0; x < w; x++)
+                {
+                    int p = im.pixels[row + x], i = x*bpp;
+                    cur[i] = (byte) (p >> 16);
+                    cur[i+1] = (byte) (p >> 8);
+                    cur[i+2] = (byte) p;
+                    if (alpha)
+                        cur[i+3] = (byte) (p >>> 24);
+                }
+                line[0] = 4;
+                for (int i = 0; i < stride; i++)
+                {
+                    int a = i >= bpp ? cur[i - bpp] & 0xff : 0;
+                    int b = prev[i] & 0xff;
+                    int c = i >= bpp ? prev[i - bpp] & 0xff : 0;
+                    line[i+1] = (byte) (cur[i] - paeth(a, b, c));
+                }
+                def.setInput(line);
+                while (!def.needsInput())
+                    idat.write(buf, 0, def.deflate(buf));
+                byte[] t = prev;
+                prev = cur;
+                cur = t;
+            }
+            def.finish();
+            while (!def.finished())
+                idat.write(buf, 0, def.deflate(buf));
+        } finally
+        {
+            def.end();
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(idat.size() + 64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeLong(0x89504e470d0a1a0aL);
+        ByteArrayOutputStream ihdr = new ByteArrayOutputStream();
+        DataOutputStream d = new DataOutputStream(ihdr);
+        d.writeInt(w);
+        d.writeInt(h);
+        d.writeByte(8);
+        d.writeByte(alpha ? 6 : 2);
+        d.writeByte(0);
+        d.writeByte(0);
+        d.writeByte(0);
+        chunk(out, "IHDR", ihdr.toByteArray());
+        chunk(out, "IDAT", idat.toByteArray());
+        chunk(out, "IEND", new byte[0]);
+        return bytes.toByteArray();
+    }
+
+    private static int paeth(int a, int b, int c)
+    {
+        int p = a + b - c;
+        int pa = Math.abs(p - a), pb = Math.abs(p - b), pc = Math.abs(p - c);
+        if (pa <= pb && pa <= pc)
+            return a;
+        return pb <= pc ? b : c;
+    }
+
+    private static void chunk(DataOutputStream out, String type, byte[] data) throws IOException
+    {
+        byte[] t = type.getBytes("US-ASCII");
+        CRC32 crc = new CRC32();
+        crc.update(t);
+        crc.update(data);
+        out.writeInt(data.length);
+        out.write(t);
+        out.write(data);
+        out.writeInt((int) crc.getValue());
+    }
+}
@@ -0,0 +1,103 @@
+package piratemap.utils;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Images as already decoded ARGB pixels, deflated, so reading one is an
+ * inflate and a copy instead of a png decode through ImageIO, which takes
+ * long to load and set up on its own.
+ *
+ * Format: "PMRA", width, height, then the deflated pixels, TYPE_INT_ARGB
+ * ints, rows top down, all big endian.
+ */
+public class RawImage
+{
+    private static final int MAGIC = 0x504d5241; // PMRA
+
+    /**
+     * @param name Path without extension.
+     * @return name.raw if there is one (see read), else name.png.
+     */
+    public static BufferedImage load(String name) throws IOException
+    {
+        File raw = new File(name + ".raw");
+        if (raw.isFile())
+            return read(raw);
+        BufferedImage im = ImageIO.read(new File(name + ".png"));
+        if (im == null)
+            throw new IOException("Cannot read " + name + ".png");
+        return im;
+    }
+
+    /**
+     * @return TYPE_INT_RGB if every pixel is opaque, else TYPE_INT_ARGB.
+     * Java2D scales an opaque image with other rounding than one with alpha,
+     * so an opaque png must not come back with alpha, or scaled tiles would
+     * differ from those drawn from the png.
+     */
+    public static BufferedImage read(File f) throws IOException
+    {
+        IntRaster r = readRaster(f);
+        boolean opaque = true;
+        for (int p : r.pixels)
+            if (p >>> 24 != 0xff)
+            {
+                opaque = false;
+                break;
+            }
+        BufferedImage im = new BufferedImage(r.width, r.height,
+                opaque ? BufferedImage.TYPE_INT_RGB : BufferedImage.TYPE_INT_ARGB);
+        int[] px = ((DataBufferInt) im.getRaster().getDataBuffer()).getData();
+        System.arraycopy(r.pixels, 0, px, 0, px.length);
+        return im;
+    }
+
+    /**
+     * The pixels alone, without AWT.
+     */
+    public static IntRaster readRaster(File f) throws IOException
+    {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f))))
+        {
+            if (in.readInt() != MAGIC)
+                throw new IOException(f + " is not a raw image");
+            int w = in.readInt(), h = in.readInt();
+            byte[] bytes = new byte[w*h*4];
+            new DataInputStream(new InflaterInputStream(in)).readFully(bytes);
+
+            IntRaster r = new IntRaster(w, h);
+            ByteBuffer.wrap(bytes).asIntBuffer().get(r.pixels);
+            return r;
+        }
+    }
+
+    public static void write(BufferedImage im, File f) throws IOException
+    {
+        int w = im.getWidth(), h = im.getHeight();
+        int[] px = im.getRGB(0, 0, w, h, null, 0, w);
+        ByteBuffer bytes = ByteBuffer.allocate(px.length*4);
+        bytes.asIntBuffer().put(px);
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(f)))
+        {
+            out.writeInt(MAGIC);
+            out.writeInt(w);
+            out.writeInt(h);
+            DeflaterOutputStream z = new DeflaterOutputStream(out);
+            z.write(bytes.array());
+            z.finish();
+        }
+    }
+}
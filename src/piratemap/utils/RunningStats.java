@@ -0,0 +1,91 @@
+package piratemap.utils;
+
+/**
+ * Count, mean, variance, min and max of a stream of values, without keeping
+ * the values. Uses Welford's update, so it stays accurate for long streams.
+ *
+ * Not thread safe. Give each thread its own and merge them at the end, merging
+ * is exact (Chan et al.), the result is the same as adding all values to one.
+ */
+public class RunningStats
+{
+    private long n;
+    private double mean, m2;
+    private double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY;
+
+    public void add(double v)
+    {
+        n++;
+        double d = v - mean;
+        mean += d / n;
+        m2 += d * (v - mean);
+        min = Math.min(min, v);
+        max = Math.max(max, v);
+    }
+
+    /**
+     * Add all values seen by other to this.
+     * @param other
+     */
+    public void merge(RunningStats other)
+    {
+        if (other.n == 0)
+            return;
+        if (n == 0)
+        {
+            n = other.n;
+            mean = other.mean;
+            m2 = other.m2;
+            min = other.min;
+            max = other.max;
+            return;
+        }
+
+        long total = n + other.n;
+        double d = other.mean - mean;
+        mean += d * other.n / total;
+        m2 += other.m2 + d * d * ((double) n * other.n / total);
+        n = total;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    public long count()
+    {
+        return n;
+    }
+
+    public double mean()
+    {
+        return mean;
+    }
+
+    /**
+     * @return Sample variance, 0 for less than 2 values.
+     */
+    public double variance()
+    {
+        return n < 2 ? 0 : m2 / (n - 1);
+    }
+
+    public double stddev()
+    {
+        return Math.sqrt(variance());
+    }
+
+    /**
+     * @return NaN if empty.
+     */
+    public double min()
+    {
+        return n == 0 ? Double.NaN : min;
+    }
+
+    /**
+     * @return NaN if empty.
+     */
+    public double max()
+    {
+        return n == 0 ? Double.NaN : max;
+    }
+}
@@ -0,0 +1,59 @@
+package piratemap.utils;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Tree of seeds derived from one root seed.
+ *
+ * Each child seed depends only on its parent's seed and its own name (or index),
+ * never on how many numbers anyone else drew. So every stage of generation (and
+ * every region inside a stage) can have its own random stream, and stages can be
+ * skipped, cached or run in parallel without changing each other's output.
+ */
+public class SeedTree
+{
+    private final long seed;
+
+    public SeedTree(long seed)
+    {
+        this.seed = seed;
+    }
+
+    public long seed()
+    {
+        return seed;
+    }
+
+    /**
+     * @param name Eg. a stage name.
+     * @return Child seeds for name.
+     */
+    public SeedTree child(String name)
+    {
+        // FNV-1a of the name, then mixed with the parent seed
+        long h = 0xcbf29ce484222325L;
+        for (byte b : name.getBytes(StandardCharsets.UTF_8))
+        {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        return new SeedTree(SplitMixRandom.mix64(seed ^ SplitMixRandom.mix64(h)));
+    }
+
+    /**
+     * @param index Eg. a region or chunk number.
+     * @return Child seeds for index.
+     */
+    public SeedTree child(long index)
+    {
+        return new SeedTree(SplitMixRandom.mix64(seed + (index + 1) * 0x9e3779b97f4a7c15L));
+    }
+
+    /**
+     * @return A fresh random stream for this node. Every call starts over.
+     */
+    public SplitMixRandom random()
+    {
+        return new SplitMixRandom(seed);
+    }
+}
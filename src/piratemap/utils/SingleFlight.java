@@ -0,0 +1,64 @@
+package piratemap.utils;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Coalesces concurrent calls with the same key: the first caller runs the
+ * work, callers that arrive while it is running wait for it and get the same
+ * result (or exception). Once it is done the key is forgotten, the next call
+ * runs the work again. Results are not cached, that is up to the work.
+ *
+ * @param <K> Key, needs equals and hashCode.
+ * @param <V> Result.
+ */
+public class SingleFlight<K, V>
+{
+    private final ConcurrentHashMap<K, FutureTask<V>> inFlight = new ConcurrentHashMap<>();
+
+    /**
+     * @param key
+     * @param work
+     * @return Result of work, run by this call or by a concurrent one with the same key.
+     * @throws Exception Whatever work threw.
+     */
+    public V run(K key, Callable<V> work) throws Exception
+    {
+        FutureTask<V> task = new FutureTask<>(work);
+        FutureTask<V> running = inFlight.putIfAbsent(key, task);
+        if (running == null)
+        {
+            running = task;
+            try
+            {
+                task.run();
+            } finally
+            {
+                inFlight.remove(key, task);
+            }
+        }
+
+        try
+        {
+            return running.get();
+        } catch (ExecutionException e)
+        {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception)
+                throw (Exception) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+            throw e;
+        }
+    }
+
+    /**
+     * @return Number of keys being worked on right now.
+     */
+    public int inFlight()
+    {
+        return inFlight.size();
+    }
+}
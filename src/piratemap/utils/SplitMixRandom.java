@@ -0,0 +1,58 @@
+package piratemap.utils;
+
+import java.util.Random;
+
+/**
+ * A Random that runs on SplitMix64 instead of the shared linear congruential
+ * generator. The state is a plain long, so there is no AtomicLong compare and set
+ * on every draw. Not thread safe, give each thread (or stage) its own.
+ *
+ * All the Random methods (nextInt(n), nextBoolean, ...) work as usual, they are
+ * built on next(bits).
+ */
+public class SplitMixRandom extends Random
+{
+    private static final long serialVersionUID = 1L;
+
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+    private long state;
+
+    public SplitMixRandom(long seed)
+    {
+        super(0);
+        state = seed;
+    }
+
+    @Override
+    public synchronized void setSeed(long seed)
+    {
+        // Also called by the Random constructor, before our fields are set up.
+        state = seed;
+    }
+
+    @Override
+    protected int next(int bits)
+    {
+        return (int) (nextLong() >>> (64 - bits));
+    }
+
+    @Override
+    public long nextLong()
+    {
+        state += GOLDEN_GAMMA;
+        return mix64(state);
+    }
+
+    /**
+     * SplitMix64 output function, a good 64 bit hash on its own.
+     * @param z
+     * @return
+     */
+    public static long mix64(long z)
+    {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
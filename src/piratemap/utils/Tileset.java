@@ -0,0 +1,549 @@
+package piratemap.utils;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * A Tiled tileset (.tsx) with terrain corners, and the corner lookup built
+ * from it: which tile has a given terrain at each of its four corners.
+ *
+ * A theme is tiles/name.tsx and the atlas image it names. Each is read once
+ * per process and kept, so any number of themes can be in use side by side
+ * and picking one per render costs nothing after the first. The tsx is read
+ * with StAX, and the lookup it gives is kept next to it as name.tsx.bin, used
+ * instead of parsing while the tsx is unchanged.
+ *
+ * The map's corner codes are indexes into the terrain types, so themes must
+ * list their terrains in the order terrain.tsx does. Tiles with a
+ * probability are variants, not in the lookup; only water uses them, see
+ * pickTile. Where two tiles have the same corners the later one is used.
+ *
+ * The atlas image loads the first time a tile is drawn. Otherwise a Tileset
+ * never changes and draws only onto what the caller passes, so one can draw
+ * any number of maps at once from any threads.
+ */
+public class Tileset
+{
+    public static final String DEFAULT_THEME = "terrain";
+    public static final String DIR = "tiles";
+
+    private static final int SIDECAR_MAGIC = 0x504d5453; // PMTS
+    private static final int SIDECAR_VERSION = 1;
+
+    private static final ConcurrentHashMap<String, Tileset> themes = new ConcurrentHashMap<>();
+
+    public final String name;
+    public final int tileWidth, tileHeight;
+    /** Tiles per row of the atlas */
+    public final int columns;
+    /**
+     * CRCs of the tsx and of the atlas files, hex. Changes when either does,
+     * so it can go in cache keys and ETags.
+     */
+    public final String fingerprint;
+
+    // Atlas path from the tsx, and resolved without extension, see RawImage.load
+    private final String source, image;
+    private final String[] terrains;
+    // Corner codes to tile id, digits base n, -1 for none
+    private final int n;
+    private final short[] table;
+    private final int[] waterVariants;
+
+    private volatile BufferedImage atlas;
+    private volatile IntRaster rasterAtlas;
+
+    private Tileset(File tsx, long crc, String name, int tileWidth, int tileHeight, int columns,
+            String source, String[] terrains, short[] table, int[] waterVariants) throws IOException
+    {
+        this.name = name;
+        this.tileWidth = tileWidth;
+        this.tileHeight = tileHeight;
+        this.columns = columns;
+        this.source = source;
+        this.image = new File(tsx.getParentFile(), source).getPath().replaceFirst("\\.[^./\\\\]*$", "");
+        this.terrains = terrains;
+        this.n = terrains.length;
+        this.table = table;
+        this.waterVariants = waterVariants;
+        this.fingerprint = String.format("%08x%08x", crc, atlasCrc(image));
+    }
+
+    /**
+     * CRC of name.raw and name.png, those of them there are, as they would
+     * be drawn from either.
+     */
+    private static long atlasCrc(String name) throws IOException
+    {
+        CRC32 crc = new CRC32();
+        for (String ext : new String[] { ".raw", ".png" })
+        {
+            File f = new File(name + ext);
+            if (f.isFile())
+                crc.update(Files.readAllBytes(f.toPath()));
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Theme name, tiles/name.tsx, loaded the first time it is asked for.
+     * @throws IOException If there is no such theme or it cannot be read.
+     */
+    public static Tileset theme(String name) throws IOException
+    {
+        Tileset t = themes.get(name);
+        if (t != null)
+            return t;
+        // Names become file names
+        if (!name.matches("[A-Za-z0-9_-]+"))
+            throw new IOException("Bad theme name " + name);
+        File tsx = new File(DIR, name + ".tsx");
+        if (!tsx.isFile())
+            throw new IOException("No theme " + name + ", " + tsx + " is missing");
+        t = load(tsx);
+        Tileset old = themes.putIfAbsent(name, t);
+        return old != null ? old : t;
+    }
+
+    /**
+     * The default theme.
+     * @throws UncheckedIOException If it cannot be read.
+     */
+    public static Tileset defaultTheme()
+    {
+        try
+        {
+            return theme(DEFAULT_THEME);
+        } catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Read tsx, from its sidecar when that is up to date, else parse it and
+     * write the sidecar.
+     */
+    public static Tileset load(File tsx) throws IOException
+    {
+        byte[] bytes = Files.readAllBytes(tsx.toPath());
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+
+        File bin = sidecar(tsx);
+        if (bin.isFile())
+        {
+            Tileset t = readSidecar(tsx, bin, bytes.length, crc.getValue());
+            if (t != null)
+                return t;
+        }
+
+        Tileset t = parse(tsx, bytes, crc.getValue());
+        try
+        {
+            t.writeSidecar(bin, bytes.length, crc.getValue());
+        } catch (IOException e)
+        {
+            // Read only install, parse again next time
+        }
+        return t;
+    }
+
+    /**
+     * The compiled lookup kept next to tsx.
+     */
+    public static File sidecar(File tsx)
+    {
+        return new File(tsx.getPath() + ".bin");
+    }
+
+    private static Tileset parse(File tsx, byte[] bytes, long crc) throws IOException
+    {
+        String name = tsx.getName().replaceFirst("\\.tsx$", "");
+        int tw = 0, th = 0, columns = 0, imageWidth = 0;
+        String source = null;
+        List<String> terrains = new ArrayList<>();
+        // id and four corners of each tile, and of each variant
+        List<int[]> tiles = new ArrayList<>(), variants = new ArrayList<>();
+        try
+        {
+            XMLInputFactory f = XMLInputFactory.newInstance();
+            f.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+            XMLStreamReader r = f.createXMLStreamReader(new ByteArrayInputStream(bytes));
+            while (r.hasNext())
+            {
+                if (r.next() != XMLStreamConstants.START_ELEMENT)
+                    continue;
+                switch (r.getLocalName())
+                {
+                case "tileset":
+                    tw = intAttribute(r, "tilewidth", 0);
+                    th = intAttribute(r, "tileheight", 0);
+                    columns = intAttribute(r, "columns", 0);
+                    break;
+                case "image":
+                    source = r.getAttributeValue(null, "source");
+                    imageWidth = intAttribute(r, "width", 0);
+                    break;
+                case "terrain":
+                    terrains.add(r.getAttributeValue(null, "name"));
+                    break;
+                case "tile":
+                {
+                    String corners = r.getAttributeValue(null, "terrain");
+                    if (corners == null)
+                        break;
+                    String[] c = corners.split(",", -1);
+                    if (c.length != 4 || c[0].isEmpty() || c[1].isEmpty()
+                            || c[2].isEmpty() || c[3].isEmpty())
+                        break; // a corner without terrain, never looked up
+                    int[] tile = new int[] { intAttribute(r, "id", -1), Integer.parseInt(c[0]),
+                            Integer.parseInt(c[1]), Integer.parseInt(c[2]), Integer.parseInt(c[3]) };
+                    String p = r.getAttributeValue(null, "probability");
+                    if (p == null)
+                        tiles.add(tile);
+                    else if (Double.parseDouble(p) > 0)
+                        variants.add(tile);
+                    break;
+                }
+                default:
+                    break;
+                }
+            }
+            r.close();
+        } catch (XMLStreamException | NumberFormatException e)
+        {
+            throw new IOException(tsx + ": " + e.getMessage(), e);
+        }
+        if (tw <= 0 || th <= 0 || source == null)
+            throw new IOException(tsx + ": no tile size or image");
+        if (columns <= 0)
+            columns = imageWidth / tw;
+        if (columns <= 0)
+            throw new IOException(tsx + ": no image width");
+
+        int n = terrains.size();
+        short[] table = new short[n*n*n*n];
+        Arrays.fill(table, (short) -1);
+        for (int[] t : tiles)
+        {
+            for (int k = 1; k <= 4; k++)
+                if (t[k] < 0 || t[k] >= n)
+                    throw new IOException(tsx + ": tile " + t[0] + " has no terrain " + t[k]);
+            table[((t[1]*n + t[2])*n + t[3])*n + t[4]] = (short) t[0];
+        }
+
+        int water = terrains.indexOf("Water");
+        List<Integer> waterList = new ArrayList<>();
+        for (int[] t : variants)
+            if (water >= 0 && t[1] == water && t[2] == water && t[3] == water && t[4] == water)
+                waterList.add(t[0]);
+        int[] wv = new int[waterList.size()];
+        for (int i = 0; i < wv.length; i++)
+            wv[i] = waterList.get(i);
+
+        return new Tileset(tsx, crc, name, tw, th, columns, source, terrains.toArray(new String[n]),
+                table, wv);
+    }
+
+    private static int intAttribute(XMLStreamReader r, String attr, int def)
+    {
+        String v = r.getAttributeValue(null, attr);
+        return v == null ? def : Integer.parseInt(v);
+    }
+
+    /**
+     * @return null if bin is stale, cut short or not a sidecar.
+     */
+    private static Tileset readSidecar(File tsx, File bin, long length, long crc)
+    {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(bin))))
+        {
+            if (in.readInt() != SIDECAR_MAGIC || in.readInt() != SIDECAR_VERSION
+                    || in.readLong() != length || in.readLong() != crc)
+                return null;
+            String name = in.readUTF();
+            int tw = in.readInt(), th = in.readInt(), columns = in.readInt();
+            String source = in.readUTF();
+            String[] terrains = new String[in.readUnsignedShort()];
+            for (int i = 0; i < terrains.length; i++)
+                terrains[i] = in.readUTF();
+            int n = terrains.length;
+            short[] table = new short[n*n*n*n];
+            for (int i = 0; i < table.length; i++)
+                table[i] = in.readShort();
+            int[] wv = new int[in.readUnsignedShort()];
+            for (int i = 0; i < wv.length; i++)
+                wv[i] = in.readInt();
+            return new Tileset(tsx, crc, name, tw, th, columns, source, terrains, table, wv);
+        } catch (IOException e)
+        {
+            // Parsed again and rewritten
+            return null;
+        }
+    }
+
+    /**
+     * Write the sidecar through a temporary file, so a process reading it
+     * meanwhile never sees half of it.
+     */
+    private void writeSidecar(File bin, long length, long crc) throws IOException
+    {
+        File tmp = new File(bin.getPath() + "." + Thread.currentThread().getId() + ".tmp");
+        try
+        {
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(tmp))))
+            {
+                out.writeInt(SIDECAR_MAGIC);
+                out.writeInt(SIDECAR_VERSION);
+                out.writeLong(length);
+                out.writeLong(crc);
+                out.writeUTF(name);
+                out.writeInt(tileWidth);
+                out.writeInt(tileHeight);
+                out.writeInt(columns);
+                out.writeUTF(source);
+                out.writeShort(terrains.length);
+                for (String t : terrains)
+                    out.writeUTF(t);
+                for (short t : table)
+                    out.writeShort(t);
+                out.writeShort(waterVariants.length);
+                for (int v : waterVariants)
+                    out.writeInt(v);
+            }
+            Files.move(tmp.toPath(), bin.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally
+        {
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Write the sidecar of tsx whether or not it is up to date, see AssetCompiler.
+     * @return The sidecar.
+     */
+    static File compile(File tsx) throws IOException
+    {
+        byte[] bytes = Files.readAllBytes(tsx.toPath());
+        CRC32 crc = new CRC32();
+        crc.update(bytes);
+        File bin = sidecar(tsx);
+        parse(tsx, bytes, crc.getValue()).writeSidecar(bin, bytes.length, crc.getValue());
+        return bin;
+    }
+
+    /**
+     * Atlas path without extension.
+     */
+    String image()
+    {
+        return image;
+    }
+
+    /**
+     * @return Terrain type names, index is the corner code.
+     */
+    public List<String> terrains()
+    {
+        return Arrays.asList(terrains.clone());
+    }
+
+    /**
+     * Tile for the given corner codes. Needs no images.
+     * @return Tile id in the atlas, -1 if there is none.
+     */
+    public int tileId(int t1, int t2, int t3, int t4)
+    {
+        if (t1 < 0 || t2 < 0 || t3 < 0 || t4 < 0 || t1 >= n || t2 >= n || t3 >= n || t4 >= n)
+            return -1;
+        return table[((t1*n + t2)*n + t3)*n + t4];
+    }
+
+    /**
+     * Tile for the corners, water sometimes swapped for a variant: one in
+     * ten, each of the first two variants one in twenty.
+     * @param rand Takes one number for open water, none otherwise.
+     * @return -1 if there is none.
+     */
+    public int pickTile(int t1, int t2, int t3, int t4, Random rand)
+    {
+        int ti = baseTile(t1, t2, t3, t4);
+        if (ti >= 0 && hasVariants(t1, t2, t3, t4))
+            ti = waterVariant(ti, rand.nextInt(20));
+        return ti;
+    }
+
+    /**
+     * Same as pickTile with a Random, the variant chosen from the top bits of
+     * cellHash instead. Nothing is shared or changed, so any number of
+     * threads can draw with one Tileset, and the same hash always gives the
+     * same tile.
+     * @param cellHash A well mixed hash of the cell, see SplitMixRandom.mix64.
+     */
+    public int pickTile(int t1, int t2, int t3, int t4, long cellHash)
+    {
+        int ti = baseTile(t1, t2, t3, t4);
+        if (ti >= 0 && hasVariants(t1, t2, t3, t4))
+            ti = waterVariant(ti, (int) ((cellHash >>> 33) % 20));
+        return ti;
+    }
+
+    private int baseTile(int t1, int t2, int t3, int t4)
+    {
+        int ti = tileId(t1, t2, t3, t4);
+        if (ti < 0)
+            System.out.printf("Not found %d %d %d %d\n", t1, t2, t3, t4);
+        return ti;
+    }
+
+    /**
+     * Spice up water.
+     */
+    private boolean hasVariants(int t1, int t2, int t3, int t4)
+    {
+        return waterVariants.length > 0 && t1 == t2 && t2 == t3 && t3 == t4
+                && "Water".equals(terrains[t1]);
+    }
+
+    /**
+     * @param draw 0 to 19.
+     */
+    private int waterVariant(int ti, int draw)
+    {
+        int r = draw-17;
+        return r > 0 ? waterVariants[(r-1) % waterVariants.length] : ti;
+    }
+
+    /**
+     * Given corner codes, find the tile in the atlas and draw it scaled to
+     * destx, desty, w, h.
+     * @param rand Picks the water variant.
+     */
+    public void printTile(Graphics2D g2, int destx, int desty,
+            int w, int h, int t1, int t2, int t3, int t4, Random rand)
+    {
+        drawTile(g2, pickTile(t1, t2, t3, t4, rand), destx, desty, w, h);
+    }
+
+    /**
+     * printTile with the water variant from a hash of the cell, see pickTile.
+     */
+    public void printTile(Graphics2D g2, int destx, int desty,
+            int w, int h, int t1, int t2, int t3, int t4, long cellHash)
+    {
+        drawTile(g2, pickTile(t1, t2, t3, t4, cellHash), destx, desty, w, h);
+    }
+
+    /**
+     * Same as printTile, onto plain pixels. Takes the same numbers from rand,
+     * so the same rand gives the same tiles as the Graphics2D version.
+     */
+    public void printTile(IntRaster dst, int destx, int desty,
+            int w, int h, int t1, int t2, int t3, int t4, Random rand)
+    {
+        drawTile(dst, pickTile(t1, t2, t3, t4, rand), destx, desty, w, h);
+    }
+
+    public void printTile(IntRaster dst, int destx, int desty,
+            int w, int h, int t1, int t2, int t3, int t4, long cellHash)
+    {
+        drawTile(dst, pickTile(t1, t2, t3, t4, cellHash), destx, desty, w, h);
+    }
+
+    private void drawTile(Graphics2D g2, int ti, int destx, int desty, int w, int h)
+    {
+        if (ti < 0)
+            return;
+        int sx = tileWidth * (ti % columns), sy = tileHeight * (ti / columns);
+        g2.drawImage(atlas(), destx, desty, destx+w, desty+h,
+                sx, sy, sx + tileWidth, sy + tileHeight, null);
+    }
+
+    private void drawTile(IntRaster dst, int ti, int destx, int desty, int w, int h)
+    {
+        if (ti < 0)
+            return;
+        int sx = tileWidth * (ti % columns), sy = tileHeight * (ti / columns);
+        dst.drawImage(rasterAtlas(), destx, desty, destx+w, desty+h,
+                sx, sy, sx + tileWidth, sy + tileHeight);
+    }
+
+    private BufferedImage atlas()
+    {
+        BufferedImage a = atlas;
+        if (a == null)
+        {
+            synchronized (this)
+            {
+                if (atlas == null)
+                    atlas = loadAtlas();
+                a = atlas;
+            }
+        }
+        return a;
+    }
+
+    private BufferedImage loadAtlas()
+    {
+        try
+        {
+            return RawImage.load(image);
+        } catch (IOException e)
+        {
+            throw new UncheckedIOException("Could not read atlas " + image, e);
+        }
+    }
+
+    private IntRaster rasterAtlas()
+    {
+        IntRaster a = rasterAtlas;
+        if (a == null)
+        {
+            synchronized (this)
+            {
+                if (rasterAtlas == null)
+                    rasterAtlas = loadRasterAtlas();
+                a = rasterAtlas;
+            }
+        }
+        return a;
+    }
+
+    private IntRaster loadRasterAtlas()
+    {
+        try
+        {
+            return IntRaster.load(image);
+        } catch (IOException e)
+        {
+            throw new UncheckedIOException("Could not read atlas " + image, e);
+        }
+    }
+}
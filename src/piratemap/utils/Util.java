@@ -2,7 +2,17 @@ package piratemap.utils;
 
 import java.awt.Color;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
 
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
 import javax.swing.ImageIcon;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
@@ -47,4 +57,52 @@ public class Util
         t.start();
         
     }
+    
+    /**
+     * Encode as png through an in-memory stream. ImageIO.write to a plain
+     * stream goes through a temporary file by default, which for small images
+     * costs more than the encoding.
+     * @param im
+     * @return
+     * @throws IOException
+     */
+    public static byte[] encodePng(BufferedImage im) throws IOException
+    {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("png").next();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ImageOutputStream out = new MemoryCacheImageOutputStream(bytes))
+        {
+            writer.setOutput(out);
+            writer.write(im);
+        } finally
+        {
+            writer.dispose();
+        }
+        return bytes.toByteArray();
+    }
+    
+    /**
+     * Copy an object by serializing and deserializing it.
+     * Handy for things like Random that have no other way to copy their state.
+     * @param o
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    public static <T extends Serializable> T deepCopy(T o)
+    {
+        try
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream out = new ObjectOutputStream(bytes);
+            out.writeObject(o);
+            out.close();
+            
+            ObjectInputStream in = new ObjectInputStream(
+                    new ByteArrayInputStream(bytes.toByteArray()));
+            return (T) in.readObject();
+        } catch (IOException | ClassNotFoundException e)
+        {
+            throw new IllegalStateException("Could not copy "+o, e);
+        }
+    }
 }